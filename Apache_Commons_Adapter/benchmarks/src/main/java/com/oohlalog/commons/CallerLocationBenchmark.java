@@ -0,0 +1,75 @@
+package com.oohlalog.commons;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of capturing the caller location of logs, per level.  With location set to warn, warn()
+ * pays for the capture and info() does not; with info, both do; with off, neither does.  render
+ * is the cost of rendering a location already seen, which the flushing thread pays per log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallerLocationBenchmark {
+	@Param({"off", "warn", "info"})
+	public String location;
+
+	private MockIngestServer server;
+	private OohLaLogLogger logger;
+	private StackWalker.StackFrame frame;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new MockIngestServer.Builder().build();
+		server.configureLoggers();
+		System.setProperty(OohLaLogLogger.systemPrefix + "showStats", "false");
+		System.setProperty(OohLaLogLogger.systemPrefix + "location", location);
+		// Keeps warn() off the priority lane, so that both levels take the same path
+		System.setProperty(OohLaLogLogger.systemPrefix + "priorityLevel", "off");
+		logger = new OohLaLogLogger("CallerLocationBenchmark");
+		frame = CallerLocation.capture();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Benchmark
+	public void info() {
+		logger.info("benchmark message");
+	}
+
+	@Benchmark
+	public void warn() {
+		logger.warn("benchmark message");
+	}
+
+	@Benchmark
+	public StackWalker.StackFrame capture() {
+		return CallerLocation.capture();
+	}
+
+	@Benchmark
+	public String render() {
+		return CallerLocation.render(frame);
+	}
+}
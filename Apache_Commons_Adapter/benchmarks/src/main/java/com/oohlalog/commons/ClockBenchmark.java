@@ -0,0 +1,51 @@
+package com.oohlalog.commons;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of reading the time stamp of a log from each clock, and of numbering logs across threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClockBenchmark {
+	@Param({"system", "coarse", "precise"})
+	public String clock;
+
+	private LogClock logClock;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		logClock = LogClock.get(clock, 1);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public long currentTimeMillis() {
+		return logClock.currentTimeMillis();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public long nextSequence4Threads() {
+		return LogClock.nextSequence();
+	}
+}
@@ -0,0 +1,139 @@
+package com.oohlalog.commons;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Checks that {@link JsonBatchEncoder} writes the same JSON as {@link Payload#serialize()}, which
+ * builds it with Gson.  The two are parsed and compared as JSON trees, so they may differ in field
+ * order and in how characters are escaped, but not in what they say.
+ *
+ * The logs cover escaped and control characters, non ASCII text, surrogate pairs, fields without
+ * a value, which both leave out, and the host name of the batch standing in for that of a log.
+ * Batches are cut at many sizes, and encoded again after a batch of other logs and after a failed
+ * one, whose encoding is reused.  The pool is given small segments, so that logs straddle them.
+ * Lone surrogates cannot be written in UTF-8, so they are not checked.
+ *
+ * Prints the cases that differ, and exits with status 1 if there are any:
+ * <pre>
+ *   java -cp Apache_Commons_Adapter/benchmarks/target/benchmarks.jar com.oohlalog.commons.JsonEncoderCheck
+ * </pre>
+ */
+public class JsonEncoderCheck {
+	private static final String API_KEY = "00000000-\"key\"\\-0000";
+
+	private int checked = 0;
+	private int failed = 0;
+
+
+	public static void main(String[] args) throws Exception {
+		PayloadBufferPool.configure(4, 1024);
+		JsonEncoderCheck check = new JsonEncoderCheck();
+		check.run();
+		System.out.println(check.checked + " batches checked, " + check.failed + " differ");
+		System.exit(check.failed == 0 ? 0 : 1);
+	}
+
+
+	private void run() throws Exception {
+		List<LogEntry> logs = logs();
+		JsonBatchEncoder json = new JsonBatchEncoder();
+
+		// Whole batches, with and without a host name and agent for the batch
+		check("whole batch", json, logs, "commons", "host-1", Integer.MAX_VALUE);
+		json.clear();
+		check("no batch host name", json, logs, "commons", null, Integer.MAX_VALUE);
+		json.clear();
+		check("no agent", json, logs, null, "host-1", Integer.MAX_VALUE);
+		json.clear();
+
+		// Batches cut at every size, each reusing the encoding of the one before as a failed batch would
+		for (int maxBytes = 100; maxBytes < 20000; maxBytes += 37) {
+			int count = check("cut at " + maxBytes, json, logs, "commons", "host-1", maxBytes);
+			if (count > 1 && json.getSize() > maxBytes) fail("cut at " + maxBytes, json.getSize() + " bytes");
+		}
+
+		// A retry with the logs that arrived since, and one that starts with other logs
+		json.clear();
+		check("failed batch", json, logs.subList(0, 20), "commons", "host-1", Integer.MAX_VALUE);
+		check("retry", json, logs, "commons", "host-1", Integer.MAX_VALUE);
+		check("other logs", json, logs.subList(10, logs.size()), "commons", "host-1", Integer.MAX_VALUE);
+		check("other host name", json, logs.subList(10, logs.size()), "commons", "host-2", Integer.MAX_VALUE);
+		json.clear();
+	}
+
+
+	/**
+	 * Encodes candidates, and compares the batch with the Gson serialization of the logs it holds.
+	 *
+	 * @return the number of logs in the batch
+	 */
+	private int check(String name, JsonBatchEncoder json, List<LogEntry> candidates, String agent, String hostName, int maxBytes) throws Exception {
+		int count = json.encode(candidates, API_KEY, agent, hostName, maxBytes);
+		Payload pl = new Payload.Builder()
+		.messages(candidates.subList(0, count))
+		.authToken(API_KEY)
+		.agent(agent)
+		.hostName(hostName)
+		.build();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		json.getBody().writeTo(bytes);
+		String encoded = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		checked++;
+		if (bytes.size() != json.getSize()) {
+			fail(name, "body of " + bytes.size() + " bytes, size " + json.getSize());
+		}
+		else {
+			JsonElement expected = new JsonParser().parse(pl.serialize());
+			JsonElement actual = new JsonParser().parse(encoded);
+			if (!expected.equals(actual)) fail(name, "expected " + expected + "\n  but was " + actual);
+		}
+		return count;
+	}
+
+
+	private void fail(String name, String message) {
+		failed++;
+		System.out.println(name + ": " + message);
+	}
+
+
+	/**
+	 * Returns logs with every kind of field and character the encoder handles.
+	 */
+	private static List<LogEntry> logs() {
+		List<LogEntry> logs = new ArrayList<LogEntry>(PayloadBenchmark.entries(40));
+		logs.add(new LogEntry(LogEntry.LOG_LEVEL_ERROR, "quote \" backslash \\ slash / newline \n return \r tab \t",
+				"com.example.Escapes", "Escapes", 1L, null, "details \u0000 \u0001 \u001f \u007f", "category"));
+		logs.add(new LogEntry(LogEntry.LOG_LEVEL_WARN, "html <a href='x'>&amp;</a> = \u2028 \u2029 \u00a0",
+				"com.example.Html", "Html", -1L, "own-host", null, null));
+		logs.add(new LogEntry(LogEntry.LOG_LEVEL_INFO, "été 漢字 😀 𝄞",
+				"com.example.Unicode", "Unicode", Long.MAX_VALUE, null, "😀", "über"));
+		logs.add(new LogEntry(LogEntry.LOG_LEVEL_DEBUG, null, "com.example.Nulls", "Nulls", null, null, null, null));
+		logs.add(new LogEntry(LogEntry.LOG_LEVEL_FATAL, "", "", "", 0L, "", "", ""));
+		LogEntry located = new LogEntry(LogEntry.LOG_LEVEL_INFO, "located", "com.example.Located", "Located", 2L, null, null, null);
+		located.set(LogEntry.LOG_LEVEL_INFO, "located", "com.example.Located", "Located", 2L, null, null, null, 42L, CallerLocation.capture());
+		if (located.getLocation() == null) throw new IllegalStateException("No location captured");
+		logs.add(located);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			large.append("large \"message\" é 😀 ").append(i).append('\n');
+		}
+		logs.add(new LogEntry(LogEntry.LOG_LEVEL_INFO, large.toString(), "com.example.Large", "Large", 3L, null, large.toString(), null));
+		logs.addAll(PayloadBenchmark.entries(20));
+
+		// Sequence numbers, as the buffer gives them, and sequence numbers of the JVM for some logs
+		for (int i = 0; i < logs.size(); i++) {
+			logs.get(i).setSequence(i);
+			if (i % 3 == 0 && logs.get(i).getJvmSequence() < 0) logs.get(i).setJvmSequence(i * 1000L);
+		}
+		return logs;
+	}
+}
@@ -0,0 +1,100 @@
+package com.oohlalog.commons;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of adding entries to a LogEntryBuffer and of flushing a full buffer to a local
+ * {@link MockIngestServer}.
+ */
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LogEntryBufferBenchmark {
+	// Entries added per measured iteration of add()
+	private static final int ADDS_PER_ITERATION = 10000;
+
+	static LogEntry entry() {
+		return new LogEntry(LogEntry.LOG_LEVEL_INFO, "benchmark message", "com.example.LogEntryBufferBenchmark",
+				"LogEntryBufferBenchmark", System.currentTimeMillis(), "localhost", "Logger: LogEntryBufferBenchmark ", null);
+	}
+
+	@State(Scope.Benchmark)
+	public static class AddState {
+		LogEntryBuffer buffer;
+		LogEntry entry = entry();
+
+		@Setup(Level.Iteration)
+		public void newBuffer() {
+			buffer = new QueueLogEntryBuffer(ADDS_PER_ITERATION);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class FlushState {
+		@Param({"100", "1000"})
+		public int batchSize;
+
+		MockIngestServer server;
+		OohLaLogLogger logger;
+		LogEntryBuffer buffer;
+		LogEntry entry = entry();
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			server = new MockIngestServer.Builder().build();
+			server.configureLoggers();
+			System.setProperty(OohLaLogLogger.systemPrefix + "showStats", "false");
+			logger = new OohLaLogLogger("LogEntryBufferBenchmark");
+			buffer = new QueueLogEntryBuffer(batchSize);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			server.stop();
+		}
+
+		@Setup(Level.Invocation)
+		public void fill() {
+			while (buffer.size() < batchSize) {
+				buffer.addLogToBuffer(entry);
+			}
+		}
+	}
+
+	/**
+	 * Each iteration adds ADDS_PER_ITERATION entries to an empty buffer.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Measurement(iterations = 20, batchSize = ADDS_PER_ITERATION)
+	@Warmup(iterations = 10, batchSize = ADDS_PER_ITERATION)
+	public void add(AddState state) {
+		state.buffer.addLogToBuffer(state.entry);
+	}
+
+	/**
+	 * Flushes batchSize entries, including serialization and the HTTP request.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public boolean flush(FlushState state) {
+		return state.buffer.flushLogEntryBuffer(state.logger, Integer.MAX_VALUE);
+	}
+}
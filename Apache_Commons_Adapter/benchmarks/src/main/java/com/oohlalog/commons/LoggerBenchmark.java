@@ -0,0 +1,88 @@
+package com.oohlalog.commons;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Throughput of the logging calls made by application threads, with the logger shipping to a
+ * local {@link MockIngestServer}, or as datagrams to a local {@link MockDatagramReceiver}, with and
+ * without preallocated log records.  Run with -prof gc to compare the garbage created per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggerBenchmark {
+	@Param({"false", "true"})
+	public boolean preallocate;
+
+	@Param({"false", "true"})
+	public boolean udp;
+
+	private MockIngestServer server;
+	private MockDatagramReceiver receiver;
+	private OohLaLogLogger logger;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new MockIngestServer.Builder().build();
+		server.configureLoggers();
+		if (udp) {
+			receiver = new MockDatagramReceiver(null);
+			receiver.configureLoggers("info", "info");
+		}
+		System.setProperty(OohLaLogLogger.systemPrefix + "showStats", "false");
+		System.setProperty(OohLaLogLogger.systemPrefix + "preallocate", String.valueOf(preallocate));
+		logger = new OohLaLogLogger("LoggerBenchmark");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.stop();
+		if (receiver != null) receiver.stop();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void info1Thread() {
+		logger.info("benchmark message");
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void info4Threads() {
+		logger.info("benchmark message");
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void info16Threads() {
+		logger.info("benchmark message");
+	}
+
+	/**
+	 * debug() below the logger's level (info), which should cost no more than the level check.
+	 */
+	@Benchmark
+	@Threads(1)
+	public void filteredDebug() {
+		logger.debug("benchmark message");
+	}
+}
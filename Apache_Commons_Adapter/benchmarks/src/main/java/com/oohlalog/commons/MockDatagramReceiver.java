@@ -0,0 +1,171 @@
+package com.oohlalog.commons;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A local stand-in for a receiver of the datagrams sent by {@link DatagramSink}.  It decodes every
+ * datagram, hands its entries to an optional {@link MockIngestServer.EntryListener}, and works
+ * out from the batch ids and sequence numbers how many datagrams were lost on the way.
+ */
+public class MockDatagramReceiver {
+	// Receive buffer asked of the socket, so that bursts are not lost to the receiver being slow
+	private static final int RECEIVE_BUFFER = 8 * 1024 * 1024;
+
+	private final DatagramChannel channel;
+	private final MockIngestServer.EntryListener listener;
+	private final Thread thread;
+
+	// Only used by the receiving thread: the batch each sender is on, and the next datagram expected
+	private final Map<SocketAddress,int[]> senders = new HashMap<SocketAddress,int[]>();
+
+	private final AtomicLong datagramsReceived = new AtomicLong();
+	private final AtomicLong datagramsLost = new AtomicLong();
+	private final AtomicLong entriesReceived = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+
+	/**
+	 * Starts a receiver on a free port of the loopback interface.
+	 *
+	 * @param listener receives every entry, or null
+	 */
+	public MockDatagramReceiver(MockIngestServer.EntryListener listener) throws IOException {
+		this.listener = listener;
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+		channel.bind(new InetSocketAddress("127.0.0.1", 0));
+		thread = new Thread(new Runnable() {
+			public void run() {
+				receive();
+			}
+		}, "mock-datagram-receiver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	private void receive() {
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+		while (true) {
+			try {
+				buffer.clear();
+				SocketAddress source = channel.receive(buffer);
+				received(source, buffer.array(), buffer.position(), System.currentTimeMillis());
+			}
+			catch (ClosedChannelException e) {
+				return;
+			}
+			catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private void received(SocketAddress source, byte[] data, int length, long receivedAt) {
+		if (length < BinaryBatchEncoder.DATAGRAM_HEADER || data[0] != 'O' || data[1] != 'L' || data[2] != 1) {
+			throw new IllegalArgumentException("Not a datagram of the logger: " + length + " bytes");
+		}
+		boolean last = (data[3] & 1) != 0;
+		int batchId = (int) readRaw(data, 4, 4);
+		int sequence = (int) readRaw(data, 8, 2);
+		datagramsReceived.incrementAndGet();
+		bytesReceived.addAndGet(length);
+
+		// Each sender numbers its batches one after the other, and the datagrams of a batch from 0
+		int[] expected = senders.get(source);
+		if (expected == null) {
+			expected = new int[] {batchId, 0};
+			senders.put(source, expected);
+		}
+		if (batchId != expected[0]) {
+			// The rest of the previous batch was lost, as was at least one datagram of each batch skipped
+			if (expected[1] > 0) datagramsLost.incrementAndGet();
+			datagramsLost.addAndGet(Math.max(batchId - expected[0] - 1, 0));
+			expected[0] = batchId;
+			expected[1] = 0;
+		}
+		datagramsLost.addAndGet(Math.max(sequence - expected[1], 0));
+		if (last) {
+			expected[0] = batchId + 1;
+			expected[1] = 0;
+		}
+		else {
+			expected[1] = sequence + 1;
+		}
+
+		Map<String,Object> datagram = (Map<String,Object>) new MockIngestServer.MessagePackReader(data, BinaryBatchEncoder.DATAGRAM_HEADER).read();
+		List<Object> logs = (List<Object>) datagram.get(Payload.PAYLOAD_LOGS);
+		entriesReceived.addAndGet(logs.size());
+		if (listener == null) return;
+		for (Object log : logs) {
+			List<Object> fields = (List<Object>) log;
+			listener.received((String) fields.get(1), (Long) fields.get(2), receivedAt);
+		}
+	}
+
+
+	private static long readRaw(byte[] data, int offset, int bytes) {
+		long value = 0;
+		for (int i = 0; i < bytes; i++) {
+			value = (value << 8) | (data[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+
+	/**
+	 * Sends the logs of every OohLaLogLogger created from now on from minLevel to maxLevel to this
+	 * receiver.
+	 */
+	public void configureLoggers(String minLevel, String maxLevel) {
+		System.setProperty(OohLaLogLogger.systemPrefix + "udp", "127.0.0.1:" + getPort());
+		System.setProperty(OohLaLogLogger.systemPrefix + "udpMinLevel", minLevel);
+		System.setProperty(OohLaLogLogger.systemPrefix + "udpMaxLevel", maxLevel);
+	}
+
+
+	/**
+	 * Stops the receiver.
+	 */
+	public void stop() {
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			// Closed anyway
+		}
+	}
+
+	public int getPort() {
+		return ((InetSocketAddress) channel.socket().getLocalSocketAddress()).getPort();
+	}
+
+	public long getDatagramsReceived() {
+		return datagramsReceived.get();
+	}
+
+	public long getDatagramsLost() {
+		return datagramsLost.get();
+	}
+
+	public long getEntriesReceived() {
+		return entriesReceived.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+}
@@ -0,0 +1,438 @@
+package com.oohlalog.commons;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * A local stand-in for the OohLaLog logging and time series endpoints, so that the logger can be
+ * exercised without a real server.  It can be made to answer slowly, to fail a fraction of
+ * requests, and to be unavailable during outage windows.  Log entries from requests it accepts
+ * are handed to an optional {@link EntryListener}.  Batches can be sent as JSON or in the binary
+ * format written by {@link BinaryBatchEncoder}, unless the server is built to reject it, and may
+ * be compressed with gzip.
+ *
+ * Use the {@link Builder} to configure and start one.
+ */
+public class MockIngestServer {
+	static final String LOGGING_PATH = "/api/logging/save.json";
+	static final String STATS_PATH = "/api/timeSeries/save.json";
+
+	// Fields of a log in a binary batch, in order, and those that are indexes into its string table
+	private static final String[] LOG_FIELDS = {"level", "message", "timestamp", "hostname", "category", "details", "logger"};
+	private static final String[] STRING_TABLE_FIELDS = {"agent", "level", "hostname", "category", "logger", "location"};
+
+	static {
+		// Without TCP_NODELAY, each response on a kept-alive connection waits for the client's
+		// delayed ACK, which is about 40 ms, as a real ingest server would not
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	/**
+	 * Receives every log entry accepted by the server.  Called from the server's request threads.
+	 */
+	public interface EntryListener {
+		void received(String message, long timestamp, long receivedAt);
+	}
+
+	// Config
+	private final long latencyMillis;
+	private final double errorRate;
+	private final List<long[]> outages;
+	private final EntryListener listener;
+	private final boolean acceptBinary;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final long startTime = System.currentTimeMillis();
+	private final Random random = new Random();
+
+	private final AtomicLong logRequests = new AtomicLong();
+	private final AtomicLong statsRequests = new AtomicLong();
+	private final AtomicLong failedRequests = new AtomicLong();
+	private final AtomicLong entriesReceived = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+
+	/**
+	 * lock constructor to require usage of the builder
+	 */
+	private MockIngestServer(Builder builder) throws IOException {
+		this.latencyMillis = builder.latencyMillis;
+		this.errorRate = builder.errorRate;
+		this.outages = builder.outages;
+		this.listener = builder.listener;
+		this.acceptBinary = builder.acceptBinary;
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", builder.port), 0);
+		server.createContext(LOGGING_PATH, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				logRequests.incrementAndGet();
+				handleLogs(exchange);
+			}
+		});
+		server.createContext(STATS_PATH, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				statsRequests.incrementAndGet();
+				readBody(exchange);
+				int status = status();
+				respond(exchange, status, "{\"success\":" + (status == 200) + "}");
+			}
+		});
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+
+	private void handleLogs(HttpExchange exchange) throws IOException {
+		byte[] body = readBody(exchange);
+		boolean binary = BinaryBatchEncoder.CONTENT_TYPE.equals(exchange.getRequestHeaders().getFirst("Content-Type"));
+		if (binary && !acceptBinary) {
+			failedRequests.incrementAndGet();
+			respond(exchange, 415, "{\"success\":false}");
+			return;
+		}
+		int status = status();
+		int count = 0;
+		if (status == 200) {
+			long receivedAt = System.currentTimeMillis();
+			if (binary) {
+				count = receivedBinary(body, receivedAt);
+			}
+			else {
+				JsonArray logs = parse(body).getAsJsonArray(Payload.PAYLOAD_LOGS);
+				count = logs.size();
+				for (JsonElement element : logs) {
+					JsonObject log = element.getAsJsonObject();
+					if (listener != null) {
+						listener.received(log.get("message").getAsString(), log.get("timestamp").getAsLong(), receivedAt);
+					}
+				}
+			}
+			entriesReceived.addAndGet(count);
+		}
+		respond(exchange, status, "{\"insertCount\":" + count + ",\"success\":" + (status == 200) + "}");
+	}
+
+
+	/**
+	 * Applies the configured latency, then decides how to answer the current request.
+	 *
+	 * @return the HTTP status to answer with
+	 */
+	private int status() {
+		if (latencyMillis > 0) {
+			try {
+				Thread.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		long offset = System.currentTimeMillis() - startTime;
+		for (long[] outage : outages) {
+			if (offset >= outage[0] && offset < outage[0] + outage[1]) {
+				failedRequests.incrementAndGet();
+				return 503;
+			}
+		}
+		if (errorRate > 0 && random.nextDouble() < errorRate) {
+			failedRequests.incrementAndGet();
+			return 500;
+		}
+		return 200;
+	}
+
+	private byte[] readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		bytesReceived.addAndGet(out.size());
+		if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+			out.reset();
+			while ((read = gzip.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			gzip.close();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Hands the entries of a binary batch to the listener.  Fields common to the batch are read
+	 * back into each entry, as they would be by OohLaLog.
+	 *
+	 * @return the number of entries in the batch
+	 */
+	@SuppressWarnings("unchecked")
+	private int receivedBinary(byte[] body, long receivedAt) {
+		Map<String,Object> batch = (Map<String,Object>) new MessagePackReader(body).read();
+		Map<String,Object> common = (Map<String,Object>) batch.get("common");
+		List<String> fields = new ArrayList<String>();
+		for (String field : LOG_FIELDS) {
+			if (!common.containsKey(field)) fields.add(field);
+		}
+		List<Object> strings = (List<Object>) batch.get("strings");
+		List<Object> logs = (List<Object>) batch.get(Payload.PAYLOAD_LOGS);
+		for (Object element : logs) {
+			List<Object> values = (List<Object>) element;
+			Map<String,Object> log = new HashMap<String,Object>(common);
+			for (int i = 0; i < fields.size(); i++) {
+				log.put(fields.get(i), values.get(i));
+			}
+			if (values.size() > fields.size()) log.put("sequence", values.get(fields.size()));
+			if (values.size() > fields.size() + 1) log.put("location", values.get(fields.size() + 1));
+			for (String field : STRING_TABLE_FIELDS) {
+				if (log.get(field) != null) log.put(field, strings.get(((Long) log.get(field)).intValue()));
+			}
+			if (listener != null) {
+				listener.received((String) log.get("message"), (Long) log.get("timestamp"), receivedAt);
+			}
+		}
+		return logs.size();
+	}
+
+	private static JsonObject parse(byte[] body) {
+		Reader reader = new InputStreamReader(new ByteArrayInputStream(body));
+		return new JsonParser().parse(reader).getAsJsonObject();
+	}
+
+	private static void respond(HttpExchange exchange, int status, String response) throws IOException {
+		byte[] bytes = response.getBytes();
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+
+	/**
+	 * Returns the port the server is listening on.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+
+	/**
+	 * Points every OohLaLogLogger created from now on at this server, with debug output off.
+	 */
+	public void configureLoggers() {
+		configureLoggers(this);
+	}
+
+
+	/**
+	 * Points every OohLaLogLogger created from now on at these servers, with debug output off.  Log
+	 * batches are balanced across all of them, and stats go to the first.
+	 */
+	public static void configureLoggers(MockIngestServer... servers) {
+		StringBuilder endpoints = new StringBuilder();
+		for (MockIngestServer server : servers) {
+			if (endpoints.length() > 0) endpoints.append(',');
+			endpoints.append("http://127.0.0.1:").append(server.getPort()).append(LOGGING_PATH);
+		}
+		System.setProperty(OohLaLogLogger.systemPrefix + "host", "127.0.0.1");
+		System.setProperty(OohLaLogLogger.systemPrefix + "port", String.valueOf(servers[0].getPort()));
+		System.setProperty(OohLaLogLogger.systemPrefix + "path", LOGGING_PATH);
+		System.setProperty(OohLaLogLogger.systemPrefix + "statsPath", STATS_PATH);
+		System.setProperty(OohLaLogLogger.systemPrefix + "secure", "false");
+		System.setProperty(OohLaLogLogger.systemPrefix + "debug", "false");
+		System.setProperty(OohLaLogLogger.systemPrefix + "endpoints", endpoints.toString());
+	}
+
+
+	/**
+	 * Stops the server.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public long getLogRequests() {
+		return logRequests.get();
+	}
+
+	public long getStatsRequests() {
+		return statsRequests.get();
+	}
+
+	public long getFailedRequests() {
+		return failedRequests.get();
+	}
+
+	public long getEntriesReceived() {
+		return entriesReceived.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+
+	/**
+	 * Reads the subset of MessagePack written by {@link BinaryBatchEncoder}: nil, unsigned and int64
+	 * integers, strings, arrays and maps.
+	 */
+	static class MessagePackReader {
+		private final byte[] data;
+		private int position = 0;
+
+		MessagePackReader(byte[] data) {
+			this.data = data;
+		}
+
+		MessagePackReader(byte[] data, int position) {
+			this.data = data;
+			this.position = position;
+		}
+
+		Object read() {
+			int type = data[position++] & 0xff;
+			if (type < 0x80) return (long) type;
+			if (type < 0x90) return readMap(type & 0x0f);
+			if (type < 0xa0) return readArray(type & 0x0f);
+			if (type < 0xc0) return readString(type & 0x1f);
+			switch (type) {
+				case 0xc0: return null;
+				case 0xcd: return readRaw(2);
+				case 0xce: return readRaw(4);
+				case 0xd3: return readRaw(8);
+				case 0xd9: return readString((int) readRaw(1));
+				case 0xda: return readString((int) readRaw(2));
+				case 0xdb: return readString((int) readRaw(4));
+				case 0xdc: return readArray((int) readRaw(2));
+				case 0xdd: return readArray((int) readRaw(4));
+				case 0xde: return readMap((int) readRaw(2));
+				case 0xdf: return readMap((int) readRaw(4));
+				default: throw new IllegalArgumentException("Unsupported type 0x" + Integer.toHexString(type));
+			}
+		}
+
+		private long readRaw(int bytes) {
+			long value = 0;
+			for (int i = 0; i < bytes; i++) {
+				value = (value << 8) | (data[position++] & 0xff);
+			}
+			return value;
+		}
+
+		private String readString(int length) {
+			String s = new String(data, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return s;
+		}
+
+		private List<Object> readArray(int length) {
+			List<Object> list = new ArrayList<Object>(length);
+			for (int i = 0; i < length; i++) {
+				list.add(read());
+			}
+			return list;
+		}
+
+		private Map<String,Object> readMap(int length) {
+			Map<String,Object> map = new LinkedHashMap<String,Object>();
+			for (int i = 0; i < length; i++) {
+				map.put((String) read(), read());
+			}
+			return map;
+		}
+	}
+
+
+	/**
+	 * Builder pattern helper
+	 */
+	public static class Builder {
+		private int port = 0;
+		private long latencyMillis = 0;
+		private double errorRate = 0;
+		private List<long[]> outages = new ArrayList<long[]>();
+		private EntryListener listener = null;
+		private boolean acceptBinary = true;
+
+		public Builder() {}
+		public MockIngestServer build() throws IOException {
+			return new MockIngestServer(this);
+		}
+
+		/**
+		 * The port to listen on.  Defaults to an ephemeral port.
+		 */
+		public Builder port( int port ) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * Time every request takes before it is answered.
+		 */
+		public Builder latency( long millis ) {
+			this.latencyMillis = millis;
+			return this;
+		}
+
+		/**
+		 * Fraction of requests, from 0 to 1, answered with a 500.
+		 */
+		public Builder errorRate( double errorRate ) {
+			this.errorRate = errorRate;
+			return this;
+		}
+
+		/**
+		 * Answers every request with a 503 from startMillis after the server starts, for durationMillis.
+		 */
+		public Builder outage( long startMillis, long durationMillis ) {
+			this.outages.add(new long[] {startMillis, durationMillis});
+			return this;
+		}
+
+		public Builder listener( EntryListener listener ) {
+			this.listener = listener;
+			return this;
+		}
+
+		/**
+		 * Whether binary batches are accepted.  When false they are answered with a 415, as a server
+		 * that only understands JSON would.  Defaults to true.
+		 */
+		public Builder acceptBinary( boolean acceptBinary ) {
+			this.acceptBinary = acceptBinary;
+			return this;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.oohlalog.commons;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of adding entries to a LogEntryBuffer that is kept full, under each overflow policy, while
+ * a shipper thread flushes it to a local {@link MockIngestServer} as fast as it can.  Producers
+ * contend on the buffer, and for BLOCK and CALLER_RUNS with the shipper as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OverflowPolicyBenchmark {
+	@Param({"DROP_NEWEST", "DROP_OLDEST", "BLOCK", "CALLER_RUNS"})
+	public OverflowPolicy policy;
+
+	private MockIngestServer server;
+	private LogEntryBuffer buffer;
+	private Thread shipper;
+	private volatile boolean running;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new MockIngestServer.Builder().build();
+		server.configureLoggers();
+		System.setProperty(OohLaLogLogger.systemPrefix + "showStats", "false");
+		final OohLaLogLogger logger = new OohLaLogLogger("OverflowPolicyBenchmark");
+		buffer = new QueueLogEntryBuffer(1000, policy, 10, logger);
+
+		running = true;
+		shipper = new Thread(new Runnable() {
+			public void run() {
+				while (running) {
+					buffer.flushLogEntryBuffer(logger, 100);
+				}
+			}
+		}, "benchmark-shipper");
+		shipper.setDaemon(true);
+		shipper.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		running = false;
+		shipper.join();
+		server.stop();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void add1Thread() {
+		buffer.addLogToBuffer(LogEntryBufferBenchmark.entry());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void add4Threads() {
+		buffer.addLogToBuffer(LogEntryBufferBenchmark.entry());
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void add16Threads() {
+		buffer.addLogToBuffer(LogEntryBufferBenchmark.entry());
+	}
+}
@@ -0,0 +1,105 @@
+package com.oohlalog.commons;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of serializing a batch of log entries into the payload sent to OohLaLog, as JSON and in the
+ * binary format.  The size of each encoding is printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadBenchmark {
+	@Param({"1", "100", "1000"})
+	public int batchSize;
+
+	private Payload payload;
+	private BinaryBatchEncoder encoder;
+	private JsonBatchEncoder json;
+	private PayloadBody body;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		payload = new Payload.Builder()
+		.messages(entries(batchSize))
+		.authToken("00000000-0000-0000-0000-000000000000")
+		.host("localhost")
+		.agent("commons")
+		.path(MockIngestServer.LOGGING_PATH)
+		.build();
+		encoder = new BinaryBatchEncoder();
+		json = new JsonBatchEncoder();
+		body = new PayloadBody();
+		json.encode(payload.getMessages(), payload.getAuthToken(), payload.getAgent(), payload.getHostName(), Integer.MAX_VALUE);
+
+		System.out.println();
+		System.out.println("batchSize " + batchSize + ": json " + payload.serialize().getBytes().length
+				+ " bytes, json encoder " + json.getSize() + " bytes, binary " + encoder.encode(payload, body) + " bytes");
+	}
+
+	/**
+	 * Returns count entries that look like those produced by a typical application logger.
+	 */
+	static List<LogEntry> entries(int count) {
+		List<LogEntry> entries = new ArrayList<LogEntry>(count);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			entries.add(new LogEntry(LogEntry.LOG_LEVEL_INFO, "Processed request " + i + " for customer " + (i * 31 % 977) + " in " + (i % 250) + " ms",
+					"com.example.service.RequestHandler", "RequestHandler", now + i, "app-server-01", "Logger: RequestHandler ", null));
+		}
+		return entries;
+	}
+
+	@Benchmark
+	public String serialize() {
+		return payload.serialize();
+	}
+
+	/**
+	 * JSON as it is sent, including the conversion to bytes.
+	 */
+	@Benchmark
+	public byte[] serializeBytes() {
+		return payload.serialize().getBytes();
+	}
+
+	/**
+	 * JSON as the flush encodes it, straight into pooled buffers.  The previous batch is forgotten first, so
+	 * that every log is encoded again.
+	 */
+	@Benchmark
+	public int encodeJson() {
+		json.clear();
+		json.encode(payload.getMessages(), payload.getAuthToken(), payload.getAgent(), payload.getHostName(), Integer.MAX_VALUE);
+		return json.getSize();
+	}
+
+	/**
+	 * The binary format as the flush encodes it, into pooled buffers that are given back first.
+	 */
+	@Benchmark
+	public int encodeBinary() throws IOException {
+		body.release();
+		return encoder.encode(payload, body);
+	}
+}
@@ -0,0 +1,231 @@
+package com.oohlalog.commons;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * End to end soak test of the logger against a local {@link MockIngestServer}.  A number of
+ * producer threads log uniquely numbered messages through one OohLaLogLogger; the server records
+ * which ones arrive.  Once the producers are done and delivery has settled, the harness reports
+ * throughput, end-to-end latency percentiles, and exactly how many entries were lost or
+ * delivered more than once.
+ *
+ * Options, all optional, are given as name=value arguments:
+ * <pre>
+ *   producers=4          number of producer threads
+ *   entries=100000       entries logged by each producer
+ *   latency=0            ms the server takes to answer each request
+ *   errorRate=0          fraction of requests the server fails with a 500
+ *   outage=start:length  ms after startup, and for how long, the server answers 503.  May be repeated.
+ *   acceptBinary=true    whether the server accepts binary batches, or answers them with a 415
+ *   servers=1            number of servers log batches are balanced across.  latency, errorRate and
+ *                        outage apply to the first server only, so that failover can be exercised.
+ *   udp=false            send the entries as UDP datagrams to a {@link MockDatagramReceiver} instead
+ *   settle=30000         ms without a new delivery after which the remaining entries count as lost
+ * </pre>
+ * Logger settings such as maxBuffer or threshold can be passed as com.oohlalog.commons.* system properties.
+ */
+public class SoakHarness {
+	// Latencies of this many ms or more share the last histogram bucket
+	private static final int MAX_LATENCY_MILLIS = 120000;
+
+	private static final String MESSAGE_PREFIX = "soak ";
+
+	private final int producers;
+	private final int entries;
+
+	// Number of times each message was delivered, per producer
+	private final AtomicIntegerArray[] deliveries;
+
+	// Number of deliveries per end-to-end latency in ms
+	private final AtomicLongArray latencies = new AtomicLongArray(MAX_LATENCY_MILLIS + 1);
+
+	private final AtomicLong lastDelivery = new AtomicLong();
+	private final AtomicLong unexpected = new AtomicLong();
+
+
+	public SoakHarness(int producers, int entries) {
+		this.producers = producers;
+		this.entries = entries;
+		this.deliveries = new AtomicIntegerArray[producers];
+		for (int i = 0; i < producers; i++) {
+			deliveries[i] = new AtomicIntegerArray(entries);
+		}
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		int producers = 4;
+		int entries = 100000;
+		int servers = 1;
+		boolean udp = false;
+		long settle = 30000;
+		MockIngestServer.Builder builder = new MockIngestServer.Builder();
+		for (String arg : args) {
+			String name = arg.substring(0, arg.indexOf('='));
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if ("producers".equals(name)) producers = Integer.parseInt(value);
+			else if ("entries".equals(name)) entries = Integer.parseInt(value);
+			else if ("latency".equals(name)) builder.latency(Long.parseLong(value));
+			else if ("errorRate".equals(name)) builder.errorRate(Double.parseDouble(value));
+			else if ("outage".equals(name)) builder.outage(Long.parseLong(value.split(":")[0]), Long.parseLong(value.split(":")[1]));
+			else if ("acceptBinary".equals(name)) builder.acceptBinary(Boolean.parseBoolean(value));
+			else if ("servers".equals(name)) servers = Integer.parseInt(value);
+			else if ("udp".equals(name)) udp = Boolean.parseBoolean(value);
+			else if ("settle".equals(name)) settle = Long.parseLong(value);
+			else throw new IllegalArgumentException("Unknown option " + name);
+		}
+
+		SoakHarness harness = new SoakHarness(producers, entries);
+		harness.run(builder, servers, udp, settle);
+		System.exit(0);
+	}
+
+
+	/**
+	 * Runs the producers against a server built from builder, plus healthy servers up to the given
+	 * number, or against a datagram receiver if udp is set, waits for delivery to settle, and prints
+	 * the report.
+	 */
+	public void run(MockIngestServer.Builder builder, int servers, boolean udp, long settle) throws Exception {
+		MockIngestServer.EntryListener listener = new MockIngestServer.EntryListener() {
+			public void received(String message, long timestamp, long receivedAt) {
+				record(message, timestamp, receivedAt);
+			}
+		};
+		MockIngestServer[] started = new MockIngestServer[servers];
+		started[0] = builder.listener(listener).build();
+		for (int i = 1; i < servers; i++) {
+			started[i] = new MockIngestServer.Builder().listener(listener).build();
+		}
+		MockIngestServer.configureLoggers(started);
+		MockDatagramReceiver receiver = null;
+		if (udp) {
+			receiver = new MockDatagramReceiver(listener);
+			receiver.configureLoggers("info", "info");
+		}
+		if (System.getProperty(OohLaLogLogger.systemPrefix + "showStats") == null) {
+			System.setProperty(OohLaLogLogger.systemPrefix + "showStats", "false");
+		}
+		final OohLaLogLogger logger = new OohLaLogLogger("SoakHarness");
+
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < entries; i++) {
+						logger.info(MESSAGE_PREFIX + producer + " " + i);
+					}
+				}
+			}, "soak-producer-" + p);
+			threads.add(t);
+			t.start();
+		}
+
+		long startTime = System.currentTimeMillis();
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		long produceMillis = System.currentTimeMillis() - startTime;
+
+		// Wait for every entry, or until nothing has arrived for settle ms
+		long expected = (long) producers * entries;
+		lastDelivery.set(System.currentTimeMillis());
+		while (delivered() < expected && System.currentTimeMillis() - lastDelivery.get() < settle) {
+			Thread.sleep(100);
+		}
+		long deliverMillis = Math.max(lastDelivery.get() - startTime, 1);
+
+		report(started, receiver, produceMillis, deliverMillis);
+		for (MockIngestServer server : started) {
+			server.stop();
+		}
+		if (receiver != null) receiver.stop();
+	}
+
+
+	private void record(String message, long timestamp, long receivedAt) {
+		try {
+			int separator = message.indexOf(' ', MESSAGE_PREFIX.length());
+			int producer = Integer.parseInt(message.substring(MESSAGE_PREFIX.length(), separator));
+			int entry = Integer.parseInt(message.substring(separator + 1));
+			deliveries[producer].incrementAndGet(entry);
+		} catch (RuntimeException e) {
+			unexpected.incrementAndGet();
+			return;
+		}
+		int latency = (int) Math.min(Math.max(receivedAt - timestamp, 0), MAX_LATENCY_MILLIS);
+		latencies.incrementAndGet(latency);
+		lastDelivery.set(receivedAt);
+	}
+
+	private long delivered() {
+		long delivered = 0;
+		for (int i = 0; i <= MAX_LATENCY_MILLIS; i++) {
+			delivered += latencies.get(i);
+		}
+		return delivered;
+	}
+
+	private long latencyPercentile(double percentile, long total) {
+		long rank = (long) Math.ceil(total * percentile);
+		long seen = 0;
+		for (int i = 0; i <= MAX_LATENCY_MILLIS; i++) {
+			seen += latencies.get(i);
+			if (seen >= rank && seen > 0) return i;
+		}
+		return 0;
+	}
+
+	private void report(MockIngestServer[] servers, MockDatagramReceiver receiver, long produceMillis, long deliverMillis) {
+		long expected = (long) producers * entries;
+		long unique = 0;
+		long duplicates = 0;
+		for (AtomicIntegerArray counts : deliveries) {
+			for (int i = 0; i < counts.length(); i++) {
+				int count = counts.get(i);
+				if (count > 0) unique++;
+				if (count > 1) duplicates += count - 1;
+			}
+		}
+		long delivered = delivered();
+		PipelineStats stats = PipelineStats.getInstance();
+
+		System.out.println("Producers:            " + producers + " x " + entries + " entries");
+		System.out.println("Logged:               " + expected + " in " + produceMillis + " ms (" + (expected * 1000 / Math.max(produceMillis, 1)) + " entries/s)");
+		System.out.println("Delivered:            " + unique + " unique in " + deliverMillis + " ms (" + (unique * 1000 / deliverMillis) + " entries/s)");
+		System.out.println("Lost:                 " + (expected - unique));
+		System.out.println("Duplicates:           " + duplicates);
+		System.out.println("Unexpected messages:  " + unexpected.get());
+		System.out.println("Latency ms p50/p90/p99/p99.9/max: "
+				+ latencyPercentile(0.50, delivered) + " / " + latencyPercentile(0.90, delivered) + " / "
+				+ latencyPercentile(0.99, delivered) + " / " + latencyPercentile(0.999, delivered) + " / "
+				+ latencyPercentile(1.0, delivered));
+		for (int i = 0; i < servers.length; i++) {
+			MockIngestServer server = servers[i];
+			System.out.println("Server " + i + " requests:    " + server.getLogRequests() + " (" + server.getFailedRequests() + " failed), "
+					+ server.getEntriesReceived() + " entries, " + server.getBytesReceived() + " bytes");
+		}
+		if (receiver != null) {
+			System.out.println("Datagrams:            " + receiver.getDatagramsReceived() + " (" + receiver.getDatagramsLost() + " lost), "
+					+ receiver.getEntriesReceived() + " entries, " + receiver.getBytesReceived() + " bytes");
+		}
+		System.out.println("Logger dropped:       " + stats.getEntriesDropped() + ", batches sent " + stats.getBatchesSent()
+				+ ", batches failed " + stats.getBatchesFailed());
+		System.out.println("Payload buffers:      " + stats.getPayloadBufferHits() + " reused, " + stats.getPayloadBufferMisses()
+				+ " allocated, " + stats.getPayloadBuffersPooled() + " pooled");
+	}
+}
@@ -0,0 +1,43 @@
+package com.oohlalog.commons;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of collecting one sample of every enabled statistic.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatsBenchmark {
+	private OohLaLogLogger logger;
+	private MetricSet metrics;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		System.setProperty(OohLaLogLogger.systemPrefix + "showStats", "false");
+		System.setProperty(OohLaLogLogger.systemPrefix + "debug", "false");
+		logger = new OohLaLogLogger("StatsBenchmark");
+		metrics = new MetricSet();
+	}
+
+	@Benchmark
+	public MetricSet getStats() {
+		return StatsUtils.getStats(logger, metrics);
+	}
+}
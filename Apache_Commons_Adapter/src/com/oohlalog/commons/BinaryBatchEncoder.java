@@ -0,0 +1,556 @@
+package com.oohlalog.commons;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Encodes a batch of log entries in a compact binary format instead of JSON.  The encoding is
+ * MessagePack, so any MessagePack decoder can read it:
+ * <pre>
+ * {
+ *   "apiKey":  str,
+ *   "strings": [str, ...],         string table
+ *   "common":  {field: value, ...} fields that are the same for every log of the batch
+ *   "logs":    [[value, ...], ...]
+ * }
+ * </pre>
+ * A log has the fields level, message, timestamp, hostname, category, details and logger, in that
+ * order, and the agent.  level, hostname, category, logger and agent are indexes into the string
+ * table, so each distinct value is written once per batch; message and details are written inline.
+ * A log without a host name of its own has the host name of the payload.
+ * In batches of MIN_HOISTED_BATCH logs or more, those of level, hostname, category and logger that
+ * have the same value for every log are written once in common and left out of the logs, as agent
+ * always is, so a log holds the fields that are not in common, in order.  A log with a sequence
+ * number, or a location, has the extra fields sequence and location at the end, location being an
+ * index into the string table.  Absent values are nil.  Reading common into every
+ * log gives the same logs as the json format.
+ *
+ * The encoder also writes the datagrams of {@link DatagramSink}, each of which holds as many logs
+ * as fit in it, and can be read on its own:
+ * <pre>
+ * 0   'O' 'L'      magic
+ * 2   1            version
+ * 3   flags        1 if this is the last datagram of the batch
+ * 4   batch id     4 bytes, increasing by one from one batch of the sender to the next
+ * 8   sequence     2 bytes, number of the datagram in the batch, from 0
+ * 10  count        2 bytes, number of logs in the datagram
+ * 12  {"apiKey": str, "agent": str, "hostname": str, "logs": [[value, ...], ...]}
+ * </pre>
+ * A log of a datagram has all the fields level, message, timestamp, hostname, category, details,
+ * logger, sequence and location, in that order, with their values written inline.  A log without
+ * a host name of its own has the host name of the datagram.
+ *
+ * The string table has to come before the logs, so a batch is only written once it is complete.
+ * Until then, {@link #measure} gives the size it will have at most as each log is added to it, so
+ * that it can be cut at a size.
+ *
+ * A batch is written through a small buffer into a stream, such as a {@link PayloadBody}, so it is
+ * never held in one array.  A datagram is written into the buffer, which is reused from one
+ * datagram to the next.  An encoder is not thread safe.
+ */
+public class BinaryBatchEncoder {
+	// Content type sent with binary batches
+	static final String CONTENT_TYPE = "application/x-msgpack";
+
+	// Fields of an entry that are indexes into the string table, and can be common to the batch
+	private static final String[] INDEXED_FIELDS = {"level", "hostname", "category", "logger"};
+	private static final int LEVEL = 0, HOSTNAME = 1, CATEGORY = 2, LOGGER = 3;
+
+	// Smallest batch whose common fields are written once for the batch.  Below that, the names of
+	// the fields take more room than the indexes they save.
+	private static final int MIN_HOISTED_BATCH = 16;
+
+	// Bytes written and not yet in the stream of the batch, or the datagram being written
+	private byte[] buffer = new byte[8192];
+	private int size = 0;
+
+	// Stream the batch being encoded is written to, or null while writing a datagram, and the
+	// number of bytes written to it
+	private OutputStream out = null;
+	private int written = 0;
+
+	// String table of the batch being encoded
+	private final Map<String,Integer> stringIndexes = new HashMap<String,Integer>();
+	private String[] strings = new String[16];
+	private int stringCount = 0;
+
+	// Size of the header of a datagram, and where its logs start and how many it holds
+	static final int DATAGRAM_HEADER = 12;
+	private int datagramLogsAt = 0;
+	private int datagramCount = 0;
+
+	// Size in bytes the batch being measured has at most, and the index of its host name
+	private int measured = 0;
+	private int measuredHostName = -1;
+
+	// Entry indexes into the string table, computed before the entries are written
+	private int[] indexes = new int[64];
+	private int[] locations = new int[16];
+
+
+	/**
+	 * Encodes a payload into a stream.
+	 *
+	 * @param pl the payload to encode
+	 * @param out the stream to write it to
+	 * @return the number of bytes written to out
+	 */
+	public int encode(Payload pl, OutputStream out) throws IOException {
+		this.out = out;
+		try {
+			return encode(pl);
+		}
+		catch ( UncheckedIOException e ) {
+			throw e.getCause();
+		}
+		finally {
+			this.out = null;
+		}
+	}
+
+
+	private int encode(Payload pl) {
+		List<LogEntry> messages = pl.getMessages();
+		stringIndexes.clear();
+		stringCount = 0;
+		size = 0;
+		written = 0;
+
+		// First pass builds the string table, which has to be written before the entries, and finds
+		// the indexed fields that are the same for every entry
+		int agent = intern(pl.getAgent());
+		int hostName = intern(pl.getHostName());
+		int fields = INDEXED_FIELDS.length;
+		if (indexes.length < messages.size() * fields) indexes = new int[messages.size() * fields];
+		if (locations.length < messages.size()) locations = new int[messages.size()];
+		boolean[] common = new boolean[fields];
+		Arrays.fill(common, messages.size() >= MIN_HOISTED_BATCH);
+		int i = 0;
+		for (LogEntry le : messages) {
+			indexes[i + LEVEL] = intern(le.getLevelString());
+			indexes[i + HOSTNAME] = le.getHostName() != null ? intern(le.getHostName()) : hostName;
+			indexes[i + CATEGORY] = intern(le.getCategory());
+			indexes[i + LOGGER] = intern(le.getLogName());
+			locations[i / fields] = intern(le.getLocation());
+			for (int f = 0; f < fields; f++) {
+				common[f] &= indexes[i + f] == indexes[f];
+			}
+			i += fields;
+		}
+		int hoisted = 0;
+		for (int f = 0; f < fields; f++) {
+			if (common[f]) hoisted++;
+		}
+		int entryFields = 3 + fields - hoisted;
+
+		writeMapHeader(4);
+		writeString("apiKey");
+		writeString(pl.getAuthToken());
+		writeString("strings");
+		writeArrayHeader(stringCount);
+		for (int s = 0; s < stringCount; s++) {
+			writeString(strings[s]);
+		}
+
+		writeString("common");
+		writeMapHeader(1 + hoisted);
+		writeString("agent");
+		writeIndex(agent);
+		for (int f = 0; f < fields; f++) {
+			if (!common[f]) continue;
+			writeString(INDEXED_FIELDS[f]);
+			writeIndex(indexes[f]);
+		}
+
+		writeString(Payload.PAYLOAD_LOGS);
+		writeArrayHeader(messages.size());
+		i = 0;
+		for (LogEntry le : messages) {
+			int location = locations[i / fields];
+			writeArrayHeader(location >= 0 ? entryFields + 2 : (le.getJvmSequence() >= 0 ? entryFields + 1 : entryFields));
+			if (!common[LEVEL]) writeIndex(indexes[i + LEVEL]);
+			writeString(le.getMessage());
+			if (!le.hasTimeStamp()) writeNil();
+			else writeLong(le.getTimeStampMillis());
+			if (!common[HOSTNAME]) writeIndex(indexes[i + HOSTNAME]);
+			if (!common[CATEGORY]) writeIndex(indexes[i + CATEGORY]);
+			writeString(le.getDetails());
+			if (!common[LOGGER]) writeIndex(indexes[i + LOGGER]);
+			if (le.getJvmSequence() >= 0) writeLong(le.getJvmSequence());
+			else if (location >= 0) writeNil();
+			if (location >= 0) writeIndex(location);
+			i += fields;
+		}
+		flush();
+		return written;
+	}
+
+
+	/**
+	 * Starts measuring a batch, whose logs are then added one at a time with {@link #measure}.
+	 * The string table is built as {@link #encode} builds it, so the indexes are those it writes.
+	 */
+	public void startMeasure(String apiKey, String agent, String hostName) {
+		stringIndexes.clear();
+		stringCount = 0;
+		// Headers are counted at their largest, and every indexed field as if it were not common
+		measured = 1 + sizeOf("apiKey") + sizeOf(apiKey) + sizeOf("strings") + 5 + sizeOf("common") + 1
+				+ sizeOf("agent") + sizeOf(Payload.PAYLOAD_LOGS) + 5;
+		for (String field : INDEXED_FIELDS) {
+			measured += sizeOf(field) + 9;
+		}
+		// Interning adds the strings to the size
+		int agentIndex = internMeasured(agent);
+		measured += sizeOfIndex(agentIndex);
+		measuredHostName = internMeasured(hostName);
+	}
+
+
+	/**
+	 * Adds a log to the batch being measured.
+	 *
+	 * @return the size in bytes the batch has at most once encoded, with the log
+	 */
+	public int measure(LogEntry le) {
+		// Interned in the order encode interns them, which adds the new strings to the size
+		int level = internMeasured(le.getLevelString());
+		int hostName = le.getHostName() != null ? internMeasured(le.getHostName()) : measuredHostName;
+		int category = internMeasured(le.getCategory());
+		int logger = internMeasured(le.getLogName());
+		int location = internMeasured(le.getLocation());
+
+		// Array header of the log, which has fewer than 16 fields
+		measured += 1;
+		measured += sizeOfIndex(level) + sizeOf(le.getMessage());
+		measured += le.hasTimeStamp() ? sizeOf(le.getTimeStampMillis()) : 1;
+		measured += sizeOfIndex(hostName) + sizeOfIndex(category) + sizeOf(le.getDetails()) + sizeOfIndex(logger);
+		if (le.getJvmSequence() >= 0) measured += sizeOf(le.getJvmSequence());
+		else if (location >= 0) measured += 1;
+		if (location >= 0) measured += sizeOfIndex(location);
+		return measured;
+	}
+
+
+	/**
+	 * Interns a string of the batch being measured, counting it in the string table if it is new.
+	 */
+	private int internMeasured(String s) {
+		int before = stringCount;
+		int index = intern(s);
+		if (stringCount > before) measured += sizeOf(s);
+		return index;
+	}
+
+
+	/**
+	 * Starts a datagram, writing its header and envelope.  The flags and count are filled in by
+	 * {@link #finishDatagram}.
+	 *
+	 * @param batchId the id of the batch the datagram is part of
+	 * @param sequence the number of the datagram in the batch
+	 */
+	public void startDatagram(int batchId, int sequence, String apiKey, String agent, String hostName) {
+		size = 0;
+		ensure(DATAGRAM_HEADER);
+		buffer[size++] = 'O';
+		buffer[size++] = 'L';
+		buffer[size++] = 1;
+		buffer[size++] = 0;
+		writeRaw(batchId, 4);
+		writeRaw(sequence, 2);
+		writeRaw(0, 2);
+
+		writeMapHeader(4);
+		writeString("apiKey");
+		writeString(apiKey);
+		writeString("agent");
+		writeString(agent);
+		writeString("hostname");
+		writeString(hostName);
+		writeString(Payload.PAYLOAD_LOGS);
+		// The count is not known yet, so the header has room for any
+		ensure(5);
+		buffer[size++] = (byte) 0xdd;
+		datagramLogsAt = size;
+		writeRaw(0, 4);
+		datagramCount = 0;
+	}
+
+
+	/**
+	 * Adds a log to the datagram, unless that would make it larger than maxSize.  A log is always
+	 * added to an empty datagram, whatever its size.
+	 *
+	 * @return whether the log was added
+	 */
+	public boolean addToDatagram(LogEntry le, int maxSize) {
+		int start = size;
+		writeArrayHeader(9);
+		writeString(le.getLevelString());
+		writeString(le.getMessage());
+		if (!le.hasTimeStamp()) writeNil();
+		else writeLong(le.getTimeStampMillis());
+		writeString(le.getHostName());
+		writeString(le.getCategory());
+		writeString(le.getDetails());
+		writeString(le.getLogName());
+		if (le.getJvmSequence() >= 0) writeLong(le.getJvmSequence());
+		else writeNil();
+		writeString(le.getLocation());
+		if (size > maxSize && datagramCount > 0) {
+			size = start;
+			return false;
+		}
+		datagramCount++;
+		return true;
+	}
+
+
+	/**
+	 * Finishes the datagram, filling in its flags and the number of logs it holds.
+	 *
+	 * @param last whether it is the last datagram of the batch
+	 * @return the number of bytes written to {@link #getBuffer()}
+	 */
+	public int finishDatagram(boolean last) {
+		buffer[3] = (byte) (last ? 1 : 0);
+		buffer[10] = (byte) (datagramCount >>> 8);
+		buffer[11] = (byte) datagramCount;
+		int end = size;
+		size = datagramLogsAt;
+		writeRaw(datagramCount, 4);
+		size = end;
+		return size;
+	}
+
+
+	/**
+	 * Returns the number of logs in the datagram being written.
+	 */
+	public int getDatagramCount() {
+		return datagramCount;
+	}
+
+
+	/**
+	 * Returns the buffer holding the last datagram, in its first {@link #getSize()} bytes.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+
+	/**
+	 * Returns the size in bytes of the last datagram.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+
+	/**
+	 * Returns the index of a string in the table, adding it if needed, or -1 for null.
+	 */
+	private int intern(String s) {
+		if (s == null) return -1;
+		Integer index = stringIndexes.get(s);
+		if (index == null) {
+			index = stringCount;
+			if (stringCount == strings.length) strings = Arrays.copyOf(strings, stringCount * 2);
+			strings[stringCount++] = s;
+			stringIndexes.put(s, index);
+		}
+		return index;
+	}
+
+	private static int sizeOfIndex(int index) {
+		return index < 0 ? 1 : sizeOf(index);
+	}
+
+	private static int sizeOf(long value) {
+		if (value >= 0 && value < 128) return 1;
+		if (value >= 0 && value < 65536) return 3;
+		if (value >= 0 && value <= 0xffffffffL) return 5;
+		return 9;
+	}
+
+	private static int sizeOf(String s) {
+		if (s == null) return 1;
+		int length = utf8Length(s);
+		if (length < 32) return 1 + length;
+		if (length < 256) return 2 + length;
+		if (length < 65536) return 3 + length;
+		return 5 + length;
+	}
+
+	private void writeIndex(int index) {
+		if (index < 0) writeNil();
+		else writeLong(index);
+	}
+
+	private void writeNil() {
+		ensure(1);
+		buffer[size++] = (byte) 0xc0;
+	}
+
+	private void writeLong(long value) {
+		ensure(9);
+		if (value >= 0 && value < 128) {
+			buffer[size++] = (byte) value;
+		}
+		else if (value >= 0 && value < 65536) {
+			buffer[size++] = (byte) 0xcd;
+			writeRaw(value, 2);
+		}
+		else if (value >= 0 && value <= 0xffffffffL) {
+			buffer[size++] = (byte) 0xce;
+			writeRaw(value, 4);
+		}
+		else {
+			buffer[size++] = (byte) 0xd3;
+			writeRaw(value, 8);
+		}
+	}
+
+	private void writeMapHeader(int entries) {
+		ensure(5);
+		if (entries < 16) {
+			buffer[size++] = (byte) (0x80 | entries);
+		}
+		else if (entries < 65536) {
+			buffer[size++] = (byte) 0xde;
+			writeRaw(entries, 2);
+		}
+		else {
+			buffer[size++] = (byte) 0xdf;
+			writeRaw(entries, 4);
+		}
+	}
+
+	private void writeArrayHeader(int entries) {
+		ensure(5);
+		if (entries < 16) {
+			buffer[size++] = (byte) (0x90 | entries);
+		}
+		else if (entries < 65536) {
+			buffer[size++] = (byte) 0xdc;
+			writeRaw(entries, 2);
+		}
+		else {
+			buffer[size++] = (byte) 0xdd;
+			writeRaw(entries, 4);
+		}
+	}
+
+	/**
+	 * Writes a string as UTF-8 straight into the buffer, without an intermediate byte array.
+	 */
+	private void writeString(String s) {
+		if (s == null) {
+			writeNil();
+			return;
+		}
+		int length = s.length();
+		int utf8Length = utf8Length(s);
+
+		ensure(5);
+		if (utf8Length < 32) {
+			buffer[size++] = (byte) (0xa0 | utf8Length);
+		}
+		else if (utf8Length < 256) {
+			buffer[size++] = (byte) 0xd9;
+			writeRaw(utf8Length, 1);
+		}
+		else if (utf8Length < 65536) {
+			buffer[size++] = (byte) 0xda;
+			writeRaw(utf8Length, 2);
+		}
+		else {
+			buffer[size++] = (byte) 0xdb;
+			writeRaw(utf8Length, 4);
+		}
+
+		for (int i = 0; i < length; i++) {
+			ensure(4);
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buffer[size++] = (byte) c;
+			}
+			else if (c < 0x800) {
+				buffer[size++] = (byte) (0xc0 | (c >> 6));
+				buffer[size++] = (byte) (0x80 | (c & 0x3f));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+			}
+			else {
+				// A lone surrogate is written as is, like a character in the BMP
+				buffer[size++] = (byte) (0xe0 | (c >> 12));
+				buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buffer[size++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of a string in UTF-8, as {@link #writeString} writes it.
+	 */
+	private static int utf8Length(String s) {
+		int length = s.length();
+		int utf8Length = 0;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) utf8Length += 1;
+			else if (c < 0x800) utf8Length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				utf8Length += 4;
+				i++;
+			}
+			else utf8Length += 3;
+		}
+		return utf8Length;
+	}
+
+	/**
+	 * Writes the low bytes of value, most significant first.  The caller has ensured the room.
+	 */
+	private void writeRaw(long value, int bytes) {
+		for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+			buffer[size++] = (byte) (value >>> shift);
+		}
+	}
+
+	/**
+	 * Makes room for bytes more in the buffer, by writing it to the stream of the batch if there is
+	 * one, and by growing it for a datagram.
+	 */
+	private void ensure(int bytes) {
+		if (size + bytes <= buffer.length) return;
+		if (out != null) flush();
+		else buffer = Arrays.copyOf(buffer, Math.max(size + bytes, buffer.length * 2));
+	}
+
+	/**
+	 * Writes the buffer to the stream of the batch.
+	 */
+	private void flush() {
+		try {
+			out.write(buffer, 0, size);
+		}
+		catch ( IOException e ) {
+			throw new UncheckedIOException(e);
+		}
+		written += size;
+		size = 0;
+	}
+}
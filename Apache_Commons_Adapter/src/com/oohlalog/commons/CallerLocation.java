@@ -0,0 +1,105 @@
+package com.oohlalog.commons;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+
+/**
+ * Finds where in the application a log was logged from.  The stack is walked with a StackWalker
+ * only as far as the first frame outside of the logger, and that frame is kept with the log;
+ * it is rendered as class.method(file:line) when the batch is sent, on the flushing thread, and
+ * the rendering is cached by call site, so that a line that logs again costs a lookup.
+ */
+public class CallerLocation {
+	// Most call sites whose rendering is cached
+	private static final int MAX_CACHED = 10000;
+
+	private static final StackWalker walker = StackWalker.getInstance();
+
+	private static final ConcurrentHashMap<CallSite,String> rendered = new ConcurrentHashMap<CallSite,String>();
+
+	// Frames of the logger itself, and of commons-logging, are skipped
+	private static final Predicate<StackWalker.StackFrame> LIBRARY = new Predicate<StackWalker.StackFrame>() {
+		public boolean test(StackWalker.StackFrame frame) {
+			String className = frame.getClassName();
+			return className.equals(CallerLocation.class.getName())
+					|| className.equals(OohLaLogLogger.class.getName())
+					|| className.startsWith("org.apache.commons.logging.");
+		}
+	};
+
+	private static final Function<Stream<StackWalker.StackFrame>,Optional<StackWalker.StackFrame>> FIRST_CALLER =
+			new Function<Stream<StackWalker.StackFrame>,Optional<StackWalker.StackFrame>>() {
+		public Optional<StackWalker.StackFrame> apply(Stream<StackWalker.StackFrame> frames) {
+			return frames.dropWhile(LIBRARY).findFirst();
+		}
+	};
+
+
+	/**
+	 * A method and the bytecode index in it, which identify a line that logs.
+	 */
+	private static class CallSite {
+		final String className;
+		final String methodName;
+		final int byteCodeIndex;
+
+		CallSite(StackWalker.StackFrame frame) {
+			className = frame.getClassName();
+			methodName = frame.getMethodName();
+			byteCodeIndex = frame.getByteCodeIndex();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof CallSite)) return false;
+			CallSite other = (CallSite) o;
+			return byteCodeIndex == other.byteCodeIndex && className.equals(other.className) && methodName.equals(other.methodName);
+		}
+
+		@Override
+		public int hashCode() {
+			return (className.hashCode() * 31 + methodName.hashCode()) * 31 + byteCodeIndex;
+		}
+	}
+
+
+	/**
+	 * Returns the frame of the application that called the logger.
+	 *
+	 * @return the frame, or null if every frame is the logger's
+	 */
+	protected static StackWalker.StackFrame capture() {
+		return walker.walk(FIRST_CALLER).orElse(null);
+	}
+
+
+	/**
+	 * Renders a frame as class.method(file:line).
+	 *
+	 * @param frame the frame, or null
+	 * @return the location, or null if frame is null
+	 */
+	protected static String render(StackWalker.StackFrame frame) {
+		if (frame == null) return null;
+		CallSite callSite = new CallSite(frame);
+		String location = rendered.get(callSite);
+		if (location == null) {
+			StringBuilder sb = new StringBuilder(callSite.className.length() + callSite.methodName.length() + 32);
+			sb.append(callSite.className).append('.').append(callSite.methodName).append('(');
+			if (frame.getFileName() != null) {
+				sb.append(frame.getFileName());
+				if (frame.getLineNumber() >= 0) sb.append(':').append(frame.getLineNumber());
+			}
+			else {
+				sb.append("Unknown Source");
+			}
+			location = sb.append(')').toString();
+			if (rendered.size() < MAX_CACHED) rendered.put(callSite, location);
+		}
+		return location;
+	}
+}
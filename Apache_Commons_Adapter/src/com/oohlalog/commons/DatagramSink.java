@@ -0,0 +1,125 @@
+package com.oohlalog.commons;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Sends log batches as UDP datagrams, for logs that are numerous enough that losing a few is a
+ * better deal than the cost of delivering every one.  Nothing is retried or acknowledged: a
+ * datagram that the socket has no room for, or that is lost on the way, is gone.
+ *
+ * A batch is packed into as few datagrams as hold it, none larger than datagramSize bytes unless
+ * a single log is, in the format described in {@link BinaryBatchEncoder}.  Each datagram carries
+ * the id of its batch and its number in the batch, and the last is flagged, so the receiver can
+ * tell which were lost.
+ *
+ * Loggers configured with the same receiver share one sink, and so one socket.
+ */
+public class DatagramSink {
+	// One sink per receiver
+	private static final Map<String,DatagramSink> sinks = new HashMap<String,DatagramSink>();
+
+	private final DatagramChannel channel;
+	private final int datagramSize;
+
+	// Guarded by this
+	private final BinaryBatchEncoder encoder = new BinaryBatchEncoder();
+	private int nextBatchId = 0;
+
+
+	/**
+	 * Returns the sink sending to a receiver, opening it if no logger has yet.  A sink keeps the
+	 * datagram size it was opened with.
+	 *
+	 * @param receiver host:port of the receiver
+	 * @param datagramSize the largest size in bytes of a datagram holding more than one log
+	 * @return the sink, or null if the socket cannot be opened
+	 */
+	protected static synchronized DatagramSink open(String receiver, int datagramSize) {
+		DatagramSink sink = sinks.get(receiver);
+		if (sink == null) {
+			try {
+				int colon = receiver.lastIndexOf(':');
+				InetSocketAddress address = new InetSocketAddress(receiver.substring(0, colon).trim(), Integer.parseInt(receiver.substring(colon + 1).trim()));
+				sink = new DatagramSink(address, datagramSize);
+				sinks.put(receiver, sink);
+			}
+			catch ( IOException e ) {
+				e.printStackTrace();
+			}
+			catch ( RuntimeException e ) {
+				System.err.println("OohLaLog: cannot send datagrams to " + receiver + ": " + e);
+			}
+		}
+		return sink;
+	}
+
+
+	private DatagramSink(InetSocketAddress address, int datagramSize) throws IOException {
+		this.datagramSize = Math.max(datagramSize, BinaryBatchEncoder.DATAGRAM_HEADER + 64);
+		DatagramChannel channel = DatagramChannel.open(address.getAddress() instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+		channel.configureBlocking(false);
+		channel.connect(address);
+		this.channel = channel;
+	}
+
+
+	/**
+	 * Sends a batch of logs, without waiting for the network.  Logs in datagrams that could not be
+	 * sent are counted as dropped.
+	 *
+	 * @param logs the logs to send
+	 * @param apiKey the api key of the logger
+	 * @param agent the agent of the logger
+	 * @param hostName the host name of the batch
+	 */
+	protected synchronized void send(List<LogEntry> logs, String apiKey, String agent, String hostName) {
+		if (logs.isEmpty()) return;
+		int batchId = nextBatchId++;
+		int sequence = 0;
+		int first = 0;
+		encoder.startDatagram(batchId, sequence, apiKey, agent, hostName);
+		for (int i = 0; i < logs.size(); i++) {
+			if (!encoder.addToDatagram(logs.get(i), datagramSize)) {
+				write(logs, first, i, false);
+				first = i;
+				encoder.startDatagram(batchId, ++sequence, apiKey, agent, hostName);
+				encoder.addToDatagram(logs.get(i), datagramSize);
+			}
+		}
+		write(logs, first, logs.size(), true);
+	}
+
+
+	/**
+	 * Finishes and sends the datagram holding the logs from index from up to index to.
+	 */
+	private void write(List<LogEntry> logs, int from, int to, boolean last) {
+		int length = encoder.finishDatagram(last);
+		boolean sent = false;
+		try {
+			// A non-blocking send either sends the whole datagram or nothing
+			sent = channel.write(ByteBuffer.wrap(encoder.getBuffer(), 0, length)) > 0;
+		}
+		catch ( IOException e ) {
+			// The receiver is not there, or the datagram is too large: the logs are lost
+		}
+		if (sent) {
+			PipelineStats.getInstance().batchSent(to - from);
+			PipelineStats.getInstance().payloadSent(length, length, 0);
+		}
+		else {
+			for (int i = from; i < to; i++) {
+				PipelineStats.getInstance().entriesDropped(logs.get(i).getLevel(), 1);
+			}
+		}
+	}
+}
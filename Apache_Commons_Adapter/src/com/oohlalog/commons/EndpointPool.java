@@ -0,0 +1,273 @@
+package com.oohlalog.commons;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+
+/**
+ * The OohLaLog endpoints that log batches are sent to, with the health of each.  Batches are
+ * balanced across the healthy endpoints by the number of requests each has in flight, weighted by
+ * how quickly it has been answering, and fail over to another endpoint if the send fails.  Only a
+ * failure of the endpoint itself counts against it: no response, a timeout or a 5xx.  Any other
+ * answer, such as a 400 or 401 caused by the batch or the api key, would be the same from every
+ * endpoint, so it is neither failed over nor held against the endpoint.  An endpoint that fails
+ * ejectAfterFailures times in a row is ejected for ejectTime ms; after that a single request
+ * probes it, which either brings it back or ejects it again for twice as long, up to
+ * MAX_EJECT_MILLIS.
+ *
+ * Loggers configured with the same endpoints share one pool, so that they share what is known
+ * about the health of each endpoint.
+ */
+public class EndpointPool {
+	// Longest time an endpoint is ejected for
+	private static final long MAX_EJECT_MILLIS = 5 * 60 * 1000;
+
+	// Weight of the latest request in the moving average of latencies
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	// One pool per endpoint list
+	private static final Map<String,EndpointPool> pools = new HashMap<String,EndpointPool>();
+
+	private final List<Endpoint> endpoints;
+	private final int ejectAfterFailures;
+	private final long ejectTime;
+
+
+	/**
+	 * One OohLaLog endpoint, and what is known about its health.
+	 */
+	protected static class Endpoint {
+		final String host;
+		final int port;
+		final String path;
+		final boolean secure;
+
+		// Requests in flight
+		final AtomicInteger outstanding = new AtomicInteger();
+
+		// Set while the single request probing an ejected endpoint is in flight
+		final AtomicBoolean probing = new AtomicBoolean();
+
+		// Guarded by this
+		private int consecutiveFailures = 0;
+		private long ejectedUntil = 0;
+		private long ejectMillis = 0;
+		private double latencyMillis = 1;
+
+		Endpoint(String host, int port, String path, boolean secure) {
+			this.host = host;
+			this.port = port;
+			this.path = path;
+			this.secure = secure;
+		}
+
+		synchronized boolean isEjected(long now) {
+			return now < ejectedUntil;
+		}
+
+		synchronized boolean isProbation() {
+			return ejectMillis > 0;
+		}
+
+		synchronized double score() {
+			return (outstanding.get() + 1) * latencyMillis;
+		}
+
+		synchronized long getEjectedUntil() {
+			return ejectedUntil;
+		}
+
+		synchronized void succeeded(long latency) {
+			latencyMillis = LATENCY_WEIGHT * Math.max(latency, 1) + (1 - LATENCY_WEIGHT) * latencyMillis;
+			consecutiveFailures = 0;
+			ejectMillis = 0;
+			ejectedUntil = 0;
+		}
+
+		synchronized void failed(int ejectAfterFailures, long ejectTime) {
+			consecutiveFailures++;
+			if (ejectMillis > 0) {
+				// A failed probe ejects the endpoint again for longer
+				ejectMillis = Math.min(ejectMillis * 2, MAX_EJECT_MILLIS);
+				ejectedUntil = System.currentTimeMillis() + ejectMillis;
+			}
+			else if (consecutiveFailures >= ejectAfterFailures) {
+				ejectMillis = ejectTime;
+				ejectedUntil = System.currentTimeMillis() + ejectMillis;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return (secure ? "https" : "http") + "://" + host + ":" + port + path;
+		}
+	}
+
+
+	/**
+	 * Returns the pool for a list of endpoints, creating it if no logger has yet.
+	 *
+	 * @param spec comma separated endpoint URLs such as https://api.oohlalog.com/api/logging/save.json.
+	 *             The port and path may be left out, in which case the defaults are used.
+	 * @param defaultPath the path of endpoints that have none
+	 * @param ejectAfterFailures the number of failures in a row after which an endpoint is ejected
+	 * @param ejectTime the time in ms an endpoint is first ejected for
+	 * @return the pool
+	 */
+	protected static synchronized EndpointPool get(String spec, String defaultPath, int ejectAfterFailures, long ejectTime) {
+		String key = spec + "|" + defaultPath;
+		EndpointPool pool = pools.get(key);
+		if (pool == null) {
+			pool = new EndpointPool(parse(spec, defaultPath), ejectAfterFailures, ejectTime);
+			pools.put(key, pool);
+		}
+		return pool;
+	}
+
+
+	private static List<Endpoint> parse(String spec, String defaultPath) {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		for (String part : spec.split(",")) {
+			part = part.trim();
+			if (part.length() == 0) continue;
+			if (part.indexOf("://") < 0) part = "http://" + part;
+			URI uri = URI.create(part);
+			boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+			int port = uri.getPort() > 0 ? uri.getPort() : (secure ? 443 : 80);
+			String path = uri.getPath() == null || uri.getPath().length() == 0 ? defaultPath : uri.getPath();
+			endpoints.add(new Endpoint(uri.getHost(), port, path, secure));
+		}
+		if (endpoints.isEmpty()) throw new IllegalArgumentException("No endpoints in " + spec);
+		return endpoints;
+	}
+
+
+	private EndpointPool(List<Endpoint> endpoints, int ejectAfterFailures, long ejectTime) {
+		this.endpoints = endpoints;
+		this.ejectAfterFailures = ejectAfterFailures;
+		this.ejectTime = ejectTime;
+	}
+
+
+	/**
+	 * Sends a payload to the best endpoint, failing over to the others in turn until one accepts
+	 * it, and waits for the outcome.
+	 *
+	 * @param pl the payload.  Its host, port, path and secure settings are overwritten.
+	 * @return whether an endpoint accepted the payload
+	 */
+	protected boolean send(Payload pl) {
+		return sendAsync(pl).join();
+	}
+
+
+	/**
+	 * Sends a payload to the best endpoint, failing over to the others in turn until one accepts it.
+	 * Each endpoint is tried once the previous one has answered.
+	 *
+	 * @param pl the payload.  Its host, port, path and secure settings are overwritten.
+	 * @return a future completed with whether an endpoint accepted the payload
+	 */
+	protected CompletableFuture<Boolean> sendAsync(Payload pl) {
+		return sendAsync(pl, new ArrayList<Endpoint>(endpoints.size()));
+	}
+
+
+	private CompletableFuture<Boolean> sendAsync(final Payload pl, final List<Endpoint> tried) {
+		boolean[] claimed = new boolean[1];
+		final Endpoint endpoint = select(tried, claimed);
+		if (endpoint == null) return CompletableFuture.completedFuture(false);
+		final boolean probe = claimed[0];
+		tried.add(endpoint);
+		pl.setHost(endpoint.host);
+		pl.setPort(endpoint.port);
+		pl.setPath(endpoint.path);
+		pl.setSecure(endpoint.secure);
+
+		endpoint.outstanding.incrementAndGet();
+		final long start = System.currentTimeMillis();
+		return Payload.postAsync(pl).thenCompose( new Function<Integer,CompletableFuture<Boolean>>() {
+			public CompletableFuture<Boolean> apply(Integer status) {
+				endpoint.outstanding.decrementAndGet();
+				if (probe) endpoint.probing.set(false);
+				if (status == Payload.NOT_SENT) return CompletableFuture.completedFuture(false);
+				if (status != Payload.NO_RESPONSE && status < 500) {
+					// The endpoint answered, so it is healthy whether or not it took the batch
+					endpoint.succeeded(System.currentTimeMillis() - start);
+					if (status != 200 && pl.getDebug()) System.out.println( ">>>>>>>>>>>Batch refused by " + endpoint + " with " + status );
+					return CompletableFuture.completedFuture(status == 200);
+				}
+				endpoint.failed(ejectAfterFailures, ejectTime);
+				if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Failing over from " + endpoint );
+				return sendAsync(pl, tried);
+			}
+		});
+	}
+
+
+	/**
+	 * Picks an endpoint that has not been tried yet, at random with a probability inversely
+	 * proportional to its score, so that most batches go to the least loaded and quickest
+	 * endpoints while the others still get enough to keep their latency current.  An endpoint
+	 * on probation after an ejection takes one request at a time, the probe, which is claimed here.
+	 * If every endpoint is ejected, the one whose ejection ends first is tried anyway, so that logs
+	 * are never held back by ejections alone.
+	 *
+	 * @param claimed set to whether the request is the probe of the endpoint returned
+	 * @return the endpoint, or null if every endpoint has been tried
+	 */
+	private Endpoint select(List<Endpoint> tried, boolean[] claimed) {
+		long now = System.currentTimeMillis();
+		List<Endpoint> candidates = new ArrayList<Endpoint>(endpoints.size());
+		double[] weights = new double[endpoints.size()];
+		double total = 0;
+		Endpoint fallback = null;
+		for (Endpoint endpoint : endpoints) {
+			if (tried.contains(endpoint)) continue;
+			if (endpoint.isEjected(now) || (endpoint.isProbation() && endpoint.probing.get())) {
+				if (fallback == null || endpoint.getEjectedUntil() < fallback.getEjectedUntil()) fallback = endpoint;
+				continue;
+			}
+			weights[candidates.size()] = 1 / endpoint.score();
+			total += weights[candidates.size()];
+			candidates.add(endpoint);
+		}
+
+		claimed[0] = false;
+		while (!candidates.isEmpty()) {
+			double pick = ThreadLocalRandom.current().nextDouble() * total;
+			int i = 0;
+			while (i < candidates.size() - 1 && (pick -= weights[i]) >= 0) {
+				i++;
+			}
+			Endpoint selected = candidates.get(i);
+			if (!selected.isProbation()) return selected;
+			if (selected.probing.compareAndSet(false, true)) {
+				claimed[0] = true;
+				return selected;
+			}
+			// Another flush claimed the probe since, so pick among the others
+			total -= weights[i];
+			System.arraycopy(weights, i + 1, weights, i, candidates.size() - i - 1);
+			candidates.remove(i);
+			if (fallback == null || selected.getEjectedUntil() < fallback.getEjectedUntil()) fallback = selected;
+		}
+		return fallback;
+	}
+
+
+	/**
+	 * Returns the endpoints of the pool.
+	 */
+	protected List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+}
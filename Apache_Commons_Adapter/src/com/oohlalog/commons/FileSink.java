@@ -0,0 +1,399 @@
+package com.oohlalog.commons;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Writes the logs of every logger configured with the same file to that file as well as to
+ * OohLaLog, one line per log.  Logs are written as the sender takes them from the buffer into
+ * batches, so the thread that logs does no work for the file.  A log discarded from a full buffer
+ * before it was taken is in neither the file nor OohLaLog.
+ *
+ * The sender formats the lines into buffers of a small pool, which are reused, and hands them to a
+ * background thread.  That thread writes every buffer handed over with one gathering write, and
+ * syncs the file once per group.  The sender never waits for the disk: if every buffer is waiting
+ * to be written, the logs are left out of the file, and counted in {@link PipelineStats}.
+ *
+ * The file is rolled when it would grow past maxSize bytes, or once it is rollInterval ms old.
+ * Rolled files are renamed with the time they were rolled, and compressed with gzip in the
+ * background if configured.  If the file cannot be renamed, it is kept, the failure is counted,
+ * and rolling is tried again a minute later.
+ */
+public class FileSink {
+	// Size of the buffers lines are formatted into, and the most there are for a file
+	private static final int BUFFER_SIZE = 65536;
+	private static final int BUFFERS = 64;
+
+	// Time in ms before rolling is tried again after the file could not be renamed
+	private static final long ROLL_RETRY_MILLIS = 60000;
+
+	// Handed over to wake the writer when the sink is closed.  Empty.
+	private static final ByteBuffer WAKE = ByteBuffer.allocate(0);
+
+	// Longest time the writer waits for a batch, so that time based rolling happens on an idle sink
+	private static final long MAX_POLL_MILLIS = 1000;
+
+	// One sink per file, shared by the loggers that write to it
+	private static final Map<Path,FileSink> sinks = new HashMap<Path,FileSink>();
+
+	// Compresses rolled files
+	private static final ExecutorService compressor = Executors.newSingleThreadExecutor(LogControl.daemonThreadFactory("oohlalog-file-compress"));
+
+	// Config
+	private final Path path;
+	private final long maxSize;
+	private final long rollInterval;
+	private final boolean compress;
+	private final boolean fsync;
+
+	// Buffers waiting to be filled, and filled buffers waiting to be written, oldest first.  A line
+	// too long for a buffer gets one of its own, which is not kept.
+	private final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+	private final ArrayBlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<ByteBuffer>(2 * BUFFERS + 1);
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	// Only used while holding the lock of the sink, by the senders that write logs
+	private int allocated = 0;
+	private ByteBuffer current = null;
+	private final StringBuffer line = new StringBuffer(256);
+	private char[] chars = new char[256];
+	private CharBuffer charBuffer = CharBuffer.wrap(chars);
+	private final Date date = new Date();
+	private final FieldPosition datePosition = new FieldPosition(0);
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat(OohLaLogLogger.DEFAULT_DATE_TIME_FORMAT);
+	// A lone surrogate is written as a question mark
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	// Only used by the writer thread
+	private final ByteBuffer[] group = new ByteBuffer[2 * BUFFERS + 1];
+	private FileChannel channel;
+	private long size;
+	private long rollAt;
+	private long rollRetryAt = 0;
+
+
+	/**
+	 * Returns the sink writing to file, opening it if no logger has yet.  A sink keeps the settings
+	 * it was opened with.
+	 *
+	 * @return the sink, or null if the file cannot be opened
+	 */
+	protected static synchronized FileSink open(String file, long maxSize, long rollInterval, boolean compress, boolean fsync) {
+		Path path = Paths.get(file).toAbsolutePath();
+		FileSink sink = sinks.get(path);
+		if (sink == null) {
+			try {
+				sink = new FileSink(path, maxSize, rollInterval, compress, fsync);
+				sinks.put(path, sink);
+			}
+			catch ( IOException e ) {
+				e.printStackTrace();
+			}
+		}
+		return sink;
+	}
+
+
+	/**
+	 * Writes what has been handed over in every sink and closes them, waiting at most until deadline.
+	 *
+	 * @param deadline the time in ms since the epoch after which to stop waiting
+	 */
+	protected static void closeAll(long deadline) {
+		List<FileSink> open;
+		synchronized (FileSink.class) {
+			open = new ArrayList<FileSink>(sinks.values());
+			sinks.clear();
+		}
+		for (FileSink sink : open) {
+			sink.closed = true;
+			// Wakes the writer if it is waiting for a buffer
+			sink.filled.offer(WAKE);
+		}
+		for (FileSink sink : open) {
+			try {
+				sink.writer.join(Math.max(deadline - System.currentTimeMillis(), 1));
+			}
+			catch ( InterruptedException ie ) {
+				return;
+			}
+		}
+	}
+
+
+	private FileSink(Path path, long maxSize, long rollInterval, boolean compress, boolean fsync) throws IOException {
+		this.path = path;
+		this.maxSize = maxSize;
+		this.rollInterval = rollInterval;
+		this.compress = compress;
+		this.fsync = fsync;
+		if (path.getParent() != null) Files.createDirectories(path.getParent());
+		openFile();
+
+		writer = new Thread( new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "oohlalog-file-writer");
+		// If the JVM exits, we don't want this thread to prevent us from doing so as well
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+
+	/**
+	 * Formats logs taken from a buffer into lines, and hands them to the writer.  Called by the
+	 * sender, which may reuse the logs once this returns.  Never waits for the disk: the logs that
+	 * find no free buffer are left out, and counted.
+	 *
+	 * @param logs the logs, oldest first
+	 */
+	protected void write(List<LogEntry> logs) {
+		if (closed) return;
+		synchronized (this) {
+			for (int i = 0; i < logs.size(); i++) {
+				if (!append(logs.get(i))) {
+					PipelineStats.getInstance().fileEntriesDropped(logs.size() - i);
+					break;
+				}
+			}
+			handOver();
+		}
+	}
+
+
+	/**
+	 * Formats a log into the current buffer, or a new one if it does not fit.
+	 *
+	 * @return false if there was no buffer to write it to
+	 */
+	private boolean append(LogEntry le) {
+		line.setLength(0);
+		date.setTime(le.getTimeStampMillis());
+		dateFormat.format(date, line, datePosition);
+		line.append(" [").append(le.getLevelString()).append("] ");
+		line.append(le.getLogName()).append(" - ").append(le.getMessage());
+		if (le.getDetails() != null && le.getDetails().length() > 0) line.append(" | ").append(le.getDetails());
+		line.append('\n');
+
+		int length = line.length();
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+			charBuffer = CharBuffer.wrap(chars);
+		}
+		line.getChars(0, length, chars, 0);
+		charBuffer.clear();
+		charBuffer.limit(length);
+		// A char never takes more than 3 bytes in UTF-8
+		int maxBytes = length * 3;
+		if (current == null || current.remaining() < maxBytes) {
+			handOver();
+			current = maxBytes > BUFFER_SIZE ? ByteBuffer.allocate(maxBytes) : takeBuffer();
+			if (current == null) return false;
+		}
+		encoder.reset();
+		encoder.encode(charBuffer, current, true);
+		return true;
+	}
+
+
+	/**
+	 * Returns a free buffer, allocating one if fewer than BUFFERS have been, or null if there is none.
+	 */
+	private ByteBuffer takeBuffer() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null && allocated < BUFFERS) {
+			allocated++;
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		return buffer;
+	}
+
+
+	/**
+	 * Hands the current buffer, if it holds lines, over to the writer.
+	 */
+	private void handOver() {
+		if (current == null || current.position() == 0) return;
+		current.flip();
+		if (!filled.offer(current)) {
+			// Only lines too long for a buffer can find the writer this far behind
+			PipelineStats.getInstance().fileEntriesDropped(1);
+		}
+		current = null;
+	}
+
+
+	/**
+	 * Body of the writer thread.  Runs until the sink is closed and everything handed over is written.
+	 */
+	private void writeLoop() {
+		while (!closed || !filled.isEmpty()) {
+			int count = 0;
+			try {
+				ByteBuffer first = filled.poll(Math.max(Math.min(rollAt - System.currentTimeMillis(), MAX_POLL_MILLIS), 1), TimeUnit.MILLISECONDS);
+				if (first != null) {
+					group[count++] = first;
+					ByteBuffer next;
+					while (count < group.length && (next = filled.poll()) != null) {
+						group[count++] = next;
+					}
+				}
+				writeGroup(count);
+			}
+			catch ( InterruptedException ie ) {
+				// Ignore, and continue
+			}
+			catch ( Throwable t ) {
+				t.printStackTrace();
+			}
+			finally {
+				for (int i = 0; i < count; i++) {
+					if (group[i].capacity() == BUFFER_SIZE) {
+						group[i].clear();
+						free.offer(group[i]);
+					}
+					group[i] = null;
+				}
+			}
+		}
+		try {
+			channel.close();
+		}
+		catch ( IOException e ) {
+			// swallow
+		}
+	}
+
+
+	/**
+	 * Writes the first count buffers of the group with one gathering write, rolling the file first
+	 * if needed, then syncs the file once for the whole group.
+	 */
+	private void writeGroup(int count) throws IOException {
+		if (!channel.isOpen()) openFile();
+
+		long bytes = 0;
+		for (int i = 0; i < count; i++) {
+			bytes += group[i].remaining();
+		}
+
+		long now = System.currentTimeMillis();
+		if (now >= rollAt || (size > 0 && size + bytes > maxSize && now >= rollRetryAt)) {
+			roll();
+		}
+		if (bytes == 0) return;
+
+		long remaining = bytes;
+		while (remaining > 0) {
+			remaining -= channel.write(group, 0, count);
+		}
+		size += bytes;
+		if (fsync) channel.force(false);
+	}
+
+
+	/**
+	 * Closes the current file, renames it with the current time, and starts a new one.  If it
+	 * cannot be renamed, it is reopened and written on, and rolling is tried again later.
+	 */
+	private void roll() throws IOException {
+		if (size == 0) {
+			// Nothing to keep, so just start a new interval
+			rollAt = System.currentTimeMillis() + rollInterval;
+			return;
+		}
+		channel.close();
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+		String rolledName = dot > 0 ? name.substring(0, dot) + "-" + stamp + name.substring(dot) : name + "-" + stamp;
+		final Path rolled = path.resolveSibling(rolledName);
+		boolean moved = false;
+		try {
+			Files.move(path, rolled);
+			moved = true;
+		}
+		catch ( IOException e ) {
+			e.printStackTrace();
+		}
+		finally {
+			openFile();
+		}
+		if (!moved) {
+			PipelineStats.getInstance().fileRollFailed();
+			rollRetryAt = System.currentTimeMillis() + ROLL_RETRY_MILLIS;
+			rollAt = Math.max(rollAt, rollRetryAt);
+			return;
+		}
+
+		if (compress) {
+			compressor.execute( new Runnable() {
+				public void run() {
+					gzip(rolled);
+				}
+			});
+		}
+	}
+
+
+	private void openFile() throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		size = channel.size();
+		rollAt = System.currentTimeMillis() + rollInterval;
+	}
+
+
+	/**
+	 * Compresses a rolled file to file.gz, and deletes it.
+	 */
+	private static void gzip(Path file) {
+		Path gz = file.resolveSibling(file.getFileName() + ".gz");
+		try {
+			InputStream in = Files.newInputStream(file);
+			OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz));
+			try {
+				byte[] buffer = new byte[65536];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			}
+			finally {
+				in.close();
+				out.close();
+			}
+			Files.delete(file);
+		}
+		catch ( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+}
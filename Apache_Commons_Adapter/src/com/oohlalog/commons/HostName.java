@@ -0,0 +1,108 @@
+package com.oohlalog.commons;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The name of the host that logs are sent from, resolved once per JVM and attached to each batch.
+ * The name is the first of:
+ * <ol>
+ * <li>the name set with the hostName property, or the OOHLALOG_HOSTNAME environment variable,</li>
+ * <li>the name of the local host, looked up on a background thread so that a slow or misconfigured
+ * resolver never holds up logging,</li>
+ * <li>the HOSTNAME or COMPUTERNAME environment variable, while the lookup is still running or if
+ * it failed.</li>
+ * </ol>
+ * The first batch waits up to the timeout for the lookup; later batches use whatever is known, and
+ * pick up the looked up name as soon as it arrives.
+ */
+public class HostName {
+	// Resolved name, or null while it is still being looked up
+	private static volatile String name = null;
+
+	// Name used while the lookup is running, or if it fails
+	private static String fallback = null;
+
+	// Counted down once the lookup is over
+	private static final CountDownLatch resolved = new CountDownLatch(1);
+
+	// Time in ms since the epoch until which get() waits for the lookup.  Read without the lock.
+	private static volatile long deadline = 0;
+
+	private static boolean started = false;
+
+
+	/**
+	 * Starts resolving the host name, unless a logger has already.  Whatever settings the first
+	 * logger has are kept.
+	 *
+	 * @param override the name to use, or null to look it up
+	 * @param timeout the time in ms the first batch waits for the lookup
+	 */
+	protected static synchronized void resolve(String override, long timeout) {
+		if (started) return;
+		started = true;
+
+		if (override == null || override.trim().length() == 0) override = getenv("OOHLALOG_HOSTNAME");
+		if (override != null && override.trim().length() > 0) {
+			name = override.trim();
+			resolved.countDown();
+			return;
+		}
+
+		fallback = getenv("HOSTNAME");
+		if (fallback == null) fallback = getenv("COMPUTERNAME");
+		deadline = System.currentTimeMillis() + timeout;
+		LogControl.daemonThreadFactory("oohlalog-hostname").newThread( new Runnable() {
+			public void run() {
+				try {
+					name = InetAddress.getLocalHost().getHostName();
+				}
+				catch ( Throwable t ) {
+					// Keep the fallback
+				}
+				finally {
+					resolved.countDown();
+				}
+			}
+		}).start();
+	}
+
+
+	/**
+	 * Returns the host name, waiting for the lookup until the timeout given to {@link #resolve} is
+	 * over.
+	 *
+	 * @return the host name, or null if it is not known
+	 */
+	protected static String get() {
+		String resolvedName = name;
+		if (resolvedName != null) return resolvedName;
+		try {
+			resolved.await(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+		}
+		catch ( InterruptedException ie ) {
+			Thread.currentThread().interrupt();
+		}
+		resolvedName = name;
+		return resolvedName != null ? resolvedName : getFallback();
+	}
+
+
+	private static synchronized String getFallback() {
+		return fallback;
+	}
+
+
+	private static String getenv(String variable) {
+		try {
+			String value = System.getenv(variable);
+			return value == null || value.trim().length() == 0 ? null : value.trim();
+		}
+		catch ( SecurityException e ) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.oohlalog.commons;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+
+
+/**
+ * A Transport that posts with the HttpClient of the JDK.  Requests are sent asynchronously, and
+ * complete on the threads that send batches.  One client is shared by every logger, so requests to
+ * an endpoint that speaks HTTP/2 are multiplexed over a single connection, and requests to one that
+ * does not reuse kept-alive HTTP/1.1 connections.  The segments of a body are handed to the client
+ * as they are, direct buffers that the socket writes without a copy.  Unless debugging, response
+ * bodies are thrown away as they arrive, without being buffered.
+ */
+public class HttpClientTransport implements Transport {
+	private static HttpClientTransport instance = null;
+
+	private final HttpClient client;
+
+	// Time in ms allowed for the response to a request, after which it fails
+	private final Duration requestTimeout;
+
+
+	/**
+	 * Returns the transport, creating it with the given timeouts if no logger has yet.
+	 *
+	 * @param connectTimeout the time in ms allowed to open a connection
+	 * @param requestTimeout the time in ms allowed for the response to a request
+	 */
+	protected static synchronized HttpClientTransport getInstance(long connectTimeout, long requestTimeout) {
+		if (instance == null) instance = new HttpClientTransport(connectTimeout, requestTimeout);
+		return instance;
+	}
+
+
+	private HttpClientTransport(long connectTimeout, long requestTimeout) {
+		this.requestTimeout = Duration.ofMillis(Math.max(requestTimeout, 1));
+		client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.connectTimeout(Duration.ofMillis(Math.max(connectTimeout, 1)))
+				.executor(LogControl.getSender())
+				.build();
+	}
+
+
+	public CompletableFuture<Integer> post(URI uri, String contentType, boolean gzip, PayloadBody body, final boolean debug) {
+		HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+				.header("Content-Type", contentType)
+				.timeout(requestTimeout)
+				.POST(HttpRequest.BodyPublishers.fromPublisher(new SegmentPublisher(body), body.getLength()));
+		if (gzip) request.header("Content-Encoding", "gzip");
+
+		HttpResponse.BodyHandler<?> handler = debug ? HttpResponse.BodyHandlers.ofString() : HttpResponse.BodyHandlers.discarding();
+		return client.sendAsync(request.build(), handler).thenApply( new Function<HttpResponse<?>,Integer>() {
+			public Integer apply(HttpResponse<?> response) {
+				if (debug) System.out.println( ">>>>>>>>>>>Received " + response.version() + ": " + response.body() );
+				return response.statusCode();
+			}
+		});
+	}
+
+
+	/**
+	 * Publishes the segments of a body, each subscriber getting buffers of its own so that the
+	 * client can send the body again.
+	 */
+	private static class SegmentPublisher implements Flow.Publisher<ByteBuffer> {
+		private final PayloadBody body;
+
+		SegmentPublisher(PayloadBody body) {
+			this.body = body;
+		}
+
+		public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+			final ByteBuffer[] buffers = body.getBuffers();
+			subscriber.onSubscribe( new Flow.Subscription() {
+				private int next = 0;
+				private long demand = 0;
+				private boolean emitting = false;
+				private boolean done = false;
+
+				public void request(long n) {
+					synchronized (this) {
+						if (done) return;
+						if (n <= 0) {
+							done = true;
+							subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+							return;
+						}
+						demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+						// A subscriber asking for more from onNext is served by the loop already running
+						if (emitting) return;
+						emitting = true;
+					}
+					while (true) {
+						ByteBuffer buffer;
+						synchronized (this) {
+							if (done || demand == 0) {
+								emitting = false;
+								return;
+							}
+							if (next == buffers.length) {
+								done = true;
+								emitting = false;
+								break;
+							}
+							demand--;
+							buffer = buffers[next++];
+						}
+						subscriber.onNext(buffer);
+					}
+					subscriber.onComplete();
+				}
+
+				public synchronized void cancel() {
+					done = true;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package com.oohlalog.commons;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Encodes a batch of log entries as JSON, straight into a {@link PayloadBody}, a few logs at a time
+ * as the sender takes them from the buffer of logs.  There is no map per log, no String of the whole
+ * batch and no array of it: the body is sent as it is.  The JSON is the same as that of
+ * {@link Payload#serialize()}, fields without a value being left out.
+ *
+ * Because the size of the batch is known after each log, a batch is cut before the log that
+ * would make it larger than the limit.  The encoding is kept, and reused by the next call for the
+ * logs it begins with, so adding logs to a batch, or sending it again after it failed, only
+ * encodes the logs that are new.
+ *
+ * The batch is written through a small array into the body, whose segments are given back to the
+ * pool by {@link #clear()} once it has been sent.  An encoder is not thread safe.
+ */
+public class JsonBatchEncoder {
+	private static final byte[] HEAD = bytes("{\"" + Payload.PAYLOAD_LOGS + "\":[");
+	private static final byte[] API_KEY = bytes("],\"apiKey\":");
+	private static final byte[] LEVEL = bytes("\"level\":");
+	private static final byte[] MESSAGE = bytes("\"message\":");
+	private static final byte[] TIMESTAMP = bytes("\"timestamp\":");
+	private static final byte[] HOSTNAME = bytes("\"hostname\":");
+	private static final byte[] CATEGORY = bytes("\"category\":");
+	private static final byte[] DETAILS = bytes("\"details\":");
+	private static final byte[] SEQUENCE = bytes("\"sequence\":");
+	private static final byte[] LOCATION = bytes("\"location\":");
+	private static final byte[] AGENT = bytes("\"agent\":");
+	private static final byte[] HEX = bytes("0123456789abcdef");
+
+	// Encoded batch: the body, and the bytes written after it that are not in it yet
+	private PayloadBody body = null;
+	private final byte[] buffer = new byte[8192];
+	private int size = 0;
+
+	// Logs in the batch, oldest first, with the sequence number each had when it was encoded and
+	// where its encoding ends
+	private LogEntry[] logs = new LogEntry[64];
+	private long[] sequences = new long[64];
+	private int[] ends = new int[64];
+	private int count = 0;
+
+	// Agent and host name the logs of the batch were encoded with
+	private String agent = null;
+	private String hostName = null;
+
+
+	/**
+	 * Encodes a batch of logs, cut before the first log that would make it larger than maxBytes.
+	 * A batch always has at least one log.  Logs at the head of the batch that are the same as
+	 * those of the previous batch are not encoded again.  The result stays valid until the next call,
+	 * or until {@link #clear()}.
+	 *
+	 * @param candidates the logs to send, oldest first
+	 * @param apiKey the api key of the batch
+	 * @param agent the agent of the logs
+	 * @param hostName the host name of logs without one of their own
+	 * @param maxBytes the largest size of the batch
+	 * @return the number of logs at the head of candidates that are in the batch
+	 */
+	public int encode(List<LogEntry> candidates, String apiKey, String agent, String hostName, int maxBytes) {
+		if (body == null) body = new PayloadBody();
+		int reused = 0;
+		if (equal(agent, this.agent) && equal(hostName, this.hostName)) {
+			while (reused < count && reused < candidates.size()
+					&& logs[reused] == candidates.get(reused) && sequences[reused] == candidates.get(reused).getSequence()) {
+				reused++;
+			}
+		}
+		this.agent = agent;
+		this.hostName = hostName;
+
+		// Size of the end of the batch, written after the logs
+		rewind(reused > 0 ? ends[reused - 1] : 0);
+		int mark = position();
+		writeTail(apiKey);
+		int tail = position() - mark;
+
+		// The limit may have come down since the previous batch
+		while (reused > 1 && ends[reused - 1] + tail > maxBytes) {
+			reused--;
+		}
+		Arrays.fill(logs, reused, count, null);
+		count = reused;
+		if (count == 0) {
+			rewind(0);
+			writeRaw(HEAD);
+		}
+		else {
+			rewind(ends[count - 1]);
+		}
+
+		for (int i = count; i < candidates.size(); i++) {
+			LogEntry le = candidates.get(i);
+			int start = position();
+			if (count > 0) writeByte(',');
+			writeLog(le);
+			if (position() + tail > maxBytes && count > 0) {
+				rewind(start);
+				break;
+			}
+			if (count == logs.length) {
+				logs = Arrays.copyOf(logs, count * 2);
+				sequences = Arrays.copyOf(sequences, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+			logs[count] = le;
+			sequences[count] = le.getSequence();
+			ends[count] = position();
+			count++;
+		}
+
+		writeTail(apiKey);
+		flush();
+		return count;
+	}
+
+
+	/**
+	 * Forgets the last batch once it has been sent, giving the segments of its body back to the pool.
+	 */
+	public void clear() {
+		Arrays.fill(logs, 0, count, null);
+		count = 0;
+		size = 0;
+		if (body != null) body.release();
+	}
+
+
+	/**
+	 * Returns the body holding the last encoded batch.  It belongs to the encoder.
+	 */
+	public PayloadBody getBody() {
+		return body;
+	}
+
+
+	/**
+	 * Returns the size in bytes of the last encoded batch.
+	 */
+	public int getSize() {
+		return body != null ? body.getLength() : 0;
+	}
+
+
+	/**
+	 * Returns the number of bytes of the batch written so far.
+	 */
+	private int position() {
+		return body.getLength() + size;
+	}
+
+	/**
+	 * Cuts the batch back to its first position bytes.
+	 */
+	private void rewind(int position) {
+		int written = body.getLength();
+		if (position >= written) {
+			size = position - written;
+		}
+		else {
+			body.truncate(position);
+			size = 0;
+		}
+	}
+
+	/**
+	 * Writes the bytes not yet in the body into it.
+	 */
+	private void flush() {
+		body.write(buffer, 0, size);
+		size = 0;
+	}
+
+
+	private void writeTail(String apiKey) {
+		writeRaw(API_KEY);
+		writeString(apiKey);
+		writeByte('}');
+	}
+
+	private void writeLog(LogEntry le) {
+		writeByte('{');
+		writeRaw(LEVEL);
+		writeString(le.getLevelString());
+		writeField(MESSAGE, le.getMessage());
+		if (le.hasTimeStamp()) {
+			writeByte(',');
+			writeRaw(TIMESTAMP);
+			writeLong(le.getTimeStampMillis());
+		}
+		writeField(HOSTNAME, le.getHostName() != null ? le.getHostName() : hostName);
+		writeField(CATEGORY, le.getCategory());
+		writeField(DETAILS, le.getDetails());
+		if (le.getJvmSequence() >= 0) {
+			writeByte(',');
+			writeRaw(SEQUENCE);
+			writeLong(le.getJvmSequence());
+		}
+		writeField(LOCATION, le.getLocation());
+		writeField(AGENT, agent);
+		writeByte('}');
+	}
+
+	private void writeField(byte[] name, String value) {
+		if (value == null) return;
+		writeByte(',');
+		writeRaw(name);
+		writeString(value);
+	}
+
+	private void writeLong(long value) {
+		ensure(20);
+		if (value < 0) {
+			buffer[size++] = '-';
+			if (value == Long.MIN_VALUE) {
+				writeRaw(bytes("9223372036854775808"));
+				return;
+			}
+			value = -value;
+		}
+		int start = size;
+		do {
+			buffer[size++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		// The digits were written least significant first
+		for (int i = start, j = size - 1; i < j; i++, j--) {
+			byte digit = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = digit;
+		}
+	}
+
+	/**
+	 * Writes a string as a JSON string in UTF-8, straight into the buffer, which is written into the
+	 * body whenever it fills up.
+	 */
+	private void writeString(String s) {
+		if (s == null) {
+			ensure(4);
+			buffer[size++] = 'n';
+			buffer[size++] = 'u';
+			buffer[size++] = 'l';
+			buffer[size++] = 'l';
+			return;
+		}
+		int length = s.length();
+		ensure(1);
+		buffer[size++] = '"';
+		for (int i = 0; i < length; i++) {
+			// At worst a char is escaped in six bytes
+			ensure(6);
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				buffer[size++] = '\\';
+				buffer[size++] = (byte) c;
+			}
+			else if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+				if (c == '\n') {
+					buffer[size++] = '\\';
+					buffer[size++] = 'n';
+				}
+				else if (c == '\r') {
+					buffer[size++] = '\\';
+					buffer[size++] = 'r';
+				}
+				else if (c == '\t') {
+					buffer[size++] = '\\';
+					buffer[size++] = 't';
+				}
+				else {
+					buffer[size++] = '\\';
+					buffer[size++] = 'u';
+					buffer[size++] = HEX[(c >> 12) & 0xf];
+					buffer[size++] = HEX[(c >> 8) & 0xf];
+					buffer[size++] = HEX[(c >> 4) & 0xf];
+					buffer[size++] = HEX[c & 0xf];
+				}
+			}
+			else if (c < 0x80) {
+				buffer[size++] = (byte) c;
+			}
+			else if (c < 0x800) {
+				buffer[size++] = (byte) (0xc0 | (c >> 6));
+				buffer[size++] = (byte) (0x80 | (c & 0x3f));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+			}
+			else {
+				// A lone surrogate is written as is, like a character in the BMP
+				buffer[size++] = (byte) (0xe0 | (c >> 12));
+				buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buffer[size++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		ensure(1);
+		buffer[size++] = '"';
+	}
+
+	private void writeByte(char c) {
+		ensure(1);
+		buffer[size++] = (byte) c;
+	}
+
+	private void writeRaw(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, size, bytes.length);
+		size += bytes.length;
+	}
+
+	private void ensure(int bytes) {
+		if (size + bytes > buffer.length) flush();
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
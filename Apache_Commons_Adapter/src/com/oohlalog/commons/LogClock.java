@@ -0,0 +1,135 @@
+package com.oohlalog.commons;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The source of the time stamps of logs.  There are three:
+ * <ul>
+ * <li>system reads System.currentTimeMillis() for every log.</li>
+ * <li>coarse reads a time kept by a background thread, which updates it every resolution ms, so
+ * that logging costs a volatile read.  Time stamps are up to resolution ms late.</li>
+ * <li>precise adds System.nanoTime() to the wall clock time, so that time stamps never go
+ * backwards, even when the wall clock is set back, and logs of one thread are in order.  The
+ * wall clock is read again every second, and the clock steps forward to it when it has fallen
+ * behind, so it keeps up with a wall clock that NTP keeps in time.  It is never set back, so
+ * it stays ahead of a wall clock that is set back, until that catches up.</li>
+ * </ul>
+ * Clocks are shared by every logger of the JVM, as is the sequence number that orders logs exactly
+ * when their time stamps are the same.
+ */
+public abstract class LogClock {
+	// Number of the next log of the JVM
+	private static final AtomicLong sequence = new AtomicLong();
+
+	// Shared clocks, created when first used
+	private static final LogClock SYSTEM = new SystemClock();
+	private static LogClock precise = null;
+	private static CoarseClock coarse = null;
+
+
+	/**
+	 * Returns the clock with a name, or the system clock if there is none with that name.
+	 *
+	 * @param name system, coarse or precise
+	 * @param resolution the time in ms between updates of the coarse clock.  The coarse clock keeps
+	 *                   the resolution it was first created with.
+	 * @return the clock
+	 */
+	protected static synchronized LogClock get(String name, long resolution) {
+		if ("coarse".equalsIgnoreCase(name)) {
+			if (coarse == null) coarse = new CoarseClock(resolution);
+			return coarse;
+		}
+		if ("precise".equalsIgnoreCase(name)) {
+			if (precise == null) precise = new PreciseClock();
+			return precise;
+		}
+		return SYSTEM;
+	}
+
+
+	/**
+	 * Returns the number of the next log of the JVM.  Numbers increase by one from one log to the
+	 * next, whichever logger it is logged with.
+	 */
+	protected static long nextSequence() {
+		return sequence.getAndIncrement();
+	}
+
+
+	/**
+	 * Returns the current time in ms since the epoch.
+	 */
+	protected abstract long currentTimeMillis();
+
+
+	private static class SystemClock extends LogClock {
+		@Override
+		protected long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	}
+
+
+	private static class CoarseClock extends LogClock implements Runnable {
+		private final long resolutionNanos;
+		private volatile long now = System.currentTimeMillis();
+
+		CoarseClock(long resolution) {
+			resolutionNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(resolution, 1));
+			LogControl.daemonThreadFactory("oohlalog-clock").newThread(this).start();
+		}
+
+		public void run() {
+			while (true) {
+				LockSupport.parkNanos(resolutionNanos);
+				now = System.currentTimeMillis();
+			}
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+	}
+
+
+	private static class PreciseClock extends LogClock {
+		// Time in ns between reads of the wall clock
+		private static final long SYNC_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+		// Wall clock time in ns at System.nanoTime() == 0.  It only ever grows, which keeps the
+		// clock from going backwards.
+		private final AtomicLong offsetNanos = new AtomicLong(Long.MIN_VALUE);
+
+		// System.nanoTime() at which the wall clock is next read
+		private volatile long nextSyncNanos;
+
+		PreciseClock() {
+			sync(System.nanoTime());
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			long now = System.nanoTime();
+			if (now - nextSyncNanos >= 0) sync(now);
+			return TimeUnit.NANOSECONDS.toMillis(now + offsetNanos.get());
+		}
+
+		/**
+		 * Reads the wall clock, and steps the clock forward to it if it is behind.  Threads that
+		 * sync at once agree on the larger offset.
+		 */
+		private void sync(long now) {
+			nextSyncNanos = now + SYNC_NANOS;
+			long offset = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - now;
+			long current = offsetNanos.get();
+			while (offset > current && !offsetNanos.compareAndSet(current, offset)) {
+				current = offsetNanos.get();
+			}
+		}
+	}
+}
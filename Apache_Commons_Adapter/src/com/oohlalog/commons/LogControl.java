@@ -1,21 +1,67 @@
 package com.oohlalog.commons;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class LogControl {
-	// The time interval between automatic flushes of logs
-	private long timeBuffer;
+	// Buffers a lane can flush
+	private static final int BULK = 0;
+	private static final int PRIORITY = 1;
+	private static final int DATAGRAMS = 2;
+
+	// Number of passes that encode a batch of threshold logs into the open batch as they arrive
+	private static final int ENCODE_PASSES = 4;
+
+	// Number of threads sending the remaining logs at shutdown
+	private static final int SHUTDOWN_THREADS = 4;
+
+	// Encoders of the threads sending the remaining logs at shutdown, reused from one batch to the next
+	private static final ThreadLocal<BinaryBatchEncoder> drainEncoder = new ThreadLocal<BinaryBatchEncoder>() {
+		protected BinaryBatchEncoder initialValue() {
+			return new BinaryBatchEncoder();
+		}
+	};
+	private static final ThreadLocal<JsonBatchEncoder> drainJson = new ThreadLocal<JsonBatchEncoder>() {
+		protected JsonBatchEncoder initialValue() {
+			return new JsonBatchEncoder();
+		}
+	};
+
+	// Every LogControl in this JVM, so that the shutdown hook can send what they still hold
+	private static final List<LogControl> controls = new CopyOnWriteArrayList<LogControl>();
+	private static Thread shutdownHook = null;
+
+	// Runs the timed work of every logger
+	private static ScheduledExecutorService scheduler = null;
+
+	// Sends the batches of every logger
+	private static ExecutorService sender = null;
+
+	// Time in ms a batch stays open for more logs after its first log
+	private long linger;
 	// The time interval between automatic flushes of statistical data
 	private long statsInterval;
-	// Time of last flush
-	private long lastFlush = System.currentTimeMillis();
-	// Time of last failed flush
-	private long lastFailedFlush = System.currentTimeMillis();
+	// The time interval between samples of statistical data, which are aggregated at each flush
+	private long statsSampleInterval;
 	// Time to wait between failed flushes
 	private long failedFlushWait = 2000;
-	// Is a flushing process currently happening? 
-	private final AtomicBoolean flushing = new AtomicBoolean( false );
+	// Flushes the bulk logs, the priority logs, and the logs sent as datagrams
+	private final Lane bulk = new Lane( BULK );
+	private final Lane priority = new Lane( PRIORITY );
+	private final Lane datagrams = new Lane( DATAGRAMS );
 	// Maximum size of the deque before we automatically flush it
 	private int threshold;
 
@@ -28,164 +74,428 @@ public class LogControl {
 	 * 
 	 * @param logger the OohLaLogLogger that this LogControl is tied to
 	 * @param threshold the amount of logs to be buffered before a flush
-	 * @param timeBuffer the amount of time to wait before flushes
+	 * @param linger the amount of time a batch waits for more logs after its first log
 	 * @param statsInterval the amount of time to wait before gathering and sending usage statistics
+	 * @param statsSampleInterval the amount of time to wait between samples of usage statistics
 	 */
-	public LogControl(OohLaLogLogger logger, int threshold, long timeBuffer, long statsInterval) {
+	public LogControl(OohLaLogLogger logger, int threshold, long linger, long statsInterval, long statsSampleInterval) {
 		this.logger = logger;
 		this.threshold = threshold;
-		this.timeBuffer = timeBuffer;
+		this.linger = linger;
 		this.statsInterval = statsInterval;
+		this.statsSampleInterval = Math.min(statsSampleInterval, statsInterval);
 	}
 
 
 	/**
-	 * Initializes the Log Control object.  It starts the thread that checks for, and handles three events:
-	 * 1. Event: Deque of logs reaches threshold	Action: Flush threshold value of logs to OLL server
-	 * 2. Event: Log timer goes off					Action: Flush all logs in the deque to the OLL server
-	 * 3. Event: Stats timer goes off				Action: Flush stats to the OLL server
+	 * Initializes the Log Control object.  Logs are flushed on two events:
+	 * 1. Event: A batch has lingered linger ms since its first log	Action: Flush up to threshold logs to the OLL server
+	 * 2. Event: The buffer reaches threshold						Action: Flush threshold logs to the OLL server at once
+	 * Stats are flushed at the set interval by the StatsCollector.
 	 */
 	protected void init() {
-		// Starts the thread that checks to see if the size of the deque is greater than 150
-		startThresholdCheck();
-		
+		// Registers the pipeline MBean now, so that the first log() does not pay for starting JMX
+		PipelineStats.getInstance();
+
+		// Sends the logs still buffered when the JVM exits
+		controls.add(this);
+		registerShutdownHook();
+
 		// Only start the stats thread if the user specified
 		if (this.logger.getShowStats())
 			startStatsTimer();
-		
-		// Only start the flush timer if there is something in the deque.
+
+		// Logs buffered before now still need a flush
 		if (this.logger.getLogEntryBuffer().size() > 0)
-			startFlushTimer();
+			logAdded();
 	}
-	
-	
+
+
 	/**
-	 * Flushes the deque of log entries if the deque is of size greater than buffer threshold.
+	 * Schedules a flush after a log was added to the bulk buffer.
 	 */
-	protected void startThresholdCheck() {
-		final OohLaLogLogger logger = this.logger;
-		Thread t = new Thread( new Runnable() {
-			public void run() {
-				while (true) {
-					LogEntryBuffer buffer = logger.getLogEntryBuffer();
-					if ( (buffer.size() >= threshold) && !flushing.get() && 
-							(System.currentTimeMillis() - lastFailedFlush > failedFlushWait) ) {
-						if (logger.getDebug()) System.out.println( ">>>Above Threshold" );
-						flush(threshold);		
-					}
-				}
-			}
-		});
-		// If the JVM exits, we don't want this thread to prevent us from doing so as well
-		t.setDaemon(true);
-		t.start();
+	protected void logAdded() {
+		bulk.logAdded();
+	}
+
+
+	/**
+	 * Schedules a flush after a log was added to the buffer of logs sent as datagrams.
+	 */
+	protected void datagramLogAdded() {
+		datagrams.logAdded();
 	}
 
-	
+
 	/**
-	 * Starts the timer that will cause logs to be flushed at the set interval.  This thread runs to completion
-	 * when the deque is empty and get re-instantiated on first add to the deque.  This keeps the thread from running
-	 * forever while making sure that even when JVM finishes, all remaining logs are logged.
+	 * Schedules a flush after a log was added to the priority buffer.  It lingers for priorityLinger
+	 * ms, so that a burst of errors goes out as one request, and has a lane of its own, so priority
+	 * logs are never held up behind a flush of bulk logs.
 	 */
-	protected void startFlushTimer() {
-		final OohLaLogLogger logger = this.logger;
-		Thread t = new Thread( new Runnable() {
+	protected void priorityLogAdded() {
+		priority.logAdded();
+	}
+
+
+	/**
+	 * Flushes a buffer in batches.  The first log of a batch sets its deadline, linger ms later, on
+	 * the scheduler shared by every logger; logs added before the deadline join the batch.  Once
+	 * the buffer reaches threshold, the batch is sent at once.  Nothing is scheduled while the
+	 * buffer is empty, so an idle logger costs no wakeups at all.
+	 *
+	 * A flush only starts sending batches, up to maxInFlight of them at once, and each is done in a
+	 * callback.  When a batch fails, the lane waits failedFlushWait ms before sending anything.
+	 *
+	 * In between, each time a quarter of threshold logs has arrived, a pass on the sender encodes
+	 * them into the open batch, so a flush finds its batch encoded already.
+	 */
+	private class Lane implements Runnable {
+		// Which buffer the lane flushes
+		private final int kind;
+		// Is a flush scheduled or running?  At most one is.
+		private final AtomicBoolean pending = new AtomicBoolean( false );
+		// Has the pending flush been brought forward because the buffer reached the threshold?
+		private final AtomicBoolean expedited = new AtomicBoolean( false );
+		// Is a flush running?
+		private final AtomicBoolean flushing = new AtomicBoolean( false );
+		// Is the flush waiting for a batch in flight to be done before it sends more?
+		private final AtomicBoolean waitingForBatch = new AtomicBoolean( false );
+		// Deadline of the pending flush, cancelled if the flush starts before it
+		private volatile ScheduledFuture<?> deadline = null;
+		// Time in ms since the epoch before which no batch is sent, after one failed
+		private volatile long retryAt = 0;
+		// Is a pass encoding logs into the open batch scheduled or running?
+		private final AtomicBoolean encoding = new AtomicBoolean( false );
+
+		// Encodes the logs that arrived into the open batch
+		private final Runnable encode = new Runnable() {
 			public void run() {
-				// If appender closes, let thread die
-				while ( logger.getLogEntryBuffer().size() != 0 ) {
-					if (logger.getDebug()) System.out.println( ">>Timer Cycle" );
-
-					// If timeout, flush deque
-					if ( (System.currentTimeMillis() - lastFlush > timeBuffer) && !flushing.get() ) {
-						if (logger.getDebug()) System.out.println( ">>>Flushing from timer expiration" );
-						flush(Integer.MAX_VALUE );
-						
-						// This thread is done after flushing
-						break;
-					}
+				try {
+					getBuffer().encodePending(logger, threshold);
+				}
+				finally {
+					encoding.set(false);
+				}
+			}
+		};
+
+		// Called when a batch sent by the lane is done
+		private final Consumer<Boolean> batchDone = new Consumer<Boolean>() {
+			public void accept(Boolean success) {
+				if (success) {
+					PipelineStats.getInstance().flushSucceeded();
+				}
+				else {
+					PipelineStats.getInstance().flushFailed(failedFlushWait);
+					retryAt = System.currentTimeMillis() + failedFlushWait;
+				}
+				if (waitingForBatch.compareAndSet(true, false)) {
+					getSender().execute(Lane.this);
+				}
+				else if (!success && pending.compareAndSet(false, true)) {
+					// Reaching the threshold does not bring the retry forward
+					expedited.set(true);
+					deadline = schedule(Lane.this, failedFlushWait);
+				}
+			}
+		};
+
+		Lane(int kind) {
+			this.kind = kind;
+		}
+
+		private LogEntryBuffer getBuffer() {
+			switch (kind) {
+				case PRIORITY: return logger.getPriorityBuffer();
+				case DATAGRAMS: return logger.getDatagramBuffer();
+				default: return logger.getLogEntryBuffer();
+			}
+		}
+
+		void logAdded() {
+			// Plain reads first, so that logging into a batch that is already scheduled writes nothing shared
+			if (!pending.get() && pending.compareAndSet(false, true)) {
+				if (getBuffer().unbatchedSize() >= threshold) {
+					expedited.set(true);
+					getSender().execute(this);
+				}
+				else {
+					deadline = schedule(this, kind == PRIORITY ? logger.getPriorityLinger() : linger);
+				}
+			}
+			else if (!expedited.get() && getBuffer().unbatchedSize() >= threshold && !flushing.get()
+					&& expedited.compareAndSet(false, true)) {
+				if (logger.getDebug()) System.out.println( ">>>Above Threshold" );
+				getSender().execute(this);
+			}
+			if (kind != DATAGRAMS && !encoding.get() && getBuffer().unencodedSize() >= Math.max(threshold / ENCODE_PASSES, 1)
+					&& encoding.compareAndSet(false, true)) {
+				getSender().execute(encode);
+			}
+		}
 
-					// Wait for a time interval
-					try {
-						Thread.sleep(timeBuffer);
+		/**
+		 * Sends the logs in batches of threshold, for as long as full batches are waiting, or every
+		 * log of the priority buffer.  The logs left after that arrived while the batches were being
+		 * taken, and linger from now.
+		 */
+		public void run() {
+			// The lingering deadline and the threshold can both start a flush; only one runs
+			if (!flushing.compareAndSet(false, true)) return;
+			ScheduledFuture<?> pendingDeadline = deadline;
+			if (pendingDeadline != null) pendingDeadline.cancel(false);
+			LogEntryBuffer buffer = getBuffer();
+			long wait = 0;
+			boolean full = false;
+			try {
+				if (kind == DATAGRAMS) {
+					while (buffer.size() > 0) {
+						if (logger.getDebug()) System.out.println( ">>>Sending datagrams" );
+						if (!buffer.flushDatagrams(logger, threshold)) break;
+						PipelineStats.getInstance().flushSucceeded();
+						if (buffer.size() < threshold) break;
 					}
-					catch ( InterruptedException ie ) {
-						// Ignore, and continue
+				}
+				else {
+					while (true) {
+						wait = retryAt - System.currentTimeMillis();
+						if (wait > 0) break;
+						if (!buffer.canSend(logger)) {
+							full = true;
+							break;
+						}
+						if (logger.getDebug()) System.out.println( kind == PRIORITY ? ">>>Flushing priority logs" : ">>>Flushing bulk logs" );
+						CompletableFuture<Boolean> sent = buffer.sendBatch(logger, threshold);
+						if (sent == null) break;
+						sent.thenAccept(batchDone);
+						if (kind != PRIORITY && buffer.unbatchedSize() < threshold && !buffer.hasBatchWaiting()) break;
 					}
 				}
 			}
-		});
-//		t.setDaemon(true);
-		t.start();
+			finally {
+				flushing.set(false);
+			}
+
+			if (wait > 0) {
+				// A batch failed, so the flush waits until it can be sent again
+				expedited.set(true);
+				deadline = schedule(this, wait);
+				return;
+			}
+			if (full) {
+				// The next batch to be done runs the flush again, unless one was done since
+				expedited.set(true);
+				waitingForBatch.set(true);
+				if (buffer.canSend(logger) && waitingForBatch.compareAndSet(true, false)) getSender().execute(this);
+				return;
+			}
+			expedited.set(false);
+			// Logs added from here on schedule a flush of their own
+			pending.set(false);
+			if (buffer.unbatchedSize() > 0 || (kind != DATAGRAMS && buffer.hasBatchWaiting())) logAdded();
+		}
+	}
+
+
+	/**
+	 * Runs a flush on the sender once a delay is over.  The scheduler only hands it over, so that a
+	 * slow send never holds up the deadlines of other loggers.
+	 */
+	private static ScheduledFuture<?> schedule(final Runnable flush, long delay) {
+		return getScheduler().schedule( new Runnable() {
+			public void run() {
+				getSender().execute(flush);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
 	}
 
 
 	/**
-	 * Starts the timer that will cause statistics to be flushed at the set interval.
+	 * Starts collecting statistics and flushing them at the set interval, unless another logger
+	 * already has: statistics are those of the JVM, so they are collected once however many loggers
+	 * there are.
 	 */
 	protected void startStatsTimer() {
-		final OohLaLogLogger logger = this.logger;
-		Thread t = new Thread( new Runnable() {
+		StatsCollector.start(logger, statsInterval, statsSampleInterval);
+	}
+
+
+	/**
+	 * Returns the scheduler shared by the timed work of every logger, started on first use.  Its
+	 * single thread is a daemon, so it never keeps the JVM alive.
+	 */
+	protected static synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, daemonThreadFactory("oohlalog-scheduler"));
+			executor.setRemoveOnCancelPolicy(true);
+			scheduler = executor;
+		}
+		return scheduler;
+	}
+
+
+	/**
+	 * Returns the executor that sends the batches of every logger, started on first use.  Its
+	 * threads are daemons, and end once they have been idle for a minute.
+	 */
+	protected static synchronized ExecutorService getSender() {
+		if (sender == null) {
+			sender = Executors.newCachedThreadPool(daemonThreadFactory("oohlalog-send"));
+		}
+		return sender;
+	}
+
+
+	/**
+	 * Registers the hook that sends the remaining logs of every logger when the JVM exits.  Only
+	 * one hook is registered however many loggers there are.
+	 */
+	private static synchronized void registerShutdownHook() {
+		if (shutdownHook != null) return;
+		shutdownHook = new Thread( new Runnable() {
 			public void run() {
-				// If appender closes, let thread die
-				while (true ) {
-					if (logger.getShowStats()) {
-						if (logger.getDebug()) System.out.println( ">>Stats Timer" );
-						Map<String,Double> metrics = StatsUtils.getStats(logger);
-						StatsPayload pl= new StatsPayload.Builder()
-						.metrics(metrics)
-						.authToken(logger.getAuthToken())
-						.host(logger.getHost())
-						.agent(logger.getAgent())
-						.path(logger.getStatsPath())
-						.port(logger.getPort())
-						.secure(logger.getSecure())
-						.debug(logger.getDebug())
-						.build();
-						StatsPayload.send( pl );
-					}
+				shutdown();
+			}
+		}, "oohlalog-shutdown");
+		try {
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+		catch ( IllegalStateException e ) {
+			// The JVM is already shutting down
+		}
+	}
 
-					// Sleep the thread
-					try {
-						Thread.sleep(statsInterval);
-					}
-					catch ( InterruptedException ie ) {
-						// Ignore, and continue
+
+	/**
+	 * Stops every logger from accepting logs, then sends everything still buffered, compressed if
+	 * configured, over several connections at once.  Gives up once the longest shutdownTimeout of
+	 * any logger has passed, so that a slow or unreachable server cannot hold up the exit.
+	 */
+	protected static void shutdown() {
+		long timeout = 0;
+		// Stop intake first, so that the buffers cannot grow while they are drained
+		for (LogControl control : controls) {
+			control.logger.getPriorityBuffer().close();
+			control.logger.getLogEntryBuffer().close();
+			if (control.logger.getDatagramBuffer() != null) control.logger.getDatagramBuffer().close();
+			timeout = Math.max(timeout, control.logger.getShutdownTimeout());
+		}
+		long deadline = System.currentTimeMillis() + timeout;
+
+		final ExecutorService executor = Executors.newFixedThreadPool(SHUTDOWN_THREADS, daemonThreadFactory("oohlalog-drain"));
+		// Counts the drains and batches not finished yet.  Each drain adds its batches before it finishes.
+		final AtomicInteger outstanding = new AtomicInteger(controls.size());
+		final CountDownLatch done = new CountDownLatch(1);
+		if (controls.isEmpty()) done.countDown();
+		for (final LogControl control : controls) {
+			executor.execute( new Runnable() {
+				public void run() {
+					control.drainDatagrams();
+					List<List<LogEntry>> batches = control.drainBatches();
+					outstanding.addAndGet(batches.size());
+					for (final List<LogEntry> batch : batches) {
+						executor.execute( new Runnable() {
+							public void run() {
+								control.sendBatch(batch);
+								if (outstanding.decrementAndGet() == 0) done.countDown();
+							}
+						});
 					}
+					if (outstanding.decrementAndGet() == 0) done.countDown();
 				}
+			});
+		}
+
+		try {
+			if (!done.await(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS)) {
+				System.err.println("OohLaLog: gave up sending buffered logs after " + timeout + " ms at shutdown");
 			}
-		});
+		}
+		catch ( InterruptedException ie ) {
+			// Exit without waiting any longer
+		}
+		executor.shutdownNow();
+		FileSink.closeAll(deadline);
+	}
+
 
-		// If the JVM exits, we don't want this thread to prevent us from doing so as well
-		t.setDaemon(true);
-		t.start();
+	/**
+	 * Removes every log from the buffers, split into batches of at most threshold logs.  Priority
+	 * logs come first, so that they are the first sent.
+	 */
+	private List<List<LogEntry>> drainBatches() {
+		List<List<LogEntry>> batches = new ArrayList<List<LogEntry>>();
+		for (LogEntryBuffer buffer : new LogEntryBuffer[] {logger.getPriorityBuffer(), logger.getLogEntryBuffer()}) {
+			List<LogEntry> logs = buffer.drain();
+			for (int i = 0; i < logs.size(); i += threshold) {
+				batches.add(logs.subList(i, Math.min(i + threshold, logs.size())));
+			}
+		}
+		return batches;
 	}
 
 
 	/**
-	 * Flush at most amtToFlush items from the deque.
-	 * 
-	 * @param maxAmtToFlush the maximum amount of log entries to flush from buffer
+	 * Removes every log from the buffer of logs sent as datagrams, and sends them.
 	 */
-	protected void flush(final int maxAmtToFlush ) {
-		final OohLaLogLogger logger = this.logger;
-		if (logger.getDebug()) System.out.println( ">>>>>>Flushing Deque Completely" );
-		flushing.set( true );
-		Thread t = new Thread( new Runnable() {
-			public void run() {
-				boolean success = logger.getLogEntryBuffer().flushLogEntryBuffer(logger, maxAmtToFlush);
-				// Payload successfully delivered so we can remove the logs that we already sent.
-				if (success) {
-					lastFlush = System.currentTimeMillis();
+	private void drainDatagrams() {
+		LogEntryBuffer buffer = logger.getDatagramBuffer();
+		if (buffer == null) return;
+		List<LogEntry> logs = buffer.drain();
+		for (int i = 0; i < logs.size(); i += threshold) {
+			List<LogEntry> batch = logs.subList(i, Math.min(i + threshold, logs.size()));
+			logger.getDatagramSink().send(batch, logger.getAuthToken(), logger.getAgent(), logger.getHostName());
+		}
+	}
+
+
+	/**
+	 * Sends a batch of logs drained at shutdown.  They cannot be put back, so a batch that fails is
+	 * dropped.  Json batches are cut at maxBatchBytes, like those of a flush, and sent one after the other.
+	 */
+	private void sendBatch(List<LogEntry> batch) {
+		// Batches are sent in parallel, so each drain thread has encoders of its own
+		boolean binary = "binary".equalsIgnoreCase(logger.getWireFormat()) && !Payload.isBinaryRejected();
+		BinaryBatchEncoder encoder = binary ? drainEncoder.get() : null;
+		JsonBatchEncoder json = drainJson.get();
+		while (!batch.isEmpty()) {
+			List<LogEntry> logs = batch;
+			try {
+				if (encoder == null) {
+					int count = json.encode(batch, logger.getAuthToken(), logger.getAgent(), logger.getHostName(), logger.getMaxBatchBytes());
+					logs = batch.subList(0, count);
+				}
+				if (logger.getEndpointPool().send(LogEntryBuffer.buildPayload(logger, logs, encoder, json))) {
+					PipelineStats.getInstance().batchSent(logs.size());
 				}
-				
 				else {
-					lastFailedFlush = System.currentTimeMillis();
+					PipelineStats.getInstance().batchFailed(logs.size());
+					for (LogEntry le : logs) {
+						PipelineStats.getInstance().entriesDropped(le.getLevel(), 1);
+					}
 				}
-				flushing.set( false );
-				return;
 			}
-		});
-		t.start();
+			finally {
+				// The batch is not retried, so its body goes back to the pool
+				json.clear();
+			}
+			batch = batch.subList(logs.size(), batch.size());
+		}
+	}
+
+
+	/**
+	 * Returns a factory of daemon threads, so that the threads of the library never keep the JVM alive.
+	 */
+	protected static ThreadFactory daemonThreadFactory(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
 	}
 
 }
@@ -27,11 +27,21 @@ public class LogEntry {
 	private String message;
 	private String logName;
 	private String logShortName;
-	private Long timeStamp;
+	private long timeStamp;
+	private boolean hasTimeStamp;
 	private String hostName;
 	private String details;
 	private String category;
 	private String levelString;
+
+	// Order in which the log was added to its buffer
+	private long sequence;
+
+	// Number of the log among every log of the JVM, or -1 if it has none
+	private long jvmSequence = -1;
+
+	// Frame of the application the log was logged from, or null if it was not captured
+	private StackWalker.StackFrame caller;
 	
 
 	/**
@@ -46,6 +56,32 @@ public class LogEntry {
 	 * @param category the category that this log falls under
 	 */
 	public LogEntry(int level, String message, String logName, String logShortName, Long timeStamp, String hostName, String details, String category)
+	{
+		this.level = level;
+		this.message = message;
+		this.levelString = levelNames[level - 1];
+		this.logName = logName;
+		this.logShortName = logShortName;
+		this.timeStamp = timeStamp == null ? 0 : timeStamp;
+		this.hasTimeStamp = timeStamp != null;
+		this.hostName = hostName;
+		this.details = details;
+		this.category = category;
+	}
+
+
+	/**
+	 * Constructor that creates a Log Entry object with a time stamp, without boxing it.
+	 * @param level the level of the Log Entry
+	 * @param message the message of the Log Entry
+	 * @param logName the full name of the Logger
+	 * @param logShortName the shortened name of the Logger
+	 * @param timeStamp the time this log was sent
+	 * @param hostName the name of the hose this log was sent from 
+	 * @param details details about this log
+	 * @param category the category that this log falls under
+	 */
+	public LogEntry(int level, String message, String logName, String logShortName, long timeStamp, String hostName, String details, String category)
 	{
 		this.level = level;
 		this.message = message;
@@ -53,12 +89,63 @@ public class LogEntry {
 		this.logName = logName;
 		this.logShortName = logShortName;
 		this.timeStamp = timeStamp;
+		this.hasTimeStamp = true;
 		this.hostName = hostName;
 		this.details = details;
 		this.category = category;
 	}
 
 
+	/**
+	 * Constructor that creates an empty Log Entry, to be filled with {@link #set}.  Used for the
+	 * slots of a {@link RingLogEntryBuffer}, which are reused from one log to the next.
+	 */
+	protected LogEntry() {
+	}
+
+
+	/**
+	 * Replaces every field of this Log Entry, as the constructor sets them, without boxing the
+	 * time stamp.
+	 */
+	protected void set(int level, String message, String logName, String logShortName, long timeStamp, String hostName, String details, String category, long jvmSequence, StackWalker.StackFrame caller) {
+		this.level = level;
+		this.message = message;
+		this.levelString = levelNames[level - 1];
+		this.logName = logName;
+		this.logShortName = logShortName;
+		this.timeStamp = timeStamp;
+		this.hasTimeStamp = true;
+		this.hostName = hostName;
+		this.details = details;
+		this.category = category;
+		this.jvmSequence = jvmSequence;
+		this.caller = caller;
+	}
+
+
+	/**
+	 * Returns a copy of this Log Entry that does not change when this one is reused.
+	 */
+	protected LogEntry copy() {
+		LogEntry copy = new LogEntry();
+		copy.level = level;
+		copy.message = message;
+		copy.levelString = levelString;
+		copy.logName = logName;
+		copy.logShortName = logShortName;
+		copy.timeStamp = timeStamp;
+		copy.hasTimeStamp = hasTimeStamp;
+		copy.hostName = hostName;
+		copy.details = details;
+		copy.category = category;
+		copy.sequence = sequence;
+		copy.jvmSequence = jvmSequence;
+		copy.caller = caller;
+		return copy;
+	}
+
+
 	public int getLevel() {
 		return level;
 	}
@@ -85,6 +172,22 @@ public class LogEntry {
 
 
 	public Long getTimeStamp() {
+		return hasTimeStamp ? Long.valueOf(timeStamp) : null;
+	}
+
+
+	/**
+	 * Returns whether the log has a time stamp, so that it can be read with {@link #getTimeStampMillis()}.
+	 */
+	protected boolean hasTimeStamp() {
+		return hasTimeStamp;
+	}
+
+
+	/**
+	 * Returns the time stamp without boxing it, or 0 if the log has none.
+	 */
+	protected long getTimeStampMillis() {
 		return timeStamp;
 	}
 
@@ -100,5 +203,47 @@ public class LogEntry {
 	
 	public String getCategory() {
 		return category;
-	}	
+	}
+
+
+	protected long getSequence() {
+		return sequence;
+	}
+
+
+	protected void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+
+	/**
+	 * Returns the number of the log among every log of the JVM, or -1 if it has none.
+	 */
+	protected long getJvmSequence() {
+		return jvmSequence;
+	}
+
+
+	protected void setJvmSequence(long jvmSequence) {
+		this.jvmSequence = jvmSequence;
+	}
+
+
+	/**
+	 * Returns where in the application the log was logged from, as class.method(file:line), or
+	 * null if that was not captured.
+	 */
+	protected String getLocation() {
+		return CallerLocation.render(caller);
+	}
+
+
+	protected StackWalker.StackFrame getCaller() {
+		return caller;
+	}
+
+
+	protected void setCaller(StackWalker.StackFrame caller) {
+		this.caller = caller;
+	}
 }
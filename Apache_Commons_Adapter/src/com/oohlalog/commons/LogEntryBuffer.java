@@ -2,130 +2,617 @@ package com.oohlalog.commons;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
 
 
 /**
- * This class is mostly a wrapper for a Queue.  It's purpose is to provide thread safe access
- * to the buffer holding all of the logs.
+ * The buffer holding all of the logs of a logger until they are sent.  Its purpose is to provide
+ * thread safe access to them: a subclass decides how logs are held and what happens when the
+ * buffer is full, and this class sends them in batches.
+ *
+ * Adding a log takes no lock.  Logs are taken out of the buffer into batches while holding the
+ * flush lock, so that no log is sent twice, but the lock is not held while a batch is sent, and
+ * several batches can be in flight at once.  A log keeps its room in the buffer until the batch it
+ * is in has been delivered.
+ *
+ * As logs arrive, the sender takes them into an open batch and encodes them there, so that when
+ * the batch is flushed only the end of its envelope is left to write.  The batch is closed once it
+ * holds threshold logs, or before the log that would make it larger than maxBatchBytes.
+ *
+ * @see QueueLogEntryBuffer
+ * @see RingLogEntryBuffer
  */
-public class LogEntryBuffer {
+public abstract class LogEntryBuffer {
 	// Maximum allowed size of the buffer
 	private final int maxBuffer;
 
-	// Holds all of the Logs 
-	private Queue<LogEntry> deque; 
+	// What to do with a new log when the buffer is full
+	private final OverflowPolicy policy;
+
+	// Time in ms the BLOCK policy waits for room
+	private final long overflowTimeout;
+
+	// Logger whose settings CALLER_RUNS sends with, or null
+	private final OohLaLogLogger logger;
+
+	// Held while logs are sent or drained
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	// Set at shutdown, after which no more logs are accepted
+	private volatile boolean closed = false;
+
+	// Batches that failed to send, kept encoded to be sent again before any other, oldest first
+	private final ArrayDeque<Batch> retries = new ArrayDeque<Batch>();
+
+	// Batches taken from the buffer that have not been sent yet, oldest first
+	private final ArrayDeque<Batch> ready = new ArrayDeque<Batch>();
+
+	// Batch logs are encoded into as they arrive, until it is flushed or full, or null
+	private Batch open = null;
+
+	// Batches done with, kept with their encoders for the next ones
+	private final ArrayDeque<Batch> spare = new ArrayDeque<Batch>();
+
+	// Number of batches being sent by sendBatch, which are limited to maxInFlight, and by
+	// flushLogEntryBuffer, which are not.  Only used while holding the flush lock.
+	private int inFlight = 0;
+	private int flushesInFlight = 0;
+
+	// Signalled whenever a batch is done sending
+	private final Condition done = flushLock.newCondition();
+
+	// Number of logs in batches that were closed and have not been delivered, and in the open
+	// batch.  Only written while holding the flush lock.
+	private volatile int batched = 0;
+	private volatile int encoded = 0;
+
 
-	
 	/**
-	 * Constructor that creates a LogEntry Buffer with a maximum size.
-	 * 
+	 * Constructor that creates a LogEntry Buffer with a maximum size and an overflow policy.
+	 *
 	 * @param maxBuffer the maximum size of the LogEntry Buffer
+	 * @param policy what to do with a new log when the buffer is full
+	 * @param overflowTimeout the time in ms the BLOCK policy waits for room
+	 * @param logger the logger whose settings the CALLER_RUNS policy sends with
 	 */
-	public LogEntryBuffer(int maxBuffer) {
+	protected LogEntryBuffer(int maxBuffer, OverflowPolicy policy, long overflowTimeout, OohLaLogLogger logger) {
 		this.maxBuffer = maxBuffer;
-		deque = new ArrayDeque<LogEntry>(maxBuffer);
+		this.policy = policy;
+		this.overflowTimeout = overflowTimeout;
+		this.logger = logger;
 	}
 
 
 	/**
-	 * Adds a log record to the buffer.  If the buffer is full, the oldest log in the buffer is discarded
-	 * so that there becomes room for the new one.
-	 * 
+	 * Adds a log record to the buffer.  If the buffer is full, room is made as the overflow policy
+	 * says.  Once the buffer is closed, logs are discarded.
+	 *
 	 * @param le the log record to add to the buffer
 	 */
-	public synchronized void addLogToBuffer(LogEntry le) {
-		Queue<LogEntry> buff = getDeque();
-		if (!buff.offer(le)) {
+	public abstract void addLogToBuffer(LogEntry le);
+
+
+	/**
+	 * Adds a log record with the given fields to the buffer, as {@link #addLogToBuffer(LogEntry)}
+	 * does.  Buffers that reuse their log records fill one in place instead of creating it.
+	 */
+	public abstract void addLogToBuffer(int level, String message, String logName, String logShortName, long timeStamp, String hostName, String details, String category, long jvmSequence, StackWalker.StackFrame caller);
+
 
-			buff.poll();
-			buff.offer(le);
+	/**
+	 * Takes the oldest logs not yet in a batch out of the buffer.  They keep their room in the
+	 * buffer until {@link #removeLogsFromBuffer} is called, once they are sent.  Only called while
+	 * holding the flush lock.
+	 *
+	 * @param num number of logs to take
+	 * @return the logs, oldest first
+	 */
+	protected abstract List<LogEntry> takeLogsFromBuffer(int num);
+
+
+	/**
+	 * Gives back the room of logs that were taken and sent.  Batches can be done in any order, so
+	 * these are not always the oldest logs taken.  Only called while holding the flush lock.
+	 */
+	protected abstract void removeLogsFromBuffer(List<LogEntry> logs);
+
+
+	/**
+	 * Returns a log taken from the buffer as one that stays as it is once its room is given back.
+	 */
+	protected LogEntry detach(LogEntry le) {
+		return le;
+	}
+
+
+	/**
+	 * Starts sending the next batch: one that failed, then one already taken, then up to
+	 * maxAmtToFlush logs taken from the buffer now.  Up to maxInFlight batches of the buffer are in
+	 * flight at once, and the flush lock is only held to pick the batch.  Once the send is done, the
+	 * room of its logs is given back if it succeeded; if it failed, the batch is kept, encoded, to be
+	 * sent again before any other.
+	 *
+	 * @param logger the logger whose settings the batch is sent with
+	 * @param maxAmtToFlush the maximum number of logs to take from the buffer
+	 * @return a future completed with whether the batch was delivered, or null if there was nothing
+	 *         to send or maxInFlight batches are already in flight
+	 */
+	protected CompletableFuture<Boolean> sendBatch(final OohLaLogLogger logger, final int maxAmtToFlush) {
+		Batch batch;
+		flushLock.lock();
+		try {
+			if (inFlight >= logger.getMaxInFlight()) return null;
+			batch = nextBatch(logger, maxAmtToFlush);
+			if (batch == null) return null;
+			inFlight++;
+		}
+		finally {
+			flushLock.unlock();
 		}
+		return send(logger, batch, true);
+	}
+
+
+	/**
+	 * Flush at most amtToFlush items from the buffer, as {@link #sendBatch} does, and waits for the
+	 * outcome without holding the flush lock.  Used to make room from the thread that logs, so the
+	 * batch does not count against maxInFlight.  If every log is already in a batch in flight, waits
+	 * for one of them to be done instead, as that is what makes room.
+	 *
+	 * @param handler the OohLaLogHandler object
+	 * @param maxAmtToFlush the maximum number to flush
+	 * @return was the payload sent successfully, or a batch in flight done?
+	 */
+	protected boolean flushLogEntryBuffer(final OohLaLogLogger logger, final int maxAmtToFlush ) {
+		Batch batch;
+		flushLock.lock();
+		try {
+			batch = nextBatch(logger, maxAmtToFlush);
+			if (batch == null) {
+				if (inFlight + flushesInFlight == 0) return false;
+				try {
+					done.await();
+					return true;
+				}
+				catch ( InterruptedException ie ) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			flushesInFlight++;
+		}
+		finally {
+			flushLock.unlock();
+		}
+		return send(logger, batch, false).join();
+	}
+
+
+	/**
+	 * Returns whether a batch of the buffer can be sent now without going over maxInFlight.
+	 */
+	protected boolean canSend(OohLaLogLogger logger) {
+		flushLock.lock();
+		try {
+			return inFlight < logger.getMaxInFlight();
+		}
+		finally {
+			flushLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Returns whether a batch taken from the buffer waits to be sent, for the first time or again.
+	 * The open batch is not counted until it is full.
+	 */
+	protected boolean hasBatchWaiting() {
+		flushLock.lock();
+		try {
+			return !retries.isEmpty() || !ready.isEmpty();
+		}
+		finally {
+			flushLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Takes the logs that arrived since the last call into the open batch, encoding them as they
+	 * are taken.  Called on the sender as logs arrive.  A flush that holds the lock takes them
+	 * itself, so this returns at once rather than wait for it.  Logs taken into batches cannot be
+	 * discarded to make room, so no more are taken once one batch more than maxInFlight is waiting
+	 * or in flight.
+	 *
+	 * @param logger the logger whose settings the logs are encoded with
+	 * @param batchSize the number of logs at which the open batch is closed
+	 */
+	protected void encodePending(OohLaLogLogger logger, int batchSize) {
+		if (!flushLock.tryLock()) return;
+		try {
+			int limit = (logger.getMaxInFlight() + 1) * batchSize;
+			while (batched + encoded < limit) {
+				int room = Math.min(batchSize - encoded, limit - batched - encoded);
+				if (!encode(logger, take(logger, room), batchSize)) break;
+			}
+		}
+		finally {
+			flushLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Takes the oldest logs not yet in a batch out of the buffer, as {@link #takeLogsFromBuffer}
+	 * does, and writes them to the file of the logger, if it has one, as they leave the buffer.
+	 * Only called while holding the flush lock.
+	 */
+	private List<LogEntry> take(OohLaLogLogger logger, int num) {
+		List<LogEntry> logs = takeLogsFromBuffer(num);
+		FileSink sink = logger == null ? null : logger.getFileSink();
+		if (sink != null && !logs.isEmpty()) sink.write(logs);
+		return logs;
+	}
+
+
+	/**
+	 * Returns the batch to send next, or null if there is none.  Only called while holding the
+	 * flush lock.
+	 */
+	private Batch nextBatch(OohLaLogLogger logger, int maxAmtToFlush) {
+		Batch batch = retries.pollFirst();
+		if (batch != null) return batch;
+		while (ready.isEmpty() && encode(logger, take(logger, maxAmtToFlush - encoded), maxAmtToFlush)) {
+			// Until a batch is full, or the buffer empty
+		}
+		if (ready.isEmpty()) closeOpenBatch();
+		return ready.pollFirst();
+	}
+
+
+	/**
+	 * Adds logs taken from the buffer to the open batch, encoding json as it goes.  The batch is
+	 * closed once it holds batchSize logs, or before the log that would make it larger than
+	 * maxBatchBytes; the logs that do not fit open the next one.  Only called while holding the
+	 * flush lock.
+	 *
+	 * @return whether there were logs to add
+	 */
+	private boolean encode(OohLaLogLogger logger, List<LogEntry> logs, int batchSize) {
+		if (logs.isEmpty()) return false;
+		boolean binary = "binary".equalsIgnoreCase(logger.getWireFormat()) && !Payload.isBinaryRejected();
+		int maxBytes = logger.getMaxBatchBytes();
+		if (open != null && open.binary != binary) closeOpenBatch();
+		for (LogEntry le : logs) {
+			if (open == null) openBatch(logger, binary);
+			if (binary && open.getEncoder().measure(le) > maxBytes && !open.logs.isEmpty()) {
+				closeOpenBatch();
+				openBatch(logger, true);
+				open.getEncoder().measure(le);
+			}
+			open.logs.add(le);
+			encoded++;
+		}
+
+		if (!binary) {
+			// The logs already in the batch are not encoded again
+			int count = open.json.encode(open.logs, logger.getAuthToken(), logger.getAgent(), logger.getHostName(), maxBytes);
+			while (count < open.logs.size()) {
+				List<LogEntry> rest = new ArrayList<LogEntry>(open.logs.subList(count, open.logs.size()));
+				open.logs.subList(count, open.logs.size()).clear();
+				encoded -= rest.size();
+				closeOpenBatch();
+				openBatch(logger, false);
+				open.logs.addAll(rest);
+				encoded += rest.size();
+				count = open.json.encode(open.logs, logger.getAuthToken(), logger.getAgent(), logger.getHostName(), maxBytes);
+			}
+		}
+		if (open.logs.size() >= batchSize) closeOpenBatch();
+		return true;
+	}
+
+
+	/**
+	 * Opens an empty batch for the logs taken next.  Only called while holding the flush lock.
+	 */
+	private void openBatch(OohLaLogLogger logger, boolean binary) {
+		open = spare.isEmpty() ? new Batch() : spare.pop();
+		open.binary = binary;
+		if (binary) open.getEncoder().startMeasure(logger.getAuthToken(), logger.getAgent(), logger.getHostName());
+	}
+
+
+	/**
+	 * Closes the open batch to be sent, or puts it back with the spare ones if it is empty.  Its
+	 * json is complete already.  Only called while holding the flush lock.
+	 */
+	private void closeOpenBatch() {
+		if (open == null) return;
+		int count = open.logs.size();
+		if (count == 0) spare.push(open);
+		else ready.addLast(open);
+		open = null;
+		batched += count;
+		encoded -= count;
+	}
+
+
+	/**
+	 * Sends a batch picked by {@link #nextBatch}, which belongs to the send until it is done.
+	 */
+	private CompletableFuture<Boolean> send(OohLaLogLogger logger, final Batch batch, final boolean limited) {
+		// The json encoder is also given to a binary batch, for the server that rejects it
+		Payload pl = buildPayload(logger, batch.logs, batch.binary ? batch.getEncoder() : null, batch.json);
+		return logger.getEndpointPool().sendAsync( pl ).handle( new BiFunction<Boolean,Throwable,Boolean>() {
+			public Boolean apply(Boolean delivered, Throwable t) {
+				boolean success = t == null && delivered;
+				batchDone(batch, success, limited);
+				return success;
+			}
+		});
 	}
 
-	
+
 	/**
-	 * Removes a certain number of logs from the buffer.
-	 * 
-	 * @param num number of logs to remove form head of queue
+	 * Gives back the room of the logs of a batch that was delivered, or keeps a batch that failed
+	 * for the retry.
 	 */
-	private synchronized void removeLogsFromBuffer(int num) {
-		Queue<LogEntry> buff = getDeque();
-		for (int i = 0; i < num; i++) {
-			buff.poll();
+	private void batchDone(Batch batch, boolean success, boolean limited) {
+		flushLock.lock();
+		try {
+			if (limited) inFlight--;
+			else flushesInFlight--;
+			int count = batch.logs.size();
+			if (success) {
+				removeLogsFromBuffer(batch.logs);
+				batched -= count;
+				PipelineStats.getInstance().batchSent(count);
+				batch.clear();
+				spare.push(batch);
+			}
+			else {
+				PipelineStats.getInstance().batchFailed(count);
+				retries.addLast(batch);
+			}
+			done.signalAll();
+		}
+		finally {
+			flushLock.unlock();
 		}
 	}
 
-	
+
 	/**
-	 * Flush at most amtToFlush items from the buffer.
-	 * 
-	 * @param handler the OohLaLogHandler object 
+	 * Sends at most maxAmtToFlush items from the buffer as datagrams.  Datagrams are never
+	 * retried, so the logs are removed from the buffer whether or not they could be sent.
+	 *
+	 * @param logger the logger whose datagram sink sends the logs
 	 * @param maxAmtToFlush the maximum number to flush
-	 * @return was the payload sent successfully?
-	 */
-	protected synchronized boolean flushLogEntryBuffer(final OohLaLogLogger logger, final int maxAmtToFlush ) {		
-		// Creates a copy because we don't want to remove logs from deque
-		// unless payload is successfully delivered
-		int size = size();
-		if(size == 0) return false;
-		int numToFlush = (maxAmtToFlush < size) ? maxAmtToFlush : size;
-
-		// Creates a copy because we don't want to remove logs from deque
-		// unless payload is successfully delivered
-		List<LogEntry> logs = new ArrayList<LogEntry>(size);
-		logs.addAll(getDeque());
-		logs = logs.subList(0, numToFlush);
-		
-
-		Payload pl = new Payload.Builder()
+	 * @return were there logs to send?
+	 */
+	protected boolean flushDatagrams(final OohLaLogLogger logger, final int maxAmtToFlush ) {
+		flushLock.lock();
+		try {
+			List<LogEntry> logs = take(logger, maxAmtToFlush);
+			if (logs.isEmpty()) return false;
+
+			logger.getDatagramSink().send(logs, logger.getAuthToken(), logger.getAgent(), logger.getHostName());
+			removeLogsFromBuffer(logs);
+			return true;
+		}
+		finally {
+			flushLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Stops the buffer from accepting any more logs.
+	 */
+	protected void close() {
+		closed = true;
+	}
+
+
+	/**
+	 * Returns whether the buffer has been closed.
+	 */
+	protected boolean isClosed() {
+		return closed;
+	}
+
+
+	/**
+	 * Returns the lock held while logs are taken, or drained.
+	 */
+	protected ReentrantLock getFlushLock() {
+		return flushLock;
+	}
+
+
+	/**
+	 * Removes and returns every log in the buffer, including those of batches waiting to be sent
+	 * again.  Waits for the batches in flight to be done first, so that no log is returned that has
+	 * already been delivered.
+	 *
+	 * @return the logs that were in the buffer, oldest first
+	 */
+	protected List<LogEntry> drain() {
+		flushLock.lock();
+		try {
+			while (inFlight + flushesInFlight > 0) {
+				try {
+					done.await();
+				}
+				catch ( InterruptedException ie ) {
+					// Shutdown has given up waiting
+					Thread.currentThread().interrupt();
+					return new ArrayList<LogEntry>();
+				}
+			}
+
+			List<LogEntry> logs = new ArrayList<LogEntry>(size());
+			closeOpenBatch();
+			for (ArrayDeque<Batch> batches : Arrays.asList(retries, ready)) {
+				Batch batch;
+				while ((batch = batches.pollFirst()) != null) {
+					logs.addAll(batch.logs);
+					batch.clear();
+					spare.push(batch);
+				}
+			}
+			batched = 0;
+			logs.addAll(take(logger, Integer.MAX_VALUE));
+			Collections.sort(logs, new Comparator<LogEntry>() {
+				public int compare(LogEntry a, LogEntry b) {
+					return a.getSequence() < b.getSequence() ? -1 : (a.getSequence() == b.getSequence() ? 0 : 1);
+				}
+			});
+
+			List<LogEntry> drained = new ArrayList<LogEntry>(logs.size());
+			for (LogEntry le : logs) {
+				drained.add(detach(le));
+			}
+			removeLogsFromBuffer(logs);
+			return drained;
+		}
+		finally {
+			flushLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Builds the payload that sends logs with the settings of logger.
+	 *
+	 * @param encoder the encoder to send the binary format with, or null to send json
+	 * @param json the encoder to send json with, which may have encoded logs already, or null for a new one
+	 */
+	protected static Payload buildPayload(OohLaLogLogger logger, List<LogEntry> logs, BinaryBatchEncoder encoder, JsonBatchEncoder json) {
+		return new Payload.Builder()
 		.messages(logs)
 		.authToken(logger.getAuthToken())
 		.host(logger.getHost())
+		.hostName(logger.getHostName())
 		.agent(logger.getAgent())
 		.path(logger.getPath())
 		.port(logger.getPort())
 		.secure(logger.getSecure())
 		.debug(logger.getDebug())
+		.compress(logger.getCompress())
+		.encoder(encoder)
+		.json(json)
+		.transport(logger.getTransport())
 		.build();
+	}
 
-		boolean success = Payload.send( pl );
-		// Payload successfully delivered so we can remove the logs that we already sent.
-		if (success) removeLogsFromBuffer(size);
 
-		return success;
+	/**
+	 * Returns the number of logs in the buffer that are not in a batch ready to send yet, including
+	 * those of the open batch.
+	 */
+	protected int unbatchedSize() {
+		return Math.max(size() - batched, 0);
 	}
 
-	
+
 	/**
-	 * Returns the number of logs in the buffer.
-	 * 
-	 * @return the number of logs in the queue
+	 * Returns the number of logs in the buffer that have not been taken into a batch, not even the
+	 * open one.
 	 */
-	protected synchronized int size() {
-		Queue<LogEntry> buff = getDeque();
-		return buff.size();
+	protected int unencodedSize() {
+		return Math.max(size() - batched - encoded, 0);
 	}
 
-	
+
+	/**
+	 * Returns the number of logs taken into batches, the open one included, that have not been
+	 * delivered yet.
+	 */
+	protected int batchedSize() {
+		return batched + encoded;
+	}
+
+
+	/**
+	 * Returns the number of logs in the buffer.
+	 *
+	 * @return the number of logs in the buffer
+	 */
+	protected abstract int size();
+
+
 	/**
 	 * Returns the maximum allowed size of the Log Record Buffer.
-	 * 
-	 * @return the maximum allowed size of the queue
+	 *
+	 * @return the maximum allowed size of the buffer
 	 */
 	protected int getMaxBuffer() {
 		return maxBuffer;
 	}
 
-	
+
+	/**
+	 * Returns what the buffer does with a new log when it is full.
+	 */
+	protected OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+
 	/**
-	 * Returns the underlying Queue structure that holds all of the logs.
-	 * 
-	 * @return the Queue used for holding the logs
+	 * Returns the time in ms the BLOCK policy waits for room.
 	 */
-	private synchronized Queue<LogEntry> getDeque() {
-		return deque;
+	protected long getOverflowTimeout() {
+		return overflowTimeout;
 	}
 
+
+	/**
+	 * Returns the logger whose settings the CALLER_RUNS policy sends with, or null.
+	 */
+	protected OohLaLogLogger getLogger() {
+		return logger;
+	}
+
+
+	/**
+	 * Logs taken from the buffer to be sent together, with the encoders that send them.  A batch
+	 * belongs to the buffer while it waits to be sent, and to the send while it is in flight, so
+	 * batches in flight at the same time never share an encoder.
+	 */
+	private static class Batch {
+		// The logs, oldest first
+		final List<LogEntry> logs = new ArrayList<LogEntry>();
+
+		// Holds the json encoding of the logs, which is kept for a retry
+		final JsonBatchEncoder json = new JsonBatchEncoder();
+
+		// Writes the binary format, reusing its buffer.  Created for the first binary batch.
+		private BinaryBatchEncoder encoder = null;
+
+		// Is the batch sent in the binary format?
+		boolean binary = false;
+
+		BinaryBatchEncoder getEncoder() {
+			if (encoder == null) encoder = new BinaryBatchEncoder();
+			return encoder;
+		}
+
+		/**
+		 * Empties the batch once it has been delivered, giving the body of its json back to the pool.
+		 */
+		void clear() {
+			logs.clear();
+			json.clear();
+		}
+	}
 }
@@ -0,0 +1,177 @@
+package com.oohlalog.commons;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A reusable set of numeric metrics keyed by int id.  Metric names are registered once in a
+ * registry shared by every MetricSet, so a metric has the same id wherever it is used.  Values
+ * are kept in primitive arrays that are cleared and refilled on every stats tick rather than
+ * allocating a new map of boxed values.
+ *
+ * A MetricSet is not thread safe; it is meant to be owned by the thread collecting the stats.
+ */
+public class MetricSet {
+	// Registered metric names, indexed by id
+	private static volatile String[] names = new String[0];
+
+	// Maps a metric name to its id
+	private static final Map<String,Integer> ids = new HashMap<String,Integer>();
+
+	// Metric values, indexed by id
+	private double[] values;
+
+	// Whether a value has been written for an id since the last clear
+	private boolean[] present;
+
+	// Whether a value has ever been written for an id.  Unlike present, this survives a clear
+	// so that cumulative metrics can be turned into deltas against the previous tick.
+	private boolean[] seen;
+
+
+	/**
+	 * Constructor that creates an empty MetricSet sized for every metric registered so far.
+	 */
+	public MetricSet() {
+		int capacity = Math.max(names.length, 16);
+		values = new double[capacity];
+		present = new boolean[capacity];
+		seen = new boolean[capacity];
+	}
+
+
+	/**
+	 * Returns the id for a metric name, registering the name if it has not been seen before.
+	 *
+	 * @param name the name of the metric as it is sent to OohLaLog
+	 * @return the id of the metric
+	 */
+	public static synchronized int register(String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = names.length;
+			String[] grown = Arrays.copyOf(names, id + 1);
+			grown[id] = name;
+			names = grown;
+			ids.put(name, id);
+		}
+		return id;
+	}
+
+
+	/**
+	 * Returns the name of a registered metric.
+	 *
+	 * @param id the id of the metric
+	 * @return the name of the metric
+	 */
+	public static String nameOf(int id) {
+		return names[id];
+	}
+
+
+	/**
+	 * Returns the number of metrics registered so far.  Ids run from 0 to this value exclusive.
+	 *
+	 * @return the number of registered metrics
+	 */
+	public static int registered() {
+		return names.length;
+	}
+
+
+	/**
+	 * Sets the value of a metric.
+	 *
+	 * @param id the id of the metric
+	 * @param value the value of the metric
+	 */
+	public void put(int id, double value) {
+		if (id >= values.length) {
+			int capacity = Math.max(id + 1, values.length * 2);
+			values = Arrays.copyOf(values, capacity);
+			present = Arrays.copyOf(present, capacity);
+			seen = Arrays.copyOf(seen, capacity);
+		}
+		values[id] = value;
+		present[id] = true;
+		seen[id] = true;
+	}
+
+
+	/**
+	 * Sets the value of a cumulative metric, such as a count or a total time, and also sets
+	 * deltaId to how much it has grown since it was last set in this MetricSet.  No delta is
+	 * set the first time the metric is seen.
+	 *
+	 * @param id the id of the cumulative metric
+	 * @param deltaId the id of the metric holding the change since the previous value
+	 * @param value the current value of the cumulative metric
+	 */
+	public void putWithDelta(int id, int deltaId, double value) {
+		if (id < seen.length && seen[id]) put(deltaId, value - values[id]);
+		put(id, value);
+	}
+
+
+	/**
+	 * Returns whether a value has been set for a metric since the last clear.
+	 *
+	 * @param id the id of the metric
+	 * @return true if the metric has a value
+	 */
+	public boolean contains(int id) {
+		return id < present.length && present[id];
+	}
+
+
+	/**
+	 * Returns the value of a metric.  Only meaningful if {@link #contains(int)} is true.
+	 *
+	 * @param id the id of the metric
+	 * @return the value of the metric
+	 */
+	public double get(int id) {
+		return values[id];
+	}
+
+
+	/**
+	 * Returns the number of metrics that currently have a value.
+	 *
+	 * @return the number of metrics set
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < present.length; i++) {
+			if (present[i]) size++;
+		}
+		return size;
+	}
+
+
+	/**
+	 * Removes all values from the set while keeping the underlying arrays for reuse.
+	 */
+	public void clear() {
+		Arrays.fill(present, false);
+	}
+
+
+	/**
+	 * Copies the metrics that currently have a value into a map.  Intended for debugging; the
+	 * stats upload path serializes the set directly.
+	 *
+	 * @return a map from metric name to value
+	 */
+	public Map<String,Double> toMap() {
+		Map<String,Double> map = new LinkedHashMap<String,Double>();
+		for (int id = 0; id < present.length; id++) {
+			if (present[id]) map.put(nameOf(id), values[id]);
+		}
+		return map;
+	}
+}
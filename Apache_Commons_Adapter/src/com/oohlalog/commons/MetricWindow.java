@@ -0,0 +1,114 @@
+package com.oohlalog.commons;
+
+import java.util.Arrays;
+
+
+/**
+ * Holds the samples taken of each metric between two stats uploads in fixed-size ring buffers,
+ * and reduces them to a min, max, mean and last value per metric when the upload is made.  If
+ * more samples are recorded than the window holds, the oldest are overwritten.
+ *
+ * A window is not thread safe; it is meant to be owned by the thread collecting the stats.
+ */
+public class MetricWindow {
+	// Number of samples kept per metric
+	private final int capacity;
+
+	// Ring buffer of samples per metric id, allocated the first time the metric is recorded
+	private double[][] samples = new double[16][];
+
+	// Number of samples currently held per metric id
+	private int[] counts = new int[16];
+
+	// Position of the next sample to write per metric id
+	private int[] heads = new int[16];
+
+	// Ids of the min, max and mean metrics derived from each metric id
+	private int[][] aggregateIds = new int[16][];
+
+
+	/**
+	 * Constructor that creates a MetricWindow.
+	 *
+	 * @param capacity the number of samples kept per metric, normally the number of samples taken
+	 * between two uploads.  With a capacity of 1 only the last value of each metric is reported.
+	 */
+	public MetricWindow(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+
+	/**
+	 * Adds the current value of every metric in the set to its ring buffer.
+	 *
+	 * @param metrics the metrics sampled this tick
+	 */
+	public void record(MetricSet metrics) {
+		int registered = MetricSet.registered();
+		if (registered > counts.length) {
+			samples = Arrays.copyOf(samples, registered);
+			counts = Arrays.copyOf(counts, registered);
+			heads = Arrays.copyOf(heads, registered);
+			aggregateIds = Arrays.copyOf(aggregateIds, registered);
+		}
+		for (int id = 0; id < registered; id++) {
+			if (!metrics.contains(id)) continue;
+			double[] ring = samples[id];
+			if (ring == null) ring = samples[id] = new double[capacity];
+			ring[heads[id]] = metrics.get(id);
+			heads[id] = (heads[id] + 1) % capacity;
+			if (counts[id] < capacity) counts[id]++;
+		}
+	}
+
+
+	/**
+	 * Reduces the samples recorded since the last call into out and empties the window.  For each
+	 * metric sampled, out holds the last value under the metric's own name and, unless the window
+	 * has a capacity of 1, its min, max and mean under the name suffixed with .min, .max and .mean.
+	 *
+	 * @param out the metric set to fill; it is cleared first
+	 */
+	public void aggregate(MetricSet out) {
+		out.clear();
+		for (int id = 0; id < counts.length; id++) {
+			int count = counts[id];
+			if (count == 0) continue;
+			double[] ring = samples[id];
+			double last = ring[(heads[id] + capacity - 1) % capacity];
+			out.put(id, last);
+
+			if (capacity > 1) {
+				double min = Double.POSITIVE_INFINITY;
+				double max = Double.NEGATIVE_INFINITY;
+				double sum = 0;
+				// The samples held are always the count most recently written, ending just before head
+				for (int i = 1; i <= count; i++) {
+					double value = ring[(heads[id] + capacity - i) % capacity];
+					if (value < min) min = value;
+					if (value > max) max = value;
+					sum += value;
+				}
+				int[] ids = getAggregateIds(id);
+				out.put(ids[0], min);
+				out.put(ids[1], max);
+				out.put(ids[2], sum / count);
+			}
+			counts[id] = 0;
+		}
+	}
+
+
+	private int[] getAggregateIds(int id) {
+		int[] ids = aggregateIds[id];
+		if (ids == null) {
+			String name = MetricSet.nameOf(id);
+			ids = aggregateIds[id] = new int[] {
+				MetricSet.register(name + ".min"),
+				MetricSet.register(name + ".max"),
+				MetricSet.register(name + ".mean")
+			};
+		}
+		return ids;
+	}
+}
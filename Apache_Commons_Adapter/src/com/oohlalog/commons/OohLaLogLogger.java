@@ -4,7 +4,6 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -47,20 +46,68 @@ public class OohLaLogLogger implements Log{
 
 	// ------------------------------------------------------------ Instance Variables
     
-    // The time threshold controlling how often uploads of logs are made to the OLL server
+    // The time threshold controlling how often uploads of logs are made to the OLL server.  Replaced
+    // by linger, which it sets when linger is not set itself.
     private long timeBuffer = 10000;
+
+    // Time in ms a batch waits for more logs after its first log
+    private long linger = 1000;
     
     // Logs are flushed once buffer reaches this size
     private int threshold = 100;
+
+    // Largest size in bytes of a json batch, which is cut before the log that would make it larger
+    private int maxBatchBytes = 1024 * 1024;
+
+    // Most batches of a buffer that are sent at once
+    private int maxInFlight = 4;
     
     // Maximum allowed size of the buffer
 	private int maxBuffer = 1000;//5;
 	
 	// Holds all of the Logs until reaching a time threshold when they are then emptied out in batches
 	private LogEntryBuffer logEntryBuffer;
+
+	// Holds the logs at or above priorityLevel, which are sent on their own shortly after they are logged
+	private LogEntryBuffer priorityBuffer;
+
+	// Logs at or above this level go to the priority buffer
+	private int priorityLevel = LOG_LEVEL_ERROR;
+
+	// Time in ms a priority log waits for others to be sent with it
+	private long priorityLinger = 50;
+
+	// What the buffers do with a new log when they are full
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+	// Time in ms the BLOCK overflow policy waits for room
+	private long overflowTimeout = 100;
+
+	// Preallocate the log records of the buffers and reuse them, so that logging creates none
+	private boolean preallocate = false;
+
+	// Source of the time stamps of logs: system, coarse or precise, and how often coarse is updated
+	private String clock = "system";
+	private long clockResolution = 1;
+	private LogClock logClock;
+
+	// Logs at or above this level are sent with where in the application they were logged from
+	private int locationLevel = LOG_LEVEL_OFF;
+
+	// Number every log with its order among all logs of the JVM, and send the number
+	private boolean sequence = false;
+
+	// Start of the details of every log, naming the logger as showLogName and showShortName say
+	private String detailsPrefix;
 	
     // The time threshold controlling how often uploads of statistics are made to the OLL server
 	private long statsBuffer = 60000; // 1 minute
+
+    // The time between samples of statistics, which are aggregated into each upload
+	private long statsSampleInterval = 1000; // 1 second
+
+	// Largest shift of a stats upload, as a fraction of statsBuffer, so that a fleet does not upload in lock-step
+	private double statsJitter = 0.1;
 	
 	// For configuring the URL
 	private String host = "localhost";//"api.oohlalog.com"; //localhost"
@@ -72,12 +119,76 @@ public class OohLaLogLogger implements Log{
 	private String agent = "commons";
 	private boolean secure = false;
 	private boolean debug = true;
+	// Name of the host logs are sent from, or null to look it up, and how long the first batch waits for the lookup
 	private String hostName = null;
+	private long hostNameTimeout = 2000;
+
+	// Endpoints log batches are balanced across, as comma separated URLs.  Defaults to the one above.
+	private String endpoints = null;
+
+	// Number of failures in a row after which an endpoint is ejected, and for how long at first
+	private int endpointFailures = 3;
+	private long endpointEjectTime = 10000;
+	private EndpointPool endpointPool;
+
+	// Format log batches are sent in: json, or binary to send MessagePack when the server accepts it
+	private String wireFormat = "json";
+
+	// Compress log batches with gzip
+	private boolean compress = false;
+
+	// Posts the batches: urlConnection or httpClient
+	private Transport transport;
+
+	// Time in ms allowed to open a connection, and for the response to a request.  A request that
+	// takes longer fails, and counts against its endpoint.
+	private long connectTimeout = 10000;
+	private long requestTimeout = 30000;
+
+	// Number of direct buffers kept for request bodies, shared by every logger, and the size of each
+	private int payloadPoolSize = 32;
+	private int payloadSegmentSize = 64 * 1024;
+
+	// host:port that logs from udpMinLevel to udpMaxLevel are sent to as UDP datagrams, if any, and
+	// the largest datagram holding more than one log
+	private String udp = null;
+	private int udpMinLevel = LOG_LEVEL_TRACE;
+	private int udpMaxLevel = LOG_LEVEL_DEBUG;
+	private int udpDatagramSize = 1400;
+	private DatagramSink datagramSink = null;
+
+	// Holds the logs sent as datagrams
+	private LogEntryBuffer datagramBuffer;
+
+	// File that logs are also written to, if any
+	private String file = null;
+	private long fileMaxSize = 10 * 1024 * 1024;
+	private long fileRollInterval = 24 * 60 * 60 * 1000;
+	private boolean fileCompress = true;
+	private boolean fileSync = true;
+	private FileSink fileSink = null;
+
+	// Time allowed at JVM shutdown to send the logs still buffered
+	private long shutdownTimeout = 5000;
 	
 	private boolean showMemoryStats = true;
 	private boolean showFileSystemStats = true;
 	private boolean showCPUStats = true;
+	private boolean showGCStats = true;
+	private boolean showThreadStats = true;
+	private boolean showClassLoadingStats = true;
+	private boolean showBufferPoolStats = true;
+	private boolean showMemoryPoolStats = true;
+	private boolean showCompilationStats = true;
+	private boolean showPipelineStats = true;
+	private boolean showPayloadPoolStats = true;
 	private boolean showStats = true;
+
+	// Relative change a metric must exceed before it is uploaded again
+	private double statsEpsilon = 0;
+
+	// Number of stats uploads between uploads that carry every metric
+	private int statsKeyframeInterval = 10;
 	
 	Object previousCpuUsage;
 
@@ -120,19 +231,57 @@ public class OohLaLogLogger implements Log{
     }
     
     private static long getLongProperty(String name, long dephault) {
-        Long prop = Long.parseLong(getStringProperty(name));
-        
-        // Check for bad input
-        if (prop <= 0) prop = null;
-        return prop == null ? dephault : prop;
+        String prop = getStringProperty(name);
+        if (prop == null) return dephault;
+        try {
+            long value = Long.parseLong(prop.trim());
+
+            // Check for bad input
+            return value <= 0 ? dephault : value;
+        } catch (NumberFormatException e) {
+            return dephault;
+        }
     }
     
     private static int getIntProperty(String name, int dephault) {
-        Integer prop = Integer.parseInt(getStringProperty(name));
-        
-        // Check for bad input
-        if (prop <= 0) prop = null;
-        return prop == null ? dephault : prop;
+        String prop = getStringProperty(name);
+        if (prop == null) return dephault;
+        try {
+            int value = Integer.parseInt(prop.trim());
+
+            // Check for bad input
+            return value <= 0 ? dephault : value;
+        } catch (NumberFormatException e) {
+            return dephault;
+        }
+    }
+
+    private static double getDoubleProperty(String name, double dephault) {
+        String prop = getStringProperty(name);
+        if (prop == null) return dephault;
+        try {
+            double value = Double.parseDouble(prop.trim());
+
+            // Check for bad input
+            return (value < 0 || Double.isNaN(value)) ? dephault : value;
+        } catch (NumberFormatException e) {
+            return dephault;
+        }
+    }
+
+    private static int getLevelProperty(String name, int dephault) {
+        String prop = getStringProperty(name);
+        if (prop == null) return dephault;
+        prop = prop.trim();
+        if ("all".equalsIgnoreCase(prop)) return LOG_LEVEL_ALL;
+        if ("trace".equalsIgnoreCase(prop)) return LOG_LEVEL_TRACE;
+        if ("debug".equalsIgnoreCase(prop)) return LOG_LEVEL_DEBUG;
+        if ("info".equalsIgnoreCase(prop)) return LOG_LEVEL_INFO;
+        if ("warn".equalsIgnoreCase(prop)) return LOG_LEVEL_WARN;
+        if ("error".equalsIgnoreCase(prop)) return LOG_LEVEL_ERROR;
+        if ("fatal".equalsIgnoreCase(prop)) return LOG_LEVEL_FATAL;
+        if ("off".equalsIgnoreCase(prop)) return LOG_LEVEL_OFF;
+        return dephault;
     }
 
     private static boolean getBooleanProperty(String name, boolean dephault) {
@@ -170,14 +319,25 @@ public class OohLaLogLogger implements Log{
     public OohLaLogLogger(String name) {
     	logName = name;
     	setAuthToken();
+    	setConnection();
     	setCurrentLevel();
     	setShowStats();
+    	setStatsEncoding();
     	setLoggingInterval();
+    	setOverflowPolicy();
+    	setClock();
+    	setFileSink();
+    	setDatagramSink();
     	String temp = logName.substring(logName.lastIndexOf(".") + 1);
         logShortName = temp.substring(temp.lastIndexOf("/") + 1);
+        setDetailsPrefix();
         
-        logEntryBuffer = new LogEntryBuffer(maxBuffer);
-    	logControl = new LogControl(this, this.threshold, this.timeBuffer, this.statsBuffer);
+        logEntryBuffer = newLogEntryBuffer(overflowPolicy);
+        priorityBuffer = newLogEntryBuffer(overflowPolicy);
+        // Datagrams are lossy anyway, so a full datagram buffer drops logs rather than waiting, or
+        // sending them over HTTP as callerRuns would
+        if (datagramSink != null) datagramBuffer = newLogEntryBuffer(overflowPolicy == OverflowPolicy.DROP_NEWEST ? OverflowPolicy.DROP_NEWEST : OverflowPolicy.DROP_OLDEST);
+    	logControl = new LogControl(this, this.threshold, this.linger, this.statsBuffer, this.statsSampleInterval);
     	logControl.init();
     }
 	
@@ -186,21 +346,56 @@ public class OohLaLogLogger implements Log{
     // -------------------------------------------------------- Logging Methods
 
     /**
-     * Creates a LogEntry and then adds it to the logger's deque.
+     * Adds a log to the logger's deque.
      * 
      * @param type the level of this log
      * @param message the message this log displays
      * @param t a throwable that will be displayed with this log
      */
     protected void log(int type, Object message, Throwable t) {
-        // Append time stamp
-    	Date now = new Date();
-        Long timeStamp = now.getTime();
+    	long start = System.nanoTime();
+
+        // Append time stamp, and the number of the log in the JVM if so configured
+        long timeStamp = logClock.currentTimeMillis();
+        long jvmSequence = sequence ? LogClock.nextSequence() : -1;
+
+        // Where the log was logged from, if so configured for its level
+        StackWalker.StackFrame caller = type >= locationLevel ? CallerLocation.capture() : null;
         
      // Append the name of the log instance if so configured
         String shortName = showShortName? logShortName : null;  
    
         // Details
+        String details = t == null ? detailsPrefix : detailsPrefix + t;
+        String category = null;
+
+        // The host name is left out, as it is attached to each batch rather than to each log
+        if (datagramSink != null && type >= udpMinLevel && type <= udpMaxLevel) {
+        	// Sent as datagrams, which are never retried
+        	getDatagramBuffer().addLogToBuffer(type, (String)message, logName, shortName, timeStamp, null, details, category, jvmSequence, caller);
+        	this.logControl.datagramLogAdded();
+        }
+        else if (type >= priorityLevel) {
+        	// Priority logs skip the queue of bulk logs, and are sent as soon as their linger is over
+        	getPriorityBuffer().addLogToBuffer(type, (String)message, logName, shortName, timeStamp, null, details, category, jvmSequence, caller);
+        	this.logControl.priorityLogAdded();
+        }
+        else {
+        	// Adds the log to the buffer, knocking off an old log if needed
+        	getLogEntryBuffer().addLogToBuffer(type, (String)message, logName, shortName, timeStamp, null, details, category, jvmSequence, caller);
+
+        	// Starts the linger of a new batch, or sends a full one
+        	this.logControl.logAdded();
+        }
+
+        PipelineStats.getInstance().logCalled(System.nanoTime() - start);
+    }
+   
+	
+    /**
+     * Sets the start of the details of every log, which names the logger if so configured.
+     */
+    private void setDetailsPrefix() {
 		StringBuilder sbDetails = new StringBuilder();
 		if (showLogName || showShortName)
 			sbDetails.append("Logger: ");
@@ -208,26 +403,20 @@ public class OohLaLogLogger implements Log{
 			sbDetails.append(getLogName()).append(" ");
 		if(showShortName)
 			sbDetails.append(logShortName).append(" ");
-		if(t != null)
-			sbDetails.append(t);
-		
-        String details = sbDetails.toString();
-        String category = null;
-        
-        final LogEntry log = new LogEntry(type, (String)message, logName, shortName, timeStamp, hostName, details, category);
-        
-        
-        // Adds the log to the buffer, knocking off an old log if needed
-        getLogEntryBuffer().addLogToBuffer(log);
-        
-        // Don't need to have the flushTimer going when there are no log entries in the deque. 
-        // Instead, we start the timer after adding an element which increasing deque size 
-        // from 0 to 1
-        if (getLogEntryBuffer().size() == 1)
-        	this.logControl.startFlushTimer();
+		detailsPrefix = sbDetails.toString();
     }
-   
-	
+    
+    
+    /**
+     * Creates a buffer with this logger's settings and an overflow policy, whose log records are
+     * preallocated if so configured.
+     */
+    private LogEntryBuffer newLogEntryBuffer(OverflowPolicy policy) {
+    	if (preallocate) return new RingLogEntryBuffer(maxBuffer, policy, overflowTimeout, this);
+    	return new QueueLogEntryBuffer(maxBuffer, policy, overflowTimeout, this);
+    }
+    
+    
     /**
      * Sets the authToken by reading from the properties file.
      */
@@ -236,6 +425,40 @@ public class OohLaLogLogger implements Log{
     }
     
     
+    /**
+     * Sets the URL of the OohLaLog server, and whether debug messages are printed, by reading 
+     * from the properties file.
+     */
+    private void setConnection() {
+    	host = getStringProperty(systemPrefix + "host", host);
+    	port = getIntProperty(systemPrefix + "port", port);
+    	path = getStringProperty(systemPrefix + "path", path);
+    	statsPath = getStringProperty(systemPrefix + "statsPath", statsPath);
+    	secure = getBooleanProperty(systemPrefix + "secure", secure);
+    	debug = getBooleanProperty(systemPrefix + "debug", debug);
+    	wireFormat = getStringProperty(systemPrefix + "wireFormat", wireFormat);
+    	compress = getBooleanProperty(systemPrefix + "compress", compress);
+    	connectTimeout = getLongProperty(systemPrefix + "connectTimeout", connectTimeout);
+    	requestTimeout = getLongProperty(systemPrefix + "requestTimeout", requestTimeout);
+    	transport = Transport.get(getStringProperty(systemPrefix + "transport", "urlConnection"), connectTimeout, requestTimeout);
+    	payloadPoolSize = getIntProperty(systemPrefix + "payloadPoolSize", payloadPoolSize);
+    	payloadSegmentSize = getIntProperty(systemPrefix + "payloadSegmentSize", payloadSegmentSize);
+    	PayloadBufferPool.configure(payloadPoolSize, payloadSegmentSize);
+
+    	endpoints = getStringProperty(systemPrefix + "endpoints", endpoints);
+    	if (endpoints == null || endpoints.trim().length() == 0) {
+    		endpoints = (secure ? "https" : "http") + "://" + host + ":" + port + path;
+    	}
+    	endpointFailures = getIntProperty(systemPrefix + "endpointFailures", endpointFailures);
+    	endpointEjectTime = getLongProperty(systemPrefix + "endpointEjectTime", endpointEjectTime);
+    	endpointPool = EndpointPool.get(endpoints, path, endpointFailures, endpointEjectTime);
+
+    	hostName = getStringProperty(systemPrefix + "hostName", hostName);
+    	hostNameTimeout = getLongProperty(systemPrefix + "hostNameTimeout", hostNameTimeout);
+    	HostName.resolve(hostName, hostNameTimeout);
+    }
+    
+    
     /**
      * Sets the boolean values that control whether or not the different statistics should be sent to the server.
      */
@@ -243,19 +466,111 @@ public class OohLaLogLogger implements Log{
         showMemoryStats = getBooleanProperty(systemPrefix + "showMemoryStats", showMemoryStats);
         showFileSystemStats = getBooleanProperty(systemPrefix + "showFileSystemStats", showFileSystemStats);
         showCPUStats = getBooleanProperty(systemPrefix + "showCPUStats", showCPUStats);
+        showGCStats = getBooleanProperty(systemPrefix + "showGCStats", showGCStats);
+        showThreadStats = getBooleanProperty(systemPrefix + "showThreadStats", showThreadStats);
+        showClassLoadingStats = getBooleanProperty(systemPrefix + "showClassLoadingStats", showClassLoadingStats);
+        showBufferPoolStats = getBooleanProperty(systemPrefix + "showBufferPoolStats", showBufferPoolStats);
+        showMemoryPoolStats = getBooleanProperty(systemPrefix + "showMemoryPoolStats", showMemoryPoolStats);
+        showCompilationStats = getBooleanProperty(systemPrefix + "showCompilationStats", showCompilationStats);
+        showPipelineStats = getBooleanProperty(systemPrefix + "showPipelineStats", showPipelineStats);
+        showPayloadPoolStats = getBooleanProperty(systemPrefix + "showPayloadPoolStats", showPayloadPoolStats);
         showStats = getBooleanProperty(systemPrefix + "showStats", showStats);
     }
     
     
+    /**
+     * Configures which metrics are included in each stats upload by reading the settings
+     * from the properties file.
+     */
+    private void setStatsEncoding() {
+    	statsEpsilon = getDoubleProperty(systemPrefix + "statsEpsilon", statsEpsilon);
+    	statsKeyframeInterval = getIntProperty(systemPrefix + "statsKeyframeInterval", statsKeyframeInterval);
+    }
+    
+    
     /**
      * Configures the frequency with which logs are sent to the OohLaLog server by reading the 
      * setting form the properties file.
      */
     private void setLoggingInterval() {
     	timeBuffer = getLongProperty(systemPrefix + "timeBuffer", timeBuffer);
+    	linger = getLongProperty(systemPrefix + "linger", getLongProperty(systemPrefix + "timeBuffer", linger));
     	statsBuffer = getLongProperty(systemPrefix + "statsBuffer", timeBuffer);
+    	statsSampleInterval = getLongProperty(systemPrefix + "statsSampleInterval", statsSampleInterval);
+    	statsJitter = getDoubleProperty(systemPrefix + "statsJitter", statsJitter);
     	threshold = getIntProperty(systemPrefix + "threshold", threshold);
+    	maxBatchBytes = getIntProperty(systemPrefix + "maxBatchBytes", maxBatchBytes);
+    	maxInFlight = Math.max(getIntProperty(systemPrefix + "maxInFlight", maxInFlight), 1);
     	maxBuffer = getIntProperty(systemPrefix + "maxBuffer", maxBuffer);
+    	priorityLevel = getLevelProperty(systemPrefix + "priorityLevel", priorityLevel);
+    	priorityLinger = getLongProperty(systemPrefix + "priorityLinger", priorityLinger);
+    	locationLevel = getLevelProperty(systemPrefix + "location", locationLevel);
+    	shutdownTimeout = getLongProperty(systemPrefix + "shutdownTimeout", shutdownTimeout);
+    }
+    
+    
+    /**
+     * Sets what the buffers do with a new log when they are full by reading from the properties file.
+     * As for the level, a policy set for this logger's name or short name overrides the default one.
+     */
+    private void setOverflowPolicy() {
+    	String policy = getStringProperty(systemPrefix + "overflowPolicy." + logName);
+    	if (policy == null) {
+    		policy = getStringProperty(systemPrefix + "overflowPolicy." + logName.substring(logName.lastIndexOf(".") + 1));
+    	}
+    	if (policy == null) {
+    		policy = getStringProperty(systemPrefix + "overflowPolicy");
+    	}
+    	overflowPolicy = OverflowPolicy.parse(policy, overflowPolicy);
+    	overflowTimeout = getLongProperty(systemPrefix + "overflowTimeout", overflowTimeout);
+    	preallocate = getBooleanProperty(systemPrefix + "preallocate", preallocate);
+    }
+    
+    
+    /**
+     * Sets the source of the time stamps of logs, and whether logs are numbered, by reading from
+     * the properties file.
+     */
+    private void setClock() {
+    	clock = getStringProperty(systemPrefix + "clock", clock);
+    	clockResolution = getLongProperty(systemPrefix + "clockResolution", clockResolution);
+    	sequence = getBooleanProperty(systemPrefix + "sequence", sequence);
+    	logClock = LogClock.get(clock, clockResolution);
+    }
+    
+    
+    /**
+     * Opens the socket that logs of the levels set are sent as datagrams from, if a receiver is set
+     * in the properties file.  Datagrams carry the api key in the clear, so none are sent when logs
+     * are posted over https.
+     */
+    private void setDatagramSink() {
+    	udp = getStringProperty(systemPrefix + "udp", udp);
+    	udpMinLevel = getLevelProperty(systemPrefix + "udpMinLevel", udpMinLevel);
+    	udpMaxLevel = getLevelProperty(systemPrefix + "udpMaxLevel", udpMaxLevel);
+    	udpDatagramSize = getIntProperty(systemPrefix + "udpDatagramSize", udpDatagramSize);
+    	boolean https = secure || endpoints.toLowerCase().contains("https:");
+    	if (udp != null && udp.trim().length() > 0 && https) {
+    		System.err.println("OohLaLog: udp is ignored because logs are sent over https, and datagrams would carry the apiKey unencrypted");
+    	}
+    	else if (udp != null && udp.trim().length() > 0) {
+    		datagramSink = DatagramSink.open(udp.trim(), udpDatagramSize);
+    	}
+    }
+
+
+    /**
+     * Opens the file that logs are also written to, if one is set in the properties file.
+     */
+    private void setFileSink() {
+    	file = getStringProperty(systemPrefix + "file", file);
+    	fileMaxSize = getLongProperty(systemPrefix + "fileMaxSize", fileMaxSize);
+    	fileRollInterval = getLongProperty(systemPrefix + "fileRollInterval", fileRollInterval);
+    	fileCompress = getBooleanProperty(systemPrefix + "fileCompress", fileCompress);
+    	fileSync = getBooleanProperty(systemPrefix + "fileSync", fileSync);
+    	if (file != null && file.trim().length() > 0) {
+    		fileSink = FileSink.open(file.trim(), fileMaxSize, fileRollInterval, fileCompress, fileSync);
+    	}
     }
     
     
@@ -351,6 +666,22 @@ public class OohLaLogLogger implements Log{
 	}
 
 	
+	/** 
+	 * Get the time between samples of statistics
+	 */
+	protected long getStatsSampleInterval() {
+		return statsSampleInterval;
+	}
+
+
+	/**
+	 * Get the largest shift of a stats upload, as a fraction of the stats buffer
+	 */
+	protected double getStatsJitter() {
+		return statsJitter;
+	}
+
+	
 	/**
 	 * Getter method for returning the LogEntryBuffer belonging to this OohLaLogLogger instance.
 	 */
@@ -358,6 +689,22 @@ public class OohLaLogLogger implements Log{
 		return logEntryBuffer;
 	}
 
+
+	/**
+	 * Getter method for returning the buffer of logs at or above the priority level.
+	 */
+	protected LogEntryBuffer getPriorityBuffer() {
+		return priorityBuffer;
+	}
+
+
+	/**
+	 * Getter method for returning the time in ms a priority log waits for others to be sent with it.
+	 */
+	protected long getPriorityLinger() {
+		return priorityLinger;
+	}
+
 	
 	/**
 	 * Getter method for returning the host portion of the URL used for connecting to OohLaLog.
@@ -368,10 +715,11 @@ public class OohLaLogLogger implements Log{
 
 	
 	/**
-	 * Getter method for returning the host name belonging to this OohLaLogLogger instance.
+	 * Getter method for returning the name of the host logs are sent from, which is the same for
+	 * every OohLaLogLogger of the JVM.  Waits for the name to be looked up the first time.
 	 */
 	protected String getHostName() {
-		return hostName;
+		return HostName.get();
 	}
 
 	
@@ -399,6 +747,62 @@ public class OohLaLogLogger implements Log{
 	}
 
 	
+	/**
+	 * Getter method for returning the format log batches are sent in, json or binary.
+	 */
+	protected String getWireFormat() {
+		return wireFormat;
+	}
+
+	
+	/**
+	 * Getter method for returning whether log batches are compressed with gzip.
+	 */
+	protected boolean getCompress() {
+		return compress;
+	}
+
+	
+	/**
+	 * Getter method for returning the sink writing logs to a local file, or null if there is none.
+	 */
+	protected FileSink getFileSink() {
+		return fileSink;
+	}
+
+
+	/**
+	 * Getter method for returning the sink sending logs as datagrams, or null if there is none.
+	 */
+	protected DatagramSink getDatagramSink() {
+		return datagramSink;
+	}
+
+
+	/**
+	 * Getter method for returning the buffer of logs sent as datagrams, or null if there is none.
+	 */
+	protected LogEntryBuffer getDatagramBuffer() {
+		return datagramBuffer;
+	}
+
+	
+	/**
+	 * Getter method for returning the endpoints log batches are sent to.
+	 */
+	protected EndpointPool getEndpointPool() {
+		return endpointPool;
+	}
+
+
+	/**
+	 * Getter method for returning the transport that posts log batches.
+	 */
+	protected Transport getTransport() {
+		return transport;
+	}
+
+	
 	/**
 	 * Getter method for returning the port portion of the URL used for connecting to OohLaLog.
 	 */
@@ -425,6 +829,40 @@ public class OohLaLogLogger implements Log{
 		return timeBuffer;
 	}
 
+
+	/**
+	 * Getter method for returning the linger used by this instance of OohLaLogLogger.
+	 * Linger is the amount of time a batch waits for more logs after its first log.
+	 */
+	protected long getLinger() {
+		return linger;
+	}
+
+
+	/**
+	 * Getter method for returning the largest size in bytes of a json batch.
+	 */
+	protected int getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+
+	/**
+	 * Getter method for returning the most batches of a buffer that are sent at once.
+	 */
+	protected int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+
+	/**
+	 * Getter method for returning the time allowed at JVM shutdown to send the logs
+	 * still buffered.
+	 */
+	protected long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
 	
 	/**
 	 * Getter method for returning whether or not the connection to the OohLaLog server
@@ -462,6 +900,24 @@ public class OohLaLogLogger implements Log{
 	}
 
 	
+	/**
+	 * Getter method for returning the relative change a metric must exceed since it was last
+	 * uploaded before it is uploaded again.
+	 */
+	protected double getStatsEpsilon() {
+		return statsEpsilon;
+	}
+
+	
+	/**
+	 * Getter method for returning the number of stats uploads between uploads that carry
+	 * every metric, so that the OohLaLog server can resynchronize.
+	 */
+	protected int getStatsKeyframeInterval() {
+		return statsKeyframeInterval;
+	}
+
+	
 	/**
 	 * Getter method for returning a boolean indicating whether or not memory stats 
 	 * associated with this instance of OohLaLogLogger will be sent to the OohLaLog server.
@@ -489,6 +945,78 @@ public class OohLaLogLogger implements Log{
 	}
 
 	
+	/**
+	 * Getter method for returning a boolean indicating whether or not garbage collection stats 
+	 * associated with this instance of OohLaLogLogger will be sent to the OohLaLog server.
+	 */
+	protected boolean getShowGCStats() {
+		return showGCStats;
+	}
+
+	
+	/**
+	 * Getter method for returning a boolean indicating whether or not thread stats 
+	 * associated with this instance of OohLaLogLogger will be sent to the OohLaLog server.
+	 */
+	protected boolean getShowThreadStats() {
+		return showThreadStats;
+	}
+
+	
+	/**
+	 * Getter method for returning a boolean indicating whether or not class loading stats 
+	 * associated with this instance of OohLaLogLogger will be sent to the OohLaLog server.
+	 */
+	protected boolean getShowClassLoadingStats() {
+		return showClassLoadingStats;
+	}
+
+	
+	/**
+	 * Getter method for returning a boolean indicating whether or not direct and mapped buffer pool stats 
+	 * associated with this instance of OohLaLogLogger will be sent to the OohLaLog server.
+	 */
+	protected boolean getShowBufferPoolStats() {
+		return showBufferPoolStats;
+	}
+
+	
+	/**
+	 * Getter method for returning a boolean indicating whether or not code cache and metaspace stats 
+	 * associated with this instance of OohLaLogLogger will be sent to the OohLaLog server.
+	 */
+	protected boolean getShowMemoryPoolStats() {
+		return showMemoryPoolStats;
+	}
+
+	
+	/**
+	 * Getter method for returning a boolean indicating whether or not JIT compilation and safepoint stats 
+	 * associated with this instance of OohLaLogLogger will be sent to the OohLaLog server.
+	 */
+	protected boolean getShowCompilationStats() {
+		return showCompilationStats;
+	}
+
+	
+	/**
+	 * Getter method for returning a boolean indicating whether or not the stats describing this library's 
+	 * own log shipping will be sent to the OohLaLog server.
+	 */
+	protected boolean getShowPipelineStats() {
+		return showPipelineStats;
+	}
+
+	
+	/**
+	 * Getter method for returning a boolean indicating whether or not the hits and misses of the pool of
+	 * request body buffers will be sent to the OohLaLog server.
+	 */
+	protected boolean getShowPayloadPoolStats() {
+		return showPayloadPoolStats;
+	}
+
+	
 	/**
      * Is the given log level currently enabled?
      */
@@ -0,0 +1,47 @@
+package com.oohlalog.commons;
+
+
+/**
+ * What a {@link LogEntryBuffer} does with a new log when it is full.  Whatever the policy, a log
+ * is only ever discarded in favor of one of the same or a higher level.
+ */
+public enum OverflowPolicy {
+	/**
+	 * Discards the newest log of the lowest level, which is the new log itself unless the buffer
+	 * holds logs of a lower level.  Cheapest, and never blocks.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Discards the oldest log of the lowest level to make room for the new one.  Never blocks.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Waits up to overflowTimeout ms for room, then discards as DROP_OLDEST does.
+	 */
+	BLOCK,
+
+	/**
+	 * Sends batches from the calling thread until there is room, then discards as DROP_OLDEST does
+	 * if a send failed.
+	 */
+	CALLER_RUNS;
+
+
+	/**
+	 * Parses a policy name such as dropOldest, drop-oldest or DROP_OLDEST.
+	 *
+	 * @param name the name of the policy, or null
+	 * @param dephault the policy returned when name is null or not a policy
+	 * @return the policy
+	 */
+	public static OverflowPolicy parse(String name, OverflowPolicy dephault) {
+		if (name == null) return dephault;
+		String normalized = name.trim().replace("-", "").replace("_", "");
+		for (OverflowPolicy policy : values()) {
+			if (policy.name().replace("_", "").equalsIgnoreCase(normalized)) return policy;
+		}
+		return dephault;
+	}
+}
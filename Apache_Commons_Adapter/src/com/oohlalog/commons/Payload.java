@@ -3,15 +3,20 @@ package com.oohlalog.commons;
 
 import com.google.gson.Gson;
 
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Representation of a payload sent to OohLaLog
@@ -21,6 +26,16 @@ public class Payload {
 	static final String PAYLOAD_LOGS = "logs";
 	static final String PAYLOAD_COUNTERS = "counters";
 
+	// Status of a payload that got no response: the connection failed or timed out
+	static final int NO_RESPONSE = -1;
+
+	// Status of a payload that could not be encoded, and so was not sent
+	static final int NOT_SENT = 0;
+
+	// Set once the server has answered a binary batch with 415 Unsupported Media Type, after which
+	// every batch is sent as JSON
+	private static volatile boolean binaryRejected = false;
+
 	// Config
 	private String authToken = null;
 	private String host = null;
@@ -30,6 +45,10 @@ public class Payload {
 	private int port;
 	private boolean secure = false;
 	private boolean debug = true;
+	private BinaryBatchEncoder encoder = null;
+	private JsonBatchEncoder json = null;
+	private boolean compress = false;
+	private Transport transport = null;
     
 	private List<LogEntry> messages = null;
 	private Map<String, Object> counters = null;
@@ -53,7 +72,7 @@ public class Payload {
 		// Add logs
 		payload.put( PAYLOAD_LOGS, new ArrayList<Map<String,Object>>( pl.getMessages().size() ));
 		for( LogEntry le : pl.getMessages() ) {
-			Map<String,Object> map = transform( le );
+			Map<String,Object> map = transform( le, pl.getHostName() );
 			map.put( "agent", pl.getAgent() );
 			((List<Map<String,Object>>)payload.get( PAYLOAD_LOGS )).add(map);
 		}
@@ -71,90 +90,151 @@ public class Payload {
 	/**
 	 * Transform a logging event into a map for serialization
 	 * @param le the log entry to be transformed
+	 * @param hostName the host name of the batch, used for a log that has none of its own
 	 * @return a map, mapping the different properties of the LogEntry with their values.
 	 */
-	private static Map<String,Object> transform( LogEntry le ) {
+	private static Map<String,Object> transform( LogEntry le, String hostName ) {
 		Map<String,Object> map = new HashMap<String,Object>();
 
 		map.put( "level", le.getLevelString() );
 		map.put( "message", le.getMessage() );
 		map.put( "timestamp", le.getTimeStamp());
-		map.put( "hostname", le.getHostName());
+		map.put( "hostname", le.getHostName() != null ? le.getHostName() : hostName);
 		map.put("category", le.getCategory() ); // allow for an explicit category
 		map.put( "details", le.getDetails());
+		if (le.getJvmSequence() >= 0) map.put( "sequence", le.getJvmSequence() );
+		String location = le.getLocation();
+		if (location != null) map.put( "location", location );
 		
 		return map;
 	}
 
 	/**
-	 * Write this payload to remote service
+	 * Write this payload to remote service, waiting for the response
+	 * @param pl the payload to send
+	 * @return whether the server accepted the payload
+	 */
+	public static boolean send( Payload pl ) {
+		return sendAsync( pl ).join();
+	}
+
+
+	/**
+	 * Write this payload to remote service with its transport
+	 * @param pl the payload to send
+	 * @return a future completed with whether the server accepted the payload.  It never completes
+	 *         exceptionally.
+	 */
+	public static CompletableFuture<Boolean> sendAsync( final Payload pl ) {
+		return postAsync( pl ).thenApply( new Function<Integer,Boolean>() {
+			public Boolean apply(Integer status) {
+				return status == 200;
+			}
+		});
+	}
+
+
+	/**
+	 * Write this payload to remote service with its transport
 	 * @param pl the payload to send
-	 * @throws RuntimeException
+	 * @return a future completed with the status code of the response, NO_RESPONSE if there was
+	 *         none, or NOT_SENT if the payload could not be encoded.  It never completes exceptionally.
 	 */
-	public static boolean send( Payload pl ) throws RuntimeException {
-		OutputStream os = null;
-	    BufferedReader rd  = null;
-	    StringBuilder sb = null;
-	    String line = null;
-	    HttpURLConnection con = null;
-	    boolean success = true;
+	protected static CompletableFuture<Integer> postAsync( final Payload pl ) {
+		PayloadBody body = null;
+		JsonBatchEncoder ownJson = null;
 		try {
 			if (pl.getDebug()) System.out.println("Serializing: " + pl.toString());
-			// Serialize payload into json
-			String json = pl.serialize();
+			// Serialize payload into the binary format when it is enabled and the server accepts it,
+			// and into json otherwise, straight into pooled buffers, compressing it on the way.  The
+			// uncompressed length is kept for the stats.
+			final boolean binary = pl.getEncoder() != null && !binaryRejected;
+			final int uncompressedLength;
+			String contentType;
+			body = new PayloadBody();
+			PayloadBody sent = body;
+			if (binary) {
+				OutputStream out = pl.getCompress() ? new GZIPOutputStream(body) : body;
+				uncompressedLength = pl.getEncoder().encode(pl, out);
+				out.close();
+				contentType = BinaryBatchEncoder.CONTENT_TYPE;
+			}
+			else {
+				// Usually encoded as the logs were taken from the buffer, in which case nothing is encoded again
+				JsonBatchEncoder json = pl.getJson();
+				if (json == null) json = ownJson = new JsonBatchEncoder();
+				json.encode(pl.getMessages(), pl.getAuthToken(), pl.getAgent(), pl.getHostName(), Integer.MAX_VALUE);
+				uncompressedLength = json.getSize();
+				if (pl.getDebug()) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					json.getBody().writeTo(bytes);
+					System.out.println( ">>>>>>>>>>>JSON: " + new String(bytes.toByteArray(), StandardCharsets.UTF_8) );
+				}
+				contentType = "application/json";
+				if (pl.getCompress()) {
+					GZIPOutputStream gzip = new GZIPOutputStream(body);
+					json.getBody().writeTo(gzip);
+					gzip.close();
+				}
+				else {
+					// Sent from the body of the encoder, which keeps it for a retry
+					sent = json.getBody();
+				}
+			}
+			final int sentLength = sent.getLength();
+			final PayloadBody pooled = body;
+			final JsonBatchEncoder used = ownJson;
 
 			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Payload: " + pl.toString() );
 
-			// Create connection to OohLaLog server
-			URL url = new URL( (pl.getSecure() ? "https" : "http"), pl.getHost(), pl.getPort(), pl.getPath()+"?apiKey="+pl.getAuthToken() );
-
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Submitting to: " + url.toString() );
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>JSON: " + json.toString() );
-			con = (HttpURLConnection) url.openConnection();
-			con.setDoOutput(true);
-			con.setDoInput(true);
-			con.setInstanceFollowRedirects(false);
-			con.setRequestMethod("POST");
-			con.setRequestProperty("Content-Type", "application/json");
-			con.setRequestProperty("Content-Length", "" + json.getBytes().length);
-			con.setUseCaches(false);
-
-			// Get output stream and write json
-			os = con.getOutputStream();
-			os.write( json.getBytes() );
-
-			rd  = new BufferedReader(new InputStreamReader(con.getInputStream()));
-			sb = new StringBuilder();
-
-			while ((line = rd.readLine()) != null){
-			  sb.append(line + '\n');
-			}
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Received: " + sb.toString() );
-			
-			if (con.getResponseCode() != 200) {
-				success = false;
-			}
+			// Address of the OohLaLog server
+			URI uri = new URI( (pl.getSecure() ? "https" : "http"), null, pl.getHost(), pl.getPort(), pl.getPath(), "apiKey="+pl.getAuthToken(), null );
+
+			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Submitting to: " + uri.toString() );
+			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>" + contentType + ": " + sentLength + " bytes" );
+			final long start = System.currentTimeMillis();
+			Transport transport = pl.getTransport() != null ? pl.getTransport() : UrlConnectionTransport.getInstance();
+			return transport.post( uri, contentType, pl.getCompress(), sent, pl.getDebug() ).whenComplete( new BiConsumer<Integer,Throwable>() {
+				public void accept(Integer status, Throwable t) {
+					// The transport is done with the body, so its buffers can be reused
+					pooled.release();
+					if (used != null) used.clear();
+				}
+			}).thenCompose( new Function<Integer,CompletableFuture<Integer>>() {
+				public CompletableFuture<Integer> apply(Integer status) {
+					if (binary && status == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+						// The server does not understand the binary format, so fall back to json for good
+						if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Binary format rejected, sending json" );
+						binaryRejected = true;
+						return postAsync( pl );
+					}
+					PipelineStats.getInstance().payloadSent(uncompressedLength, sentLength, System.currentTimeMillis() - start);
+					return CompletableFuture.completedFuture( status );
+				}
+			}).exceptionally( new Function<Throwable,Integer>() {
+				public Integer apply(Throwable t) {
+					(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t).printStackTrace();
+					return NO_RESPONSE;
+				}
+			});
 		}
 		catch ( Throwable t ) {
+			if (body != null) body.release();
+			if (ownJson != null) ownJson.clear();
 			t.printStackTrace();
+			return CompletableFuture.completedFuture( NOT_SENT );
 		}
-		finally {
-			if ( os != null ) {
-				try {
-				  con.disconnect();
-					os.flush();
-					os.close();
-					con = null;
-				}
-				catch ( Throwable t ) {
-					// swallow
-				}
-			}
-		}
-		return success;
+	}
+
 
+	/**
+	 * Returns whether the server has rejected the binary format, after which every batch is sent as json.
+	 */
+	protected static boolean isBinaryRejected() {
+		return binaryRejected;
 	}
 
+
 	public String getAuthToken() {
 		return authToken;
 	}
@@ -231,10 +311,42 @@ public class Payload {
 		return debug;
 	}
 
+	public boolean getCompress() {
+		return compress;
+	}
+
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	public BinaryBatchEncoder getEncoder() {
+		return encoder;
+	}
+
+	public void setEncoder(BinaryBatchEncoder encoder) {
+		this.encoder = encoder;
+	}
+
 	public void setDebug(boolean debug) {
 		this.debug = debug;
 	}
 
+	public JsonBatchEncoder getJson() {
+		return json;
+	}
+
+	public void setJson(JsonBatchEncoder json) {
+		this.json = json;
+	}
+
+	public Transport getTransport() {
+		return transport;
+	}
+
+	public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+
 	@Override
 	public String toString() {
 		final StringBuffer sb = new StringBuffer();
@@ -245,6 +357,7 @@ public class Payload {
 		sb.append(", agent='").append(agent).append('\'');
 		sb.append(", secure='").append(secure).append('\'');
 		sb.append(", debug='").append(debug).append('\'');
+		sb.append(", compress='").append(compress).append('\'');
 		sb.append(", port=").append(port);
 		sb.append('}');
 		return sb.toString();
@@ -262,6 +375,10 @@ public class Payload {
 		private int port = 80;
 		private boolean secure = false;
 		private boolean debug = false;
+		private BinaryBatchEncoder encoder = null;
+		private JsonBatchEncoder json = null;
+		private boolean compress = false;
+		private Transport transport = null;
 		private List<LogEntry> messages = null;
 		private Map<String, Object> counters = null;
 
@@ -278,6 +395,10 @@ public class Payload {
 			pl.path = this.path;
 			pl.secure = this.secure;
 			pl.debug = this.debug;
+			pl.encoder = this.encoder;
+			pl.json = this.json;
+			pl.compress = this.compress;
+			pl.transport = this.transport;
 			return pl;
 		}
 
@@ -330,5 +451,38 @@ public class Payload {
 			this.debug = debug;
 			return this;
 		}
+
+		/**
+		 * Compresses the body of the request with gzip.
+		 */
+		public Builder compress( boolean compress ) {
+			this.compress = compress;
+			return this;
+		}
+
+		/**
+		 * Sends the payload in the binary format written by encoder, rather than as json.
+		 */
+		public Builder encoder( BinaryBatchEncoder encoder ) {
+			this.encoder = encoder;
+			return this;
+		}
+
+		/**
+		 * Encodes the json body with json, which keeps the encoding of a batch that failed for the
+		 * retry.  When it has already encoded the messages, they are not encoded again.
+		 */
+		public Builder json( JsonBatchEncoder json ) {
+			this.json = json;
+			return this;
+		}
+
+		/**
+		 * Sends the payload with transport, rather than with HttpURLConnection.
+		 */
+		public Builder transport( Transport transport ) {
+			this.transport = transport;
+			return this;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,135 @@
+package com.oohlalog.commons;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A request body, written into segments taken from the {@link PayloadBufferPool} as it grows.
+ * Encoders and gzip write into it like any OutputStream, and transports read it back as the
+ * segments themselves, so a body is never copied into one array.
+ *
+ * A body is written by one thread and then sent.  It can be cut back with {@link #truncate(int)}
+ * and written on from there, as long as it is not being sent.  Once sent, {@link #release()} gives
+ * its segments back to the pool, after which it is empty.  Closing it does nothing, so that it can
+ * be the stream under a GZIPOutputStream.
+ */
+public class PayloadBody extends OutputStream {
+	private final PayloadBufferPool pool;
+	private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+	private ByteBuffer current = null;
+	private int length = 0;
+
+
+	public PayloadBody() {
+		this(PayloadBufferPool.getInstance());
+	}
+
+
+	public PayloadBody(PayloadBufferPool pool) {
+		this.pool = pool;
+	}
+
+
+	public void write(int b) {
+		if (current == null || !current.hasRemaining()) next();
+		current.put((byte) b);
+		length++;
+	}
+
+
+	public void write(byte[] b, int off, int len) {
+		while (len > 0) {
+			if (current == null || !current.hasRemaining()) next();
+			int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+			length += n;
+		}
+	}
+
+
+	private void next() {
+		current = pool.acquire();
+		segments.add(current);
+	}
+
+
+	/**
+	 * Cuts the body back to its first length bytes, giving back the segments no longer used.
+	 */
+	public void truncate(int length) {
+		if (length >= this.length) return;
+		if (length <= 0) {
+			release();
+			return;
+		}
+		// Finds the segment the body now ends in
+		int i = 0;
+		int before = 0;
+		while (before + segments.get(i).position() < length) {
+			before += segments.get(i).position();
+			i++;
+		}
+		while (segments.size() > i + 1) {
+			pool.release(segments.remove(segments.size() - 1));
+		}
+		current = segments.get(i);
+		current.position(length - before);
+		this.length = length;
+	}
+
+
+	/**
+	 * Returns the number of bytes written.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+
+	/**
+	 * Returns the written bytes of each segment, in order, as read only buffers of their own.
+	 */
+	public ByteBuffer[] getBuffers() {
+		ByteBuffer[] buffers = new ByteBuffer[segments.size()];
+		for (int i = 0; i < buffers.length; i++) {
+			ByteBuffer buffer = segments.get(i).asReadOnlyBuffer();
+			buffer.flip();
+			buffers[i] = buffer;
+		}
+		return buffers;
+	}
+
+
+	/**
+	 * Writes the body to a stream, through a small array.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] chunk = new byte[Math.min(Math.max(length, 1), 8192)];
+		for (ByteBuffer buffer : getBuffers()) {
+			while (buffer.hasRemaining()) {
+				int n = Math.min(chunk.length, buffer.remaining());
+				buffer.get(chunk, 0, n);
+				out.write(chunk, 0, n);
+			}
+		}
+	}
+
+
+	/**
+	 * Gives the segments back to the pool.  The body must no longer be in use by a transport.
+	 */
+	public void release() {
+		for (ByteBuffer segment : segments) {
+			pool.release(segment);
+		}
+		segments.clear();
+		current = null;
+		length = 0;
+	}
+}
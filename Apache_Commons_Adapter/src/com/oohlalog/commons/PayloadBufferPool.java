@@ -0,0 +1,91 @@
+package com.oohlalog.commons;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * A bounded pool of direct ByteBuffers, all of one segment size, that request bodies are written
+ * into.  A body takes as many segments as it needs and gives them back once it has been sent, so
+ * shipping logs allocates no arrays the size of a batch, on the heap or off it.  Segments are kept
+ * well under the size at which G1 allocates an object as humongous.
+ *
+ * The pool allocates its poolSize direct segments when it is created, and never more.  When it is
+ * empty a heap segment is allocated instead, and counted as a miss.  Direct memory is only given
+ * back after a garbage collection, so allocating it on every miss could run out of it during a
+ * burst of large batches.  Heap segments are never pooled, so direct memory stays at
+ * poolSize * segmentSize bytes however large the bursts.
+ *
+ * One pool is shared by every logger of the JVM, and takes its settings from the first logger.
+ */
+public class PayloadBufferPool {
+	// The pool of this JVM, once a logger has been created
+	private static PayloadBufferPool instance = null;
+
+	private final int segmentSize;
+	private final ArrayBlockingQueue<ByteBuffer> segments;
+
+
+	/**
+	 * Creates the pool with the settings of the first logger.  Later calls leave it as it is.
+	 *
+	 * @param poolSize the largest number of segments kept for reuse
+	 * @param segmentSize the size in bytes of a segment
+	 */
+	protected static synchronized void configure(int poolSize, int segmentSize) {
+		if (instance == null) instance = new PayloadBufferPool(poolSize, segmentSize);
+	}
+
+
+	/**
+	 * Returns the pool, created with the default settings if no logger has configured it.
+	 */
+	protected static synchronized PayloadBufferPool getInstance() {
+		if (instance == null) instance = new PayloadBufferPool(32, 64 * 1024);
+		return instance;
+	}
+
+
+	private PayloadBufferPool(int poolSize, int segmentSize) {
+		this.segmentSize = Math.max(segmentSize, 1024);
+		this.segments = new ArrayBlockingQueue<ByteBuffer>(Math.max(poolSize, 1));
+		for (int i = 0; i < Math.max(poolSize, 1); i++) segments.offer(ByteBuffer.allocateDirect(this.segmentSize));
+	}
+
+
+	/**
+	 * Returns an empty segment, from the pool if it has one, else a new heap segment.
+	 */
+	protected ByteBuffer acquire() {
+		ByteBuffer segment = segments.poll();
+		PipelineStats.getInstance().payloadBufferAcquired(segment != null);
+		if (segment == null) return ByteBuffer.allocate(segmentSize);
+		segment.clear();
+		return segment;
+	}
+
+
+	/**
+	 * Gives a segment back to the pool.  It must no longer be used.  Heap segments are left to
+	 * the garbage collector.
+	 */
+	protected void release(ByteBuffer segment) {
+		if (segment.isDirect()) segments.offer(segment);
+	}
+
+
+	/**
+	 * Returns the size in bytes of a segment.
+	 */
+	protected int getSegmentSize() {
+		return segmentSize;
+	}
+
+
+	/**
+	 * Returns the number of segments in the pool, waiting to be reused.
+	 */
+	protected int getPooled() {
+		return segments.size();
+	}
+}
@@ -0,0 +1,313 @@
+package com.oohlalog.commons;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+
+/**
+ * Counters describing how the log shipping pipeline of every logger in this JVM is keeping up.
+ * They are exposed through JMX as com.oohlalog.commons:type=PipelineStats and are included in the
+ * stats upload.
+ *
+ * All updates are lock free so that the instrumentation does not add contention to log() or to
+ * the flushing threads.
+ */
+public class PipelineStats implements PipelineStatsMBean {
+	// Name the MBean is registered under
+	static final String OBJECT_NAME = "com.oohlalog.commons:type=PipelineStats";
+
+	// Number of buckets in the send latency histogram.  Bucket i holds latencies up to 2^i - 1 ms,
+	// and the last bucket holds everything longer.
+	private static final int LATENCY_BUCKETS = 16;
+
+	private static final PipelineStats instance = register(new PipelineStats());
+
+	private final LongAdder entriesEnqueued = new LongAdder();
+	private final LongAdder entriesDropped = new LongAdder();
+	private final AtomicLongArray entriesDroppedByLevel = new AtomicLongArray(LogEntry.levelNames.length);
+	private final LongAdder entriesSent = new LongAdder();
+	private final LongAdder entriesFailed = new LongAdder();
+	private final LongAdder batchesSent = new LongAdder();
+	private final LongAdder batchesFailed = new LongAdder();
+	private final LongAdder bytesBeforeCompression = new LongAdder();
+	private final LongAdder bytesAfterCompression = new LongAdder();
+	private final LongAdder logCalls = new LongAdder();
+	private final LongAdder logTimeNanos = new LongAdder();
+	private final LongAdder payloadBufferHits = new LongAdder();
+	private final LongAdder payloadBufferMisses = new LongAdder();
+	private final LongAdder fileEntriesDropped = new LongAdder();
+	private final LongAdder fileRollsFailed = new LongAdder();
+	private final AtomicLongArray sendLatency = new AtomicLongArray(LATENCY_BUCKETS);
+	private final AtomicLong bufferHighWaterMark = new AtomicLong();
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private volatile long backoffUntil = 0;
+
+	// Longest send since the stats thread last asked, so each stats sample can report it
+	private final AtomicLong maxSendLatency = new AtomicLong();
+
+
+	/**
+	 * Returns the counters shared by every logger in this JVM.
+	 *
+	 * @return the PipelineStats instance
+	 */
+	public static PipelineStats getInstance() {
+		return instance;
+	}
+
+
+	private static PipelineStats register(PipelineStats stats) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName(OBJECT_NAME));
+		} catch (Throwable t) {
+			// Already registered by a copy of the library in another class loader, or JMX is unavailable.
+			// The counters still work and are still uploaded with the stats.
+		}
+		return stats;
+	}
+
+
+	/**
+	 * Records a log entry added to a buffer holding size entries.
+	 */
+	protected void entryEnqueued(int size) {
+		entriesEnqueued.increment();
+		long highWaterMark;
+		while (size > (highWaterMark = bufferHighWaterMark.get())) {
+			if (bufferHighWaterMark.compareAndSet(highWaterMark, size)) break;
+		}
+	}
+
+	/**
+	 * Records log entries of a level discarded before they could be sent.
+	 */
+	protected void entriesDropped(int level, int count) {
+		entriesDropped.add(count);
+		entriesDroppedByLevel.addAndGet(level - 1, count);
+	}
+
+	/**
+	 * Records a batch of entries delivered to OohLaLog.
+	 */
+	protected void batchSent(int entries) {
+		batchesSent.increment();
+		entriesSent.add(entries);
+	}
+
+	/**
+	 * Records a batch of entries that failed to send.
+	 */
+	protected void batchFailed(int entries) {
+		batchesFailed.increment();
+		entriesFailed.add(entries);
+	}
+
+	/**
+	 * Records the size of a payload written to OohLaLog, and how long the request took.
+	 */
+	protected void payloadSent(long bytesBefore, long bytesAfter, long latencyMillis) {
+		bytesBeforeCompression.add(bytesBefore);
+		bytesAfterCompression.add(bytesAfter);
+		sendLatency.incrementAndGet(latencyBucket(latencyMillis));
+		long max;
+		while (latencyMillis > (max = maxSendLatency.get())) {
+			if (maxSendLatency.compareAndSet(max, latencyMillis)) break;
+		}
+	}
+
+	/**
+	 * Records a flush that succeeded, ending any backoff.
+	 */
+	protected void flushSucceeded() {
+		consecutiveFailures.set(0);
+		backoffUntil = 0;
+	}
+
+	/**
+	 * Records a flush that failed, after which flushing pauses for backoffMillis.
+	 */
+	protected void flushFailed(long backoffMillis) {
+		consecutiveFailures.incrementAndGet();
+		backoffUntil = System.currentTimeMillis() + backoffMillis;
+	}
+
+	/**
+	 * Records the time taken by a call to log().
+	 */
+	protected void logCalled(long nanos) {
+		logCalls.increment();
+		logTimeNanos.add(nanos);
+	}
+
+	/**
+	 * Records a segment for a request body taken from the pool, or allocated because the pool was empty.
+	 */
+	protected void payloadBufferAcquired(boolean hit) {
+		if (hit) payloadBufferHits.increment();
+		else payloadBufferMisses.increment();
+	}
+
+	/**
+	 * Records log entries not written to the file because its writer had fallen behind.
+	 */
+	protected void fileEntriesDropped(int count) {
+		fileEntriesDropped.add(count);
+	}
+
+	/**
+	 * Records a roll of the file that failed, after which the file is written on as it is.
+	 */
+	protected void fileRollFailed() {
+		fileRollsFailed.increment();
+	}
+
+	/**
+	 * Returns the longest send latency since the last call, and starts tracking anew.
+	 */
+	protected long takeMaxSendLatencyMillis() {
+		return maxSendLatency.getAndSet(0);
+	}
+
+	private static int latencyBucket(long millis) {
+		int bucket = 64 - Long.numberOfLeadingZeros(Math.max(millis, 0));
+		return Math.min(bucket, LATENCY_BUCKETS - 1);
+	}
+
+	private long latencyPercentile(double percentile) {
+		long[] histogram = getSendLatencyHistogram();
+		long total = 0;
+		for (long count : histogram) total += count;
+		if (total == 0) return 0;
+
+		long[] buckets = getSendLatencyBucketsMillis();
+		long rank = (long) Math.ceil(total * percentile);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= rank) return buckets[i];
+		}
+		return buckets[buckets.length - 1];
+	}
+
+	public long getEntriesEnqueued() {
+		return entriesEnqueued.sum();
+	}
+
+	public long getEntriesDropped() {
+		return entriesDropped.sum();
+	}
+
+	public long[] getEntriesDroppedByLevel() {
+		long[] dropped = new long[entriesDroppedByLevel.length()];
+		for (int i = 0; i < dropped.length; i++) {
+			dropped[i] = entriesDroppedByLevel.get(i);
+		}
+		return dropped;
+	}
+
+	/**
+	 * Returns the number of log entries of a level discarded before they could be sent.
+	 */
+	protected long getEntriesDropped(int level) {
+		return entriesDroppedByLevel.get(level - 1);
+	}
+
+	public long getEntriesSent() {
+		return entriesSent.sum();
+	}
+
+	public long getEntriesFailed() {
+		return entriesFailed.sum();
+	}
+
+	public long getBatchesSent() {
+		return batchesSent.sum();
+	}
+
+	public long getBatchesFailed() {
+		return batchesFailed.sum();
+	}
+
+	public long getBytesBeforeCompression() {
+		return bytesBeforeCompression.sum();
+	}
+
+	public long getBytesAfterCompression() {
+		return bytesAfterCompression.sum();
+	}
+
+	public long[] getSendLatencyBucketsMillis() {
+		long[] buckets = new long[LATENCY_BUCKETS];
+		for (int i = 0; i < LATENCY_BUCKETS - 1; i++) {
+			buckets[i] = (1L << i) - 1;
+		}
+		buckets[LATENCY_BUCKETS - 1] = Long.MAX_VALUE;
+		return buckets;
+	}
+
+	public long[] getSendLatencyHistogram() {
+		long[] histogram = new long[LATENCY_BUCKETS];
+		for (int i = 0; i < LATENCY_BUCKETS; i++) {
+			histogram[i] = sendLatency.get(i);
+		}
+		return histogram;
+	}
+
+	public long getSendLatencyP50Millis() {
+		return latencyPercentile(0.50);
+	}
+
+	public long getSendLatencyP99Millis() {
+		return latencyPercentile(0.99);
+	}
+
+	public long getBufferHighWaterMark() {
+		return bufferHighWaterMark.get();
+	}
+
+	public int getConsecutiveFailures() {
+		return consecutiveFailures.get();
+	}
+
+	public boolean isBackingOff() {
+		return System.currentTimeMillis() < backoffUntil;
+	}
+
+	public long getLogCalls() {
+		return logCalls.sum();
+	}
+
+	public long getLogTimeNanos() {
+		return logTimeNanos.sum();
+	}
+
+	public long getMeanLogTimeNanos() {
+		long calls = logCalls.sum();
+		return calls == 0 ? 0 : logTimeNanos.sum() / calls;
+	}
+
+	public long getPayloadBufferHits() {
+		return payloadBufferHits.sum();
+	}
+
+	public long getPayloadBufferMisses() {
+		return payloadBufferMisses.sum();
+	}
+
+	public int getPayloadBuffersPooled() {
+		return PayloadBufferPool.getInstance().getPooled();
+	}
+
+	public long getFileEntriesDropped() {
+		return fileEntriesDropped.sum();
+	}
+
+	public long getFileRollsFailed() {
+		return fileRollsFailed.sum();
+	}
+}
@@ -0,0 +1,80 @@
+package com.oohlalog.commons;
+
+
+/**
+ * JMX view of the counters kept by {@link PipelineStats} on the log shipping pipeline.
+ */
+public interface PipelineStatsMBean {
+
+	/** Number of log entries added to a buffer. */
+	long getEntriesEnqueued();
+
+	/** Number of log entries discarded before they could be sent. */
+	long getEntriesDropped();
+
+	/** Number of log entries discarded before they could be sent, per level from TRACE to FATAL. */
+	long[] getEntriesDroppedByLevel();
+
+	/** Number of log entries delivered to OohLaLog. */
+	long getEntriesSent();
+
+	/** Number of log entries in batches that failed to send.  Failed entries stay buffered and are retried. */
+	long getEntriesFailed();
+
+	/** Number of batches delivered to OohLaLog. */
+	long getBatchesSent();
+
+	/** Number of batches that failed to send. */
+	long getBatchesFailed();
+
+	/** Number of payload bytes sent, before compression. */
+	long getBytesBeforeCompression();
+
+	/** Number of payload bytes sent, after compression. */
+	long getBytesAfterCompression();
+
+	/** Upper bound, in milliseconds, of each bucket of the send latency histogram. */
+	long[] getSendLatencyBucketsMillis();
+
+	/** Number of sends per latency bucket. */
+	long[] getSendLatencyHistogram();
+
+	/** Median send latency in milliseconds, as the upper bound of its histogram bucket. */
+	long getSendLatencyP50Millis();
+
+	/** 99th percentile send latency in milliseconds, as the upper bound of its histogram bucket. */
+	long getSendLatencyP99Millis();
+
+	/** Largest number of entries held by a buffer at once. */
+	long getBufferHighWaterMark();
+
+	/** Number of flushes that have failed in a row. */
+	int getConsecutiveFailures();
+
+	/** Whether flushing is paused after a failure. */
+	boolean isBackingOff();
+
+	/** Number of calls to log() that reached the buffer. */
+	long getLogCalls();
+
+	/** Total time spent in log(), in nanoseconds. */
+	long getLogTimeNanos();
+
+	/** Mean time spent in log(), in nanoseconds. */
+	long getMeanLogTimeNanos();
+
+	/** Number of request body segments taken from the pool. */
+	long getPayloadBufferHits();
+
+	/** Number of request body segments allocated because the pool was empty. */
+	long getPayloadBufferMisses();
+
+	/** Number of request body segments in the pool, waiting to be reused. */
+	int getPayloadBuffersPooled();
+
+	/** Number of log entries not written to the local file because its writer had fallen behind. */
+	long getFileEntriesDropped();
+
+	/** Number of times the local file could not be rolled.  It is written on, and rolled again later. */
+	long getFileRollsFailed();
+}
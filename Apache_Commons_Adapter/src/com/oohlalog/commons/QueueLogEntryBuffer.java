@@ -0,0 +1,223 @@
+package com.oohlalog.commons;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A LogEntryBuffer that is mostly a wrapper for a Queue, holding a new log record per log.
+ *
+ * Logs are kept in one queue per level, which share the maxBuffer budget.  When the buffer is
+ * full, the {@link OverflowPolicy} decides whether to discard a log, wait for room, or send a
+ * batch from the calling thread; a log is only ever discarded in favor of one of the same or a
+ * higher level, so that a flood of debug logs cannot push out an error.  Logs are still flushed
+ * in the order they were added.  A log taken into a batch leaves the queues, but keeps its permit
+ * until the batch has been delivered.
+ *
+ * Adding a log takes no lock: the queues are lock free and the budget is a semaphore.
+ */
+public class QueueLogEntryBuffer extends LogEntryBuffer {
+	// Number of log levels, from LOG_LEVEL_TRACE to LOG_LEVEL_FATAL
+	private static final int LEVELS = LogEntry.levelNames.length;
+
+	// Holds all of the Logs, one queue per level, oldest first
+	private final ConcurrentLinkedDeque<LogEntry>[] queues;
+
+	// One permit per free slot.  A log holds a permit from when it is added until it is removed.
+	private final Semaphore capacity;
+
+	// Sequence number given to the next log added, which orders logs across the queues
+	private final AtomicLong nextSequence = new AtomicLong();
+
+
+	/**
+	 * Constructor that creates a LogEntry Buffer with a maximum size, which discards the oldest
+	 * logs of the lowest level when full.
+	 *
+	 * @param maxBuffer the maximum size of the LogEntry Buffer
+	 */
+	public QueueLogEntryBuffer(int maxBuffer) {
+		this(maxBuffer, OverflowPolicy.DROP_OLDEST, 0, null);
+	}
+
+
+	/**
+	 * Constructor that creates a LogEntry Buffer with a maximum size and an overflow policy.
+	 *
+	 * @param maxBuffer the maximum size of the LogEntry Buffer
+	 * @param policy what to do with a new log when the buffer is full
+	 * @param overflowTimeout the time in ms the BLOCK policy waits for room
+	 * @param logger the logger whose settings the CALLER_RUNS policy sends with
+	 */
+	@SuppressWarnings("unchecked")
+	public QueueLogEntryBuffer(int maxBuffer, OverflowPolicy policy, long overflowTimeout, OohLaLogLogger logger) {
+		super(maxBuffer, policy, overflowTimeout, logger);
+		capacity = new Semaphore(maxBuffer);
+		queues = (ConcurrentLinkedDeque<LogEntry>[]) new ConcurrentLinkedDeque<?>[LEVELS];
+		for (int i = 0; i < LEVELS; i++) {
+			queues[i] = new ConcurrentLinkedDeque<LogEntry>();
+		}
+	}
+
+
+	/**
+	 * Adds a log record to the buffer.  If the buffer is full, room is made as the overflow policy
+	 * says.  Once the buffer is closed, logs are discarded.
+	 *
+	 * @param le the log record to add to the buffer
+	 */
+	@Override
+	public void addLogToBuffer(LogEntry le) {
+		if (isClosed()) {
+			PipelineStats.getInstance().entriesDropped(le.getLevel(), 1);
+			return;
+		}
+		if (!capacity.tryAcquire() && !makeRoom(le)) return;
+
+		le.setSequence(nextSequence.getAndIncrement());
+		queues[le.getLevel() - 1].offerLast(le);
+		PipelineStats.getInstance().entryEnqueued(size());
+	}
+
+
+	/**
+	 * Adds a new log record with the given fields to the buffer, as {@link #addLogToBuffer(LogEntry)}
+	 * does.
+	 */
+	@Override
+	public void addLogToBuffer(int level, String message, String logName, String logShortName, long timeStamp, String hostName, String details, String category, long jvmSequence, StackWalker.StackFrame caller) {
+		LogEntry le = new LogEntry(level, message, logName, logShortName, timeStamp, hostName, details, category);
+		le.setJvmSequence(jvmSequence);
+		le.setCaller(caller);
+		addLogToBuffer(le);
+	}
+
+
+	/**
+	 * Makes room for a log in a full buffer as the overflow policy says.
+	 *
+	 * @return true if le now holds a permit, false if it was discarded
+	 */
+	private boolean makeRoom(LogEntry le) {
+		switch (getOverflowPolicy()) {
+			case DROP_NEWEST:
+				return evict(le, true);
+			case BLOCK:
+				try {
+					if (capacity.tryAcquire(getOverflowTimeout(), TimeUnit.MILLISECONDS)) return true;
+				}
+				catch ( InterruptedException ie ) {
+					Thread.currentThread().interrupt();
+				}
+				break;
+			case CALLER_RUNS:
+				// Other threads may take the room freed by a batch, so keep sending while that works
+				while (getLogger() != null && flushLogEntryBuffer(getLogger(), getLogger().getThreshold())) {
+					if (capacity.tryAcquire()) return true;
+				}
+				break;
+			default:
+				break;
+		}
+		return evict(le, false);
+	}
+
+
+	/**
+	 * Discards the oldest, or newest, log of the lowest level among those in the queues and le.
+	 * A log evicted from the buffer hands its permit over to le.  Logs taken into a batch have left
+	 * the queues, so they are never discarded.
+	 *
+	 * @return true if le now holds a permit, false if it was discarded
+	 */
+	private boolean evict(LogEntry le, boolean newest) {
+		int level = le.getLevel() - 1;
+		while (true) {
+			if (capacity.tryAcquire()) return true;
+			int lowest = lowestLevel();
+			if (lowest == LEVELS) {
+				// Every permit is held by a log in a batch, which cannot be discarded, or still being added
+				if (batchedSize() > 0) {
+					PipelineStats.getInstance().entriesDropped(le.getLevel(), 1);
+					return false;
+				}
+				Thread.yield();
+				continue;
+			}
+			if (lowest > level || (newest && lowest == level)) {
+				PipelineStats.getInstance().entriesDropped(le.getLevel(), 1);
+				return false;
+			}
+			LogEntry evicted = newest ? queues[lowest].pollLast() : queues[lowest].pollFirst();
+			if (evicted != null) {
+				PipelineStats.getInstance().entriesDropped(lowest + 1, 1);
+				return true;
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the index of the lowest level that has logs in the buffer, or LEVELS if it is empty.
+	 */
+	private int lowestLevel() {
+		int level = 0;
+		while (level < LEVELS && queues[level].isEmpty()) {
+			level++;
+		}
+		return level;
+	}
+
+
+	/**
+	 * Takes the oldest logs out of the queues.  They keep their permits until they are sent.
+	 *
+	 * @param num number of logs to take
+	 * @return the logs, oldest first
+	 */
+	@Override
+	protected List<LogEntry> takeLogsFromBuffer(int num) {
+		List<LogEntry> logs = new ArrayList<LogEntry>(Math.min(num, size()));
+		while (logs.size() < num) {
+			// Merges the queues by taking the oldest of their heads
+			int oldest = -1;
+			long sequence = 0;
+			for (int i = 0; i < LEVELS; i++) {
+				LogEntry head = queues[i].peekFirst();
+				if (head != null && (oldest < 0 || head.getSequence() < sequence)) {
+					oldest = i;
+					sequence = head.getSequence();
+				}
+			}
+			if (oldest < 0) break;
+			// A head evicted since it was looked at is gone, and the next log of its level is taken instead
+			LogEntry le = queues[oldest].pollFirst();
+			if (le != null) logs.add(le);
+		}
+		return logs;
+	}
+
+
+	/**
+	 * Gives back the permits of logs that were sent.
+	 */
+	@Override
+	protected void removeLogsFromBuffer(List<LogEntry> logs) {
+		capacity.release(logs.size());
+	}
+
+
+	/**
+	 * Returns the number of logs in the buffer.
+	 *
+	 * @return the number of logs in the buffer
+	 */
+	@Override
+	protected int size() {
+		return getMaxBuffer() - capacity.availablePermits();
+	}
+}
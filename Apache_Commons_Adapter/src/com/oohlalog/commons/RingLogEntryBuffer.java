@@ -0,0 +1,194 @@
+package com.oohlalog.commons;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A LogEntryBuffer whose log records are allocated once, when the buffer is created, and reused.
+ * The buffer is a ring of LogEntry slots: a thread that logs claims the next slot, fills it in
+ * place and publishes it, and flushes take the published slots from the oldest into batches and
+ * release them for reuse once they have been sent.  Logging then creates no LogEntry, and no queue
+ * node, at all.
+ *
+ * Logs can only leave the ring from the oldest end, once they have been sent, so a full ring
+ * cannot discard an older log of a lower level to make room: both DROP_OLDEST and DROP_NEWEST
+ * discard the new log, and BLOCK and CALLER_RUNS do so once they have failed to make room.
+ */
+public class RingLogEntryBuffer extends LogEntryBuffer {
+	// Time the BLOCK policy sleeps between checks for room
+	private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	// The slots, as many as the smallest power of two that holds maxBuffer logs
+	private final LogEntry[] slots;
+	private final int mask;
+
+	// Sequence number of the log each slot holds, set once the log is filled in
+	private final AtomicLongArray published;
+
+	// Sequence number of the next log to claim a slot
+	private final AtomicLong claimed = new AtomicLong();
+
+	// Logs with a lower sequence number have been sent, and their slots can be reused.  Only
+	// changed while holding the flush lock.
+	private volatile long released = 0;
+
+	// Logs with a lower sequence number have been taken into batches.  Only used while holding the
+	// flush lock.
+	private long taken = 0;
+
+	// Whether the log in each slot has been sent.  Only used while holding the flush lock.
+	private final boolean[] sent;
+
+
+	/**
+	 * Constructor that creates a ring of log records holding up to maxBuffer logs.
+	 *
+	 * @param maxBuffer the maximum size of the LogEntry Buffer
+	 * @param policy what to do with a new log when the buffer is full
+	 * @param overflowTimeout the time in ms the BLOCK policy waits for room
+	 * @param logger the logger whose settings the CALLER_RUNS policy sends with
+	 */
+	public RingLogEntryBuffer(int maxBuffer, OverflowPolicy policy, long overflowTimeout, OohLaLogLogger logger) {
+		super(maxBuffer, policy, overflowTimeout, logger);
+
+		int size = Integer.highestOneBit(Math.max(maxBuffer, 1));
+		if (size < maxBuffer) size <<= 1;
+		slots = new LogEntry[size];
+		published = new AtomicLongArray(size);
+		sent = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new LogEntry();
+			published.set(i, -1);
+		}
+		mask = size - 1;
+	}
+
+
+	/**
+	 * Adds a copy of a log record to the buffer.  The record itself is not kept.
+	 *
+	 * @param le the log record to add to the buffer
+	 */
+	@Override
+	public void addLogToBuffer(LogEntry le) {
+		addLogToBuffer(le.getLevel(), le.getMessage(), le.getLogName(), le.getLogShortName(), le.getTimeStampMillis(),
+				le.getHostName(), le.getDetails(), le.getCategory(), le.getJvmSequence(), le.getCaller());
+	}
+
+
+	/**
+	 * Fills the next slot with a log record.  If the buffer is full, room is made as the overflow
+	 * policy says, or the log is discarded.  Once the buffer is closed, logs are discarded.
+	 */
+	@Override
+	public void addLogToBuffer(int level, String message, String logName, String logShortName, long timeStamp, String hostName, String details, String category, long jvmSequence, StackWalker.StackFrame caller) {
+		long sequence = isClosed() ? -1 : claim();
+		if (sequence < 0) {
+			PipelineStats.getInstance().entriesDropped(level, 1);
+			return;
+		}
+
+		int index = (int) sequence & mask;
+		LogEntry slot = slots[index];
+		slot.set(level, message, logName, logShortName, timeStamp, hostName, details, category, jvmSequence, caller);
+		slot.setSequence(sequence);
+		// Publishes the fields written above to the flushing thread
+		published.set(index, sequence);
+		PipelineStats.getInstance().entryEnqueued(size());
+	}
+
+
+	/**
+	 * Claims the slot of the next log, waiting for room or sending from the calling thread as the
+	 * overflow policy says if the buffer is full.
+	 *
+	 * @return the sequence number of the log, or -1 if there is no room for it
+	 */
+	private long claim() {
+		OverflowPolicy policy = getOverflowPolicy();
+		OohLaLogLogger logger = getLogger();
+		long deadline = 0;
+		while (true) {
+			long sequence = claimed.get();
+			if (sequence - released >= getMaxBuffer()) {
+				// Full
+				if (policy == OverflowPolicy.BLOCK) {
+					long now = System.nanoTime();
+					if (deadline == 0) deadline = now + TimeUnit.MILLISECONDS.toNanos(getOverflowTimeout());
+					if (now - deadline >= 0) return -1;
+					LockSupport.parkNanos(BLOCK_PARK_NANOS);
+				}
+				else if (policy == OverflowPolicy.CALLER_RUNS && logger != null) {
+					if (!flushLogEntryBuffer(logger, logger.getThreshold())) return -1;
+				}
+				else {
+					return -1;
+				}
+				continue;
+			}
+			if (claimed.compareAndSet(sequence, sequence + 1)) return sequence;
+		}
+	}
+
+
+	/**
+	 * Takes the oldest logs not yet in a batch, without releasing their slots.  Stops at the first
+	 * log that is still being filled in, so that logs are sent in order.
+	 */
+	@Override
+	protected List<LogEntry> takeLogsFromBuffer(int num) {
+		List<LogEntry> logs = new ArrayList<LogEntry>(Math.min(num, size()));
+		long end = claimed.get();
+		while (taken < end && logs.size() < num) {
+			int index = (int) taken & mask;
+			if (published.get(index) != taken) break;
+			logs.add(slots[index]);
+			taken++;
+		}
+		return logs;
+	}
+
+
+	/**
+	 * Releases the slots of logs that were sent.  Slots are reused in order, so a batch delivered
+	 * ahead of an older one only has its slots released once the older one is delivered too.
+	 */
+	@Override
+	protected void removeLogsFromBuffer(List<LogEntry> logs) {
+		for (LogEntry le : logs) {
+			sent[(int) le.getSequence() & mask] = true;
+		}
+		long next = released;
+		while (next < taken && sent[(int) next & mask]) {
+			sent[(int) next & mask] = false;
+			next++;
+		}
+		released = next;
+	}
+
+
+	/**
+	 * Returns a copy of a log taken from the buffer, so that it stays as it is whatever happens to
+	 * its slot.
+	 */
+	@Override
+	protected LogEntry detach(LogEntry le) {
+		return le.copy();
+	}
+
+
+	/**
+	 * Returns the number of logs in the buffer, including those still being filled in.
+	 *
+	 * @return the number of logs in the buffer
+	 */
+	@Override
+	protected int size() {
+		return (int) (claimed.get() - released);
+	}
+}
@@ -0,0 +1,145 @@
+package com.oohlalog.commons;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Samples the stats of the JVM and uploads them, once per JVM however many loggers there are.
+ * Stats are sampled every statsSampleInterval, and each upload reports the min, max, mean and last
+ * value of every metric over the samples taken since the previous upload.
+ *
+ * So that the JVMs of a fleet started together do not all upload at the same moment, the first
+ * sample and the first upload come after a random part of their interval, and every upload after
+ * that is moved by up to statsJitter of the interval either way.  Takes its settings from the
+ * first logger that shows stats.
+ *
+ * The scheduler shared with log shipping only times the samples.  Each sample is taken on the
+ * threads that send batches, as it dumps every thread and queries the file systems, which can
+ * block on a hung mount, and must not hold up the linger deadlines of the loggers.
+ */
+public class StatsCollector implements Runnable {
+	// The collector of this JVM, once a logger that shows stats has been created
+	private static StatsCollector instance = null;
+
+	private final OohLaLogLogger logger;
+	private final long statsInterval;
+	private final long statsSampleInterval;
+	private final double jitter;
+
+	// Reused on every tick so that collecting stats does not allocate a new map each time
+	private final MetricSet metrics = new MetricSet();
+	private final MetricSet aggregated = new MetricSet();
+	private final MetricSet changed = new MetricSet();
+	private final MetricWindow window;
+	private final StatsEncoder encoder;
+
+	// Time in ms since the epoch of the next upload
+	private long nextUpload;
+
+	// Run on the scheduler when a sample is due, to take it on a sending thread
+	private final Runnable tick = new Runnable() {
+		public void run() {
+			LogControl.getSender().execute(StatsCollector.this);
+		}
+	};
+
+
+	/**
+	 * Starts collecting stats with the settings of logger, unless they are already collected.
+	 *
+	 * @param logger the logger whose settings are used
+	 * @param statsInterval the time in ms between uploads
+	 * @param statsSampleInterval the time in ms between samples
+	 */
+	protected static synchronized void start(OohLaLogLogger logger, long statsInterval, long statsSampleInterval) {
+		if (instance != null) return;
+		instance = new StatsCollector(logger, statsInterval, statsSampleInterval);
+		long firstSample = ThreadLocalRandom.current().nextLong(Math.max(instance.statsSampleInterval, 1));
+		LogControl.getScheduler().schedule(instance.tick, firstSample, TimeUnit.MILLISECONDS);
+	}
+
+
+	private StatsCollector(OohLaLogLogger logger, long statsInterval, long statsSampleInterval) {
+		this.logger = logger;
+		this.statsInterval = statsInterval;
+		this.statsSampleInterval = Math.min(statsSampleInterval, statsInterval);
+		this.jitter = Math.max(Math.min(logger.getStatsJitter(), 1), 0);
+		window = new MetricWindow((int) ((statsInterval + this.statsSampleInterval - 1) / this.statsSampleInterval));
+		encoder = new StatsEncoder(logger.getStatsEpsilon(), logger.getStatsKeyframeInterval());
+		nextUpload = System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(Math.max(statsInterval, 1));
+	}
+
+
+	/**
+	 * Takes a sample, uploads if it is time to, and schedules the next sample.
+	 */
+	public void run() {
+		try {
+			if (logger.getShowStats()) {
+				StatsUtils.getStats(logger, metrics);
+				boolean due = System.currentTimeMillis() >= nextUpload;
+				// Reads every thread, so only done for the sample an upload is made from
+				if (due && logger.getShowThreadStats()) StatsUtils.getThreadStateStats(logger, metrics);
+				window.record(metrics);
+
+				if (due) {
+					if (logger.getDebug()) System.out.println( ">>Stats Timer" );
+					nextUpload += statsInterval + jitter();
+					upload();
+				}
+			}
+		}
+		catch ( Throwable t ) {
+			t.printStackTrace();
+		}
+		finally {
+			LogControl.getScheduler().schedule(tick, statsSampleInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+
+	/**
+	 * Returns a random shift in ms of up to jitter times the interval, either way.
+	 */
+	private long jitter() {
+		long range = (long) (statsInterval * jitter);
+		return range == 0 ? 0 : ThreadLocalRandom.current().nextLong(-range, range + 1);
+	}
+
+
+	private void upload() {
+		window.aggregate(aggregated);
+		// Only send the metrics that changed since they were last sent
+		boolean keyframe = encoder.encode(aggregated, changed);
+		final StatsPayload pl= new StatsPayload.Builder()
+		.metrics(changed)
+		.keyframe(keyframe)
+		.authToken(logger.getAuthToken())
+		.host(logger.getHost())
+		.agent(logger.getAgent())
+		.path(logger.getStatsPath())
+		.port(logger.getPort())
+		.secure(logger.getSecure())
+		.debug(logger.getDebug())
+		.build();
+		if (keyframe || changed.size() > 0) {
+			// Encoded here, as the metric sets are reused by the next sample while the upload runs
+			final PayloadBody body;
+			try {
+				body = pl.encode();
+			}
+			catch ( IOException e ) {
+				e.printStackTrace();
+				return;
+			}
+			// Sent on a thread of its own, so that a slow upload never holds up the next sample
+			LogControl.getSender().execute( new Runnable() {
+				public void run() {
+					StatsPayload.send( pl, body );
+				}
+			});
+		}
+	}
+}
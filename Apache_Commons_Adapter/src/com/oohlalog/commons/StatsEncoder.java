@@ -0,0 +1,74 @@
+package com.oohlalog.commons;
+
+import java.util.Arrays;
+
+
+/**
+ * Decides which metrics go into a stats upload.  The encoder remembers the last value it sent for
+ * each metric and only passes on metrics whose value has changed by more than a relative epsilon
+ * since then, so values that rarely move, like file system totals or the max heap size, are not
+ * resent every tick.  Every keyframeInterval ticks it sends every metric regardless, so that the
+ * server can resynchronize.
+ *
+ * An encoder is not thread safe; it is meant to be owned by the thread sending the stats.
+ */
+public class StatsEncoder {
+	// Relative change a metric must exceed before it is sent again
+	private final double epsilon;
+
+	// Number of ticks between uploads that carry every metric
+	private final int keyframeInterval;
+
+	// Ticks since the last keyframe
+	private int ticks = 0;
+
+	// The last value sent for each metric, indexed by metric id
+	private double[] lastSent = new double[16];
+
+	// Whether a value has been sent for each metric, indexed by metric id
+	private boolean[] sent = new boolean[16];
+
+
+	/**
+	 * Constructor that creates a StatsEncoder.
+	 *
+	 * @param epsilon the relative change, as a fraction of the last value sent, a metric must exceed
+	 * before it is sent again.  0 sends any change.
+	 * @param keyframeInterval every keyframeInterval ticks all metrics are sent.  1 or less sends
+	 * all metrics every tick.
+	 */
+	public StatsEncoder(double epsilon, int keyframeInterval) {
+		this.epsilon = epsilon;
+		this.keyframeInterval = keyframeInterval;
+	}
+
+
+	/**
+	 * Copies the metrics that should be sent this tick into out.
+	 *
+	 * @param metrics the metrics collected this tick
+	 * @param out the metric set to fill with the metrics to send; it is cleared first
+	 * @return true if this tick is a keyframe and out holds every metric
+	 */
+	public boolean encode(MetricSet metrics, MetricSet out) {
+		out.clear();
+		boolean keyframe = ticks == 0;
+		ticks = (keyframeInterval <= 1) ? 0 : (ticks + 1) % keyframeInterval;
+
+		int registered = MetricSet.registered();
+		if (registered > sent.length) {
+			lastSent = Arrays.copyOf(lastSent, registered);
+			sent = Arrays.copyOf(sent, registered);
+		}
+		for (int id = 0; id < registered; id++) {
+			if (!metrics.contains(id)) continue;
+			double value = metrics.get(id);
+			if (keyframe || !sent[id] || Math.abs(value - lastSent[id]) > epsilon * Math.abs(lastSent[id])) {
+				out.put(id, value);
+				lastSent[id] = value;
+				sent[id] = true;
+			}
+		}
+		return keyframe;
+	}
+}
@@ -1,17 +1,19 @@
 package com.oohlalog.commons;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 
 public class StatsPayload {
 	static final String PAYLOAD_METRICS = "metrics";
 	static final String PAYLOAD_COUNTERS = "counters";
+	static final String PAYLOAD_KEYFRAME = "keyframe";
 
 	// Config
 	private String authToken = null;
@@ -19,7 +21,8 @@ public class StatsPayload {
 	private String hostName = null;
 	private String path = null;
 	private String agent = null;
-	private Map<String, Double> metrics = null;
+	private MetricSet metrics = null;
+	private boolean keyframe = true;
 	private int port;
 	private boolean secure = false;
 	private boolean debug = true;
@@ -35,81 +38,105 @@ public class StatsPayload {
 
 
 	/**
-	 * Serialize payload into a transferrable dataformat (json)
-	 * @return
+	 * Serialize payload into a transferrable dataformat (json).  The metrics are streamed
+	 * straight from the metric set rather than copied into a map first.  Unless the payload
+	 * is a keyframe, metrics missing from it have not changed since they were last sent.
+	 * @return the payload as a JSON string
 	 */
 	public String serialize( ) {
-		StatsPayload pl = this;
-		Map<String,Object> payload = new HashMap<String,Object>();
+		StringWriter out = new StringWriter();
+		try {
+			write(out);
+		} catch (IOException e) {
+			// StringWriter does not throw
+			throw new RuntimeException(e);
+		}
+		return out.toString();
+	}
+
+
+	/**
+	 * Writes the payload as json.
+	 */
+	private void write( Writer out ) throws IOException {
+		JsonWriter writer = new JsonWriter(out);
+		writer.beginObject();
+
+		// Add metrics
+		writer.name(PAYLOAD_METRICS).beginObject();
+		for (int id = 0; id < MetricSet.registered(); id++) {
+			if (metrics.contains(id)) writer.name(MetricSet.nameOf(id)).value(metrics.get(id));
+		}
+		writer.endObject();
+		writer.name("host").value(this.host);
+		writer.name(PAYLOAD_KEYFRAME).value(this.keyframe);
+
+		writer.endObject();
+		writer.close();
+	}
 
-		// Add logs
-		payload.put( PAYLOAD_METRICS, pl.metrics);
-		payload.put("host", this.host);
 
-		return new Gson().toJson( payload );
+	/**
+	 * Streams the payload as json into pooled buffers.  The metric set is only read here, so once
+	 * this returns the set can be reused while the body is sent from another thread.
+	 * @return the body, to be released by {@link #send(StatsPayload, PayloadBody)}
+	 * @throws IOException
+	 */
+	public PayloadBody encode( ) throws IOException {
+		PayloadBody body = new PayloadBody();
+		try {
+			if (getDebug()) System.out.println("Serializing: " + toString());
+			write(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+			if (getDebug()) System.out.println( ">>>>>>>>>>>JSON: " + serialize() );
+		}
+		catch ( IOException | RuntimeException e ) {
+			body.release();
+			throw e;
+		}
+		return body;
 	}
 
 
 	/**
-	 * Write this payload to remote service
+	 * Write this payload to remote service.  The json is streamed into pooled buffers, and posted
+	 * from them.
 	 * @param pl
 	 * @throws RuntimeException
 	 */
 	public static void send( StatsPayload pl ) throws RuntimeException {
-		OutputStream os = null;
-	    BufferedReader rd  = null;
-	    StringBuilder sb = null;
-	    String line = null;
-	    HttpURLConnection con = null;
+		PayloadBody body;
 		try {
-			if (pl.getDebug()) System.out.println("Serializing: " + pl.toString());
-			// Serialize payload into json
-			String json = pl.serialize();
-
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Payload: " + pl.toString() );
-
-			// Create connection to oohlalog server
-			URL url = new URL( (pl.getSecure() ? "https" : "http"), pl.getHost(), pl.getPort(), pl.getPath()+"?apiKey="+pl.getAuthToken() );
-
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Submitting to: " + url.toString() );
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>JSON: " + json.toString() );
-			con = (HttpURLConnection) url.openConnection();
-			con.setDoOutput(true);
-			con.setDoInput(true);
-			con.setInstanceFollowRedirects(false);
-			con.setRequestMethod("POST");
-			con.setRequestProperty("Content-Type", "application/json");
-			con.setRequestProperty("Content-Length", "" + json.getBytes().length);
-			con.setUseCaches(false);
+			body = pl.encode();
+		}
+		catch ( IOException e ) {
+			e.printStackTrace();
+			return;
+		}
+		send( pl, body );
+	}
 
-			// Get output stream and write json
-			os = con.getOutputStream();
-			os.write( json.getBytes() );
 
-			rd  = new BufferedReader(new InputStreamReader(con.getInputStream()));
-			sb = new StringBuilder();
+	/**
+	 * Write a payload already encoded by {@link #encode()} to remote service, and release its body.
+	 * @param pl
+	 * @param body
+	 * @throws RuntimeException
+	 */
+	public static void send( StatsPayload pl, PayloadBody body ) throws RuntimeException {
+		try {
+			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Payload: " + pl.toString() );
 
-			while ((line = rd.readLine()) != null){
-			  sb.append(line + '\n');
-			}
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Received: " + sb.toString() );
+			// Address of the OohLaLog server
+			URI uri = new URI( (pl.getSecure() ? "https" : "http"), null, pl.getHost(), pl.getPort(), pl.getPath(), "apiKey="+pl.getAuthToken(), null );
 
+			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Submitting to: " + uri.toString() );
+			UrlConnectionTransport.getInstance().post( uri, "application/json", false, body, pl.getDebug() ).join();
 		}
 		catch ( Throwable t ) {
-			t.printStackTrace();
+			(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t).printStackTrace();
 		}
 		finally {
-			if ( os != null ) {
-				try {
-				  con.disconnect();
-					os.flush();
-					os.close();
-					con = null;
-				}
-				catch ( Throwable t ) {
-					// swallow
-				}
-			}
+			body.release();
 		}
 	}
 
@@ -138,6 +165,14 @@ public class StatsPayload {
 	}
 
 
+	public boolean getKeyframe() {
+		return keyframe;
+	}
+
+	public void setKeyframe(boolean keyframe) {
+		this.keyframe = keyframe;
+	}
+
 	public Map<String, Object> getCounters() {
 		return counters;
 	}
@@ -213,7 +248,8 @@ public class StatsPayload {
 		private int port = 80;
 		private boolean secure = false;
 		private boolean debug = false;
-		private Map<String, Double> metrics = null;
+		private MetricSet metrics = null;
+		private boolean keyframe = true;
 		private Map<String, Object> counters = null;
 
 		public Builder() {}
@@ -223,6 +259,7 @@ public class StatsPayload {
 			pl.host = this.host;
 			pl.hostName = this.hostName;
 			pl.metrics = this.metrics;
+			pl.keyframe = this.keyframe;
 			pl.counters = this.counters;
 			pl.port = this.port;
 			pl.agent = this.agent;
@@ -257,11 +294,16 @@ public class StatsPayload {
 			return this;
 		}
 
-		public Builder metrics( Map<String, Double> metrics ) {
+		public Builder metrics( MetricSet metrics ) {
 			this.metrics = metrics;
 			return this;
 		}
 
+		public Builder keyframe( boolean keyframe ) {
+			this.keyframe = keyframe;
+			return this;
+		}
+
 		public Builder counters( Map<String,Object> counters ) {
 			this.counters = counters;
 			return this;
@@ -1,136 +1,582 @@
 package com.oohlalog.commons;
 
 import java.io.*;
-import java.util.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.lang.reflect.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 public class StatsUtils {
-	private static Object sysmonInstance = getJavaSysMonInstance("JavaSysMon");
-	private static Class sysmonClass = getJavaSysMonClass("JavaSysMon");
-	private static Class memoryStatsClass = getJavaSysMonClass("MemoryStats");
-	private static Class cpuTimesClass = getJavaSysMonClass("CpuTimes");
+	// Metric ids
+	private static final int JVM_MAX_MEMORY = MetricSet.register("memory.jvm.maxMemory");
+	private static final int JVM_FREE_MEMORY = MetricSet.register("memory.jvm.freeMemory");
+	private static final int JVM_TOTAL_MEMORY = MetricSet.register("memory.jvm.totalMemory");
+	private static final int JVM_USED_MEMORY = MetricSet.register("memory.jvm.usedMemory");
+	private static final int HEAP_USED = MetricSet.register("memory.heap.used");
+	private static final int HEAP_COMMITTED = MetricSet.register("memory.heap.committed");
+	private static final int NON_HEAP_USED = MetricSet.register("memory.nonHeap.used");
+	private static final int NON_HEAP_COMMITTED = MetricSet.register("memory.nonHeap.committed");
+	private static final int PHYSICAL_FREE = MetricSet.register("memory.physical.freeBytes");
+	private static final int PHYSICAL_TOTAL = MetricSet.register("memory.physical.totalBytes");
+	private static final int SWAP_FREE = MetricSet.register("memory.swap.freeBytes");
+	private static final int SWAP_TOTAL = MetricSet.register("memory.swap.totalBytes");
+	private static final int CPU_IDLE_MILLIS = MetricSet.register("cpu.idleMillis");
+	private static final int CPU_TOTAL_MILLIS = MetricSet.register("cpu.totalMillis");
+	private static final int CPU_SYSTEM_MILLIS = MetricSet.register("cpu.systemMillis");
+	private static final int CPU_USER_MILLIS = MetricSet.register("cpu.userMillis");
+	private static final int CPU_USAGE = MetricSet.register("cpu.cpuUsage");
+	private static final int CPU_PROCESS_USAGE = MetricSet.register("cpu.processCpuUsage");
+	private static final int CPU_PROCESS_MILLIS = MetricSet.register("cpu.processCpuMillis");
+	private static final int CPU_LOAD_AVERAGE = MetricSet.register("cpu.loadAverage");
+	private static final int THREADS_LIVE = MetricSet.register("threads.live");
+	private static final int THREADS_DAEMON = MetricSet.register("threads.daemon");
+	private static final int THREADS_PEAK = MetricSet.register("threads.peak");
+	private static final int THREADS_STARTED = MetricSet.register("threads.started");
+	private static final int THREADS_STARTED_DELTA = MetricSet.register("threads.startedDelta");
+	private static final int CLASSES_LOADED = MetricSet.register("classes.loaded");
+	private static final int CLASSES_TOTAL_LOADED = MetricSet.register("classes.totalLoaded");
+	private static final int CLASSES_TOTAL_LOADED_DELTA = MetricSet.register("classes.totalLoadedDelta");
+	private static final int CLASSES_UNLOADED = MetricSet.register("classes.unloaded");
+	private static final int CLASSES_UNLOADED_DELTA = MetricSet.register("classes.unloadedDelta");
+	private static final int JIT_TIME = MetricSet.register("jit.compilationMillis");
+	private static final int JIT_TIME_DELTA = MetricSet.register("jit.compilationMillisDelta");
+	private static final int SAFEPOINT_COUNT = MetricSet.register("safepoint.count");
+	private static final int SAFEPOINT_COUNT_DELTA = MetricSet.register("safepoint.countDelta");
+	private static final int SAFEPOINT_TIME = MetricSet.register("safepoint.timeMillis");
+	private static final int SAFEPOINT_TIME_DELTA = MetricSet.register("safepoint.timeMillisDelta");
+	private static final int SAFEPOINT_SYNC_TIME = MetricSet.register("safepoint.syncTimeMillis");
+	private static final int SAFEPOINT_SYNC_TIME_DELTA = MetricSet.register("safepoint.syncTimeMillisDelta");
+	private static final int PIPELINE_ENQUEUED = MetricSet.register("oohlalog.entries.enqueued");
+	private static final int PIPELINE_ENQUEUED_DELTA = MetricSet.register("oohlalog.entries.enqueuedDelta");
+	private static final int PIPELINE_DROPPED = MetricSet.register("oohlalog.entries.dropped");
+	private static final int PIPELINE_DROPPED_DELTA = MetricSet.register("oohlalog.entries.droppedDelta");
+	private static final int[] PIPELINE_DROPPED_BY_LEVEL = new int[LogEntry.levelNames.length];
+	private static final int[] PIPELINE_DROPPED_BY_LEVEL_DELTA = new int[LogEntry.levelNames.length];
+	static {
+		for (int i = 0; i < LogEntry.levelNames.length; i++) {
+			PIPELINE_DROPPED_BY_LEVEL[i] = MetricSet.register("oohlalog.entries.dropped." + LogEntry.levelNames[i]);
+			PIPELINE_DROPPED_BY_LEVEL_DELTA[i] = MetricSet.register("oohlalog.entries.droppedDelta." + LogEntry.levelNames[i]);
+		}
+	}
+	private static final int PIPELINE_SENT = MetricSet.register("oohlalog.entries.sent");
+	private static final int PIPELINE_SENT_DELTA = MetricSet.register("oohlalog.entries.sentDelta");
+	private static final int PIPELINE_FAILED = MetricSet.register("oohlalog.entries.failed");
+	private static final int PIPELINE_FAILED_DELTA = MetricSet.register("oohlalog.entries.failedDelta");
+	private static final int PIPELINE_BATCHES_SENT = MetricSet.register("oohlalog.batches.sent");
+	private static final int PIPELINE_BATCHES_SENT_DELTA = MetricSet.register("oohlalog.batches.sentDelta");
+	private static final int PIPELINE_BATCHES_FAILED = MetricSet.register("oohlalog.batches.failed");
+	private static final int PIPELINE_BATCHES_FAILED_DELTA = MetricSet.register("oohlalog.batches.failedDelta");
+	private static final int PIPELINE_BYTES_BEFORE = MetricSet.register("oohlalog.bytes.beforeCompression");
+	private static final int PIPELINE_BYTES_BEFORE_DELTA = MetricSet.register("oohlalog.bytes.beforeCompressionDelta");
+	private static final int PIPELINE_BYTES_AFTER = MetricSet.register("oohlalog.bytes.afterCompression");
+	private static final int PIPELINE_BYTES_AFTER_DELTA = MetricSet.register("oohlalog.bytes.afterCompressionDelta");
+	private static final int PIPELINE_LATENCY_P50 = MetricSet.register("oohlalog.send.latencyP50Millis");
+	private static final int PIPELINE_LATENCY_P99 = MetricSet.register("oohlalog.send.latencyP99Millis");
+	private static final int PIPELINE_LATENCY_MAX = MetricSet.register("oohlalog.send.latencyMaxMillis");
+	private static final int PIPELINE_HIGH_WATER_MARK = MetricSet.register("oohlalog.buffer.highWaterMark");
+	private static final int PIPELINE_CONSECUTIVE_FAILURES = MetricSet.register("oohlalog.flush.consecutiveFailures");
+	private static final int PIPELINE_BACKING_OFF = MetricSet.register("oohlalog.flush.backingOff");
+	private static final int PIPELINE_LOG_CALLS = MetricSet.register("oohlalog.log.calls");
+	private static final int PIPELINE_LOG_CALLS_DELTA = MetricSet.register("oohlalog.log.callsDelta");
+	private static final int PIPELINE_LOG_NANOS = MetricSet.register("oohlalog.log.timeNanos");
+	private static final int PIPELINE_LOG_NANOS_DELTA = MetricSet.register("oohlalog.log.timeNanosDelta");
+	private static final int PIPELINE_FILE_DROPPED = MetricSet.register("oohlalog.file.dropped");
+	private static final int PIPELINE_FILE_DROPPED_DELTA = MetricSet.register("oohlalog.file.droppedDelta");
+	private static final int PIPELINE_FILE_ROLLS_FAILED = MetricSet.register("oohlalog.file.rollsFailed");
+	private static final int PAYLOAD_POOL_HITS = MetricSet.register("oohlalog.payloadPool.hits");
+	private static final int PAYLOAD_POOL_HITS_DELTA = MetricSet.register("oohlalog.payloadPool.hitsDelta");
+	private static final int PAYLOAD_POOL_MISSES = MetricSet.register("oohlalog.payloadPool.misses");
+	private static final int PAYLOAD_POOL_MISSES_DELTA = MetricSet.register("oohlalog.payloadPool.missesDelta");
+	private static final int PAYLOAD_POOL_POOLED = MetricSet.register("oohlalog.payloadPool.pooled");
+
+	// Ids of the thread count per state, indexed by Thread.State ordinal
+	private static final int[] threadStateIds = getThreadStateIds();
+
+	// Thread count per state, reused from one upload to the next
+	private static final int[] threadStateCounts = new int[threadStateIds.length];
+
+	// Ids of the file system metrics, by root: totalSpace, usableSpace, freeSpace
+	private static final ConcurrentMap<File,int[]> fileSystemIds = new ConcurrentHashMap<File,int[]>();
+
+	// JMX beans
+	private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+	private static final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+	private static final com.sun.management.OperatingSystemMXBean platformOsBean = getPlatformOsBean();
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private static final ClassLoadingMXBean classLoadingBean = ManagementFactory.getClassLoadingMXBean();
+	private static final CompilationMXBean compilationBean = ManagementFactory.getCompilationMXBean();
 
-	public static Map<String,Double> getStats(OohLaLogLogger logger) {
-		Map<String, Double> map = new HashMap<String, Double>();
-		if (logger.getShowMemoryStats()) getMemoryStats(logger, map);
-		if (logger.getShowFileSystemStats()) getFileSystemStats(logger, map);
-		if (logger.getShowCPUStats()) getCpuStats(logger, map);
-		return map;
+	// The collectors and pools of a JVM are fixed at startup, so they and their metric ids are looked up once
+	private static final List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+	private static final int[][] gcIds = getGcIds();
+	private static final List<BufferPoolMXBean> bufferPoolBeans = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+	private static final int[][] bufferPoolIds = getBufferPoolIds();
+	private static final List<MemoryPoolMXBean> memoryPoolBeans = getNonHeapMemoryPools();
+	private static final int[][] memoryPoolIds = getMemoryPoolIds();
+
+	// HotSpot safepoint counters.  These live in sun.management, so they are null unless
+	// java.management exports that package to us (--add-exports java.management/sun.management=ALL-UNNAMED)
+	private static final Object hotspotRuntime = getHotspotRuntime();
+	private static final MethodHandle safepointCount = getHotspotRuntimeHandle("getSafepointCount");
+	private static final MethodHandle safepointTime = getHotspotRuntimeHandle("getTotalSafepointTime");
+	private static final MethodHandle safepointSyncTime = getHotspotRuntimeHandle("getSafepointSyncTime");
+
+	// JavaSysMon accessors, resolved once.  All are null when JavaSysMon is not on the classpath
+	private static final Object sysmonInstance = getJavaSysMonInstance("JavaSysMon");
+	private static final MethodHandle sysmonPhysical = getJavaSysMonHandle("JavaSysMon", "physical", MethodType.methodType(Object.class, Object.class));
+	private static final MethodHandle sysmonSwap = getJavaSysMonHandle("JavaSysMon", "swap", MethodType.methodType(Object.class, Object.class));
+	private static final MethodHandle sysmonCpuTimes = getJavaSysMonHandle("JavaSysMon", "cpuTimes", MethodType.methodType(Object.class, Object.class));
+	private static final MethodHandle memoryFreeBytes = getJavaSysMonHandle("MemoryStats", "getFreeBytes", MethodType.methodType(double.class, Object.class));
+	private static final MethodHandle memoryTotalBytes = getJavaSysMonHandle("MemoryStats", "getTotalBytes", MethodType.methodType(double.class, Object.class));
+	private static final MethodHandle cpuIdleMillis = getJavaSysMonHandle("CpuTimes", "getIdleMillis", MethodType.methodType(double.class, Object.class));
+	private static final MethodHandle cpuTotalMillis = getJavaSysMonHandle("CpuTimes", "getTotalMillis", MethodType.methodType(double.class, Object.class));
+	private static final MethodHandle cpuSystemMillis = getJavaSysMonHandle("CpuTimes", "getSystemMillis", MethodType.methodType(double.class, Object.class));
+	private static final MethodHandle cpuUserMillis = getJavaSysMonHandle("CpuTimes", "getUserMillis", MethodType.methodType(double.class, Object.class));
+	private static final MethodHandle cpuUsage = getJavaSysMonHandle("CpuTimes", "getCpuUsage", MethodType.methodType(double.class, Object.class, Object.class));
+
+
+	/**
+	 * Collects every enabled group of statistics into the given metric set in a single pass.  The
+	 * set is cleared first so that it can be reused from one tick to the next; cumulative counters
+	 * are reported along with their delta against the values collected into the same set on the
+	 * previous tick.
+	 *
+	 * @param logger the logger whose settings select the statistics to collect
+	 * @param metrics the metric set to fill
+	 * @return the filled metric set
+	 */
+	public static MetricSet getStats(OohLaLogLogger logger, MetricSet metrics) {
+		metrics.clear();
+		if (logger.getShowMemoryStats()) getMemoryStats(logger, metrics);
+		if (logger.getShowFileSystemStats()) getFileSystemStats(logger, metrics);
+		if (logger.getShowCPUStats()) getCpuStats(logger, metrics);
+		if (logger.getShowGCStats()) getGcStats(logger, metrics);
+		if (logger.getShowThreadStats()) getThreadStats(logger, metrics);
+		if (logger.getShowClassLoadingStats()) getClassLoadingStats(logger, metrics);
+		if (logger.getShowBufferPoolStats()) getBufferPoolStats(logger, metrics);
+		if (logger.getShowMemoryPoolStats()) getMemoryPoolStats(logger, metrics);
+		if (logger.getShowCompilationStats()) getCompilationStats(logger, metrics);
+		if (logger.getShowPipelineStats()) getPipelineStats(logger, metrics);
+		if (logger.getShowPayloadPoolStats()) getPayloadPoolStats(logger, metrics);
+		return metrics;
 	}
 
-	public static Map<String,Double> getMemoryStats(OohLaLogLogger logger, Map<String,Double> map) {
-		if (map == null) map = new HashMap<String, Double>();
+	public static MetricSet getMemoryStats(OohLaLogLogger logger, MetricSet metrics) {
 		Runtime runtime = Runtime.getRuntime();
-		map.put("memory.jvm.maxMemory", new Double(runtime.maxMemory()));
-		map.put("memory.jvm.freeMemory", new Double(runtime.freeMemory()));
-		map.put("memory.jvm.totalMemory", new Double(runtime.totalMemory()));
-		map.put("memory.jvm.usedMemory", new Double(runtime.totalMemory() - runtime.freeMemory()));
+		long totalMemory = runtime.totalMemory();
+		long freeMemory = runtime.freeMemory();
+		metrics.put(JVM_MAX_MEMORY, runtime.maxMemory());
+		metrics.put(JVM_FREE_MEMORY, freeMemory);
+		metrics.put(JVM_TOTAL_MEMORY, totalMemory);
+		metrics.put(JVM_USED_MEMORY, totalMemory - freeMemory);
+
+		MemoryUsage heap = memoryBean.getHeapMemoryUsage();
+		metrics.put(HEAP_USED, heap.getUsed());
+		metrics.put(HEAP_COMMITTED, heap.getCommitted());
+		MemoryUsage nonHeap = memoryBean.getNonHeapMemoryUsage();
+		metrics.put(NON_HEAP_USED, nonHeap.getUsed());
+		metrics.put(NON_HEAP_COMMITTED, nonHeap.getCommitted());
 
 		try {
-			Object physicalMemoryResults = getJavaSysMonResult("physical");
-			if (physicalMemoryResults != null) {
-				map.put("memory.physical.freeBytes", new Double(getJavaSysMonResultProperty(physicalMemoryResults, memoryStatsClass, "getFreeBytes").toString() ));
-				map.put("memory.physical.totalBytes", new Double(getJavaSysMonResultProperty(physicalMemoryResults, memoryStatsClass, "getTotalBytes").toString() ));
+			if (platformOsBean != null) {
+				metrics.put(PHYSICAL_FREE, platformOsBean.getFreePhysicalMemorySize());
+				metrics.put(PHYSICAL_TOTAL, platformOsBean.getTotalPhysicalMemorySize());
+				metrics.put(SWAP_FREE, platformOsBean.getFreeSwapSpaceSize());
+				metrics.put(SWAP_TOTAL, platformOsBean.getTotalSwapSpaceSize());
 			}
-			Object swapMemoryResults = getJavaSysMonResult("swap");
-			if (swapMemoryResults != null) {
-				map.put("memory.swap.freeBytes", new Double(getJavaSysMonResultProperty(swapMemoryResults, memoryStatsClass, "getFreeBytes").toString() ));
-				map.put("memory.swap.totalBytes", new Double(getJavaSysMonResultProperty(swapMemoryResults, memoryStatsClass, "getTotalBytes").toString() ));
+			else if (sysmonPhysical != null) {
+				Object physicalMemoryResults = sysmonPhysical.invokeExact(sysmonInstance);
+				if (physicalMemoryResults != null) {
+					metrics.put(PHYSICAL_FREE, (double) memoryFreeBytes.invokeExact(physicalMemoryResults));
+					metrics.put(PHYSICAL_TOTAL, (double) memoryTotalBytes.invokeExact(physicalMemoryResults));
+				}
+				Object swapMemoryResults = sysmonSwap.invokeExact(sysmonInstance);
+				if (swapMemoryResults != null) {
+					metrics.put(SWAP_FREE, (double) memoryFreeBytes.invokeExact(swapMemoryResults));
+					metrics.put(SWAP_TOTAL, (double) memoryTotalBytes.invokeExact(swapMemoryResults));
+				}
 			}
-		} catch (RuntimeException e) {
-			if (logger.getDebug()) System.err.println(e.getMessage());
+		} catch (Throwable t) {
+			if (logger.getDebug()) System.err.println(t.getMessage());
 		}
-		return map;
+		return metrics;
 	}
 
-	public static Map<String,Double> getCpuStats(OohLaLogLogger logger, Map<String,Double> map ) {
-		if (map == null) map = new HashMap<String, Double>();
+	public static MetricSet getCpuStats(OohLaLogLogger logger, MetricSet metrics) {
+		double loadAverage = osBean.getSystemLoadAverage();
+		if (loadAverage >= 0) metrics.put(CPU_LOAD_AVERAGE, loadAverage);
 
 		try {
-			Object results = getJavaSysMonResult("cpuTimes");
-			if (results != null) {
-				map.put("cpu.idleMillis", new Double(getJavaSysMonResultProperty(results, cpuTimesClass, "getIdleMillis").toString() ));
-				map.put("cpu.totalMillis", new Double(getJavaSysMonResultProperty(results, cpuTimesClass, "getTotalMillis").toString() ));
-				map.put("cpu.systemMillis", new Double(getJavaSysMonResultProperty(results, cpuTimesClass, "getSystemMillis").toString() ));
-				map.put("cpu.userMillis", new Double(getJavaSysMonResultProperty(results, cpuTimesClass, "getUserMillis").toString() ));
-				if (logger.previousCpuUsage != null) {
-					try {
-						Method method = cpuTimesClass.getMethod("getCpuUsage", cpuTimesClass);
-						map.put("cpu.cpuUsage", new Double(method.invoke(results, logger.previousCpuUsage).toString()));
+			if (platformOsBean != null) {
+				// Negative values mean the platform could not provide the value
+				double systemCpuLoad = platformOsBean.getSystemCpuLoad();
+				if (systemCpuLoad >= 0) metrics.put(CPU_USAGE, systemCpuLoad);
+				double processCpuLoad = platformOsBean.getProcessCpuLoad();
+				if (processCpuLoad >= 0) metrics.put(CPU_PROCESS_USAGE, processCpuLoad);
+				long processCpuTime = platformOsBean.getProcessCpuTime();
+				if (processCpuTime >= 0) metrics.put(CPU_PROCESS_MILLIS, processCpuTime / 1000000d);
+			}
 
-					} catch (Throwable t) {
-						if (logger.getDebug()) System.err.println(t.getMessage());
+			// JMX has no machine wide breakdown of cpu time, so JavaSysMon still supplies it when present
+			if (sysmonCpuTimes != null) {
+				Object results = sysmonCpuTimes.invokeExact(sysmonInstance);
+				if (results != null) {
+					metrics.put(CPU_IDLE_MILLIS, (double) cpuIdleMillis.invokeExact(results));
+					metrics.put(CPU_TOTAL_MILLIS, (double) cpuTotalMillis.invokeExact(results));
+					metrics.put(CPU_SYSTEM_MILLIS, (double) cpuSystemMillis.invokeExact(results));
+					metrics.put(CPU_USER_MILLIS, (double) cpuUserMillis.invokeExact(results));
+					if (!metrics.contains(CPU_USAGE) && logger.previousCpuUsage != null) {
+						metrics.put(CPU_USAGE, (double) cpuUsage.invokeExact(results, logger.previousCpuUsage));
 					}
+					logger.previousCpuUsage = results;
 				}
-				logger.previousCpuUsage = results;
 			}
-		} catch (RuntimeException e) {
-			if (logger.getDebug()) System.err.println(e.getMessage());
+		} catch (Throwable t) {
+			if (logger.getDebug()) System.err.println(t.getMessage());
 		}
-		return map;
+		return metrics;
 	}
 
 
-	public static Map<String,Double> getFileSystemStats(OohLaLogLogger logger, Map<String,Double> map) {
-		if (map == null) map = new HashMap<String, Double>();
+	public static MetricSet getFileSystemStats(OohLaLogLogger logger, MetricSet metrics) {
 		File[] paths;
-		try {      
+		try {
 			// returns pathnames for files and directory
 			paths = File.listRoots();
 			for(File path:paths) {
-				map.put("fileSystem."+path.toString() + ".totalSpace", new Double(path.getTotalSpace()));
-				map.put("fileSystem."+path.toString() + ".usableSpace", new Double(path.getUsableSpace()));
-				map.put("fileSystem."+path.toString() + ".freeSpace", new Double(path.getFreeSpace()));
+				int[] ids = getFileSystemIds(path);
+				metrics.put(ids[0], path.getTotalSpace());
+				metrics.put(ids[1], path.getUsableSpace());
+				metrics.put(ids[2], path.getFreeSpace());
 			}
 		} catch(Throwable e){
 			if (logger.getDebug()) System.err.println(e.getMessage());
-		}		
-		return map;
+		}
+		return metrics;
 	}
 
-	private static Class getJavaSysMonClass(String className) {
+	public static MetricSet getGcStats(OohLaLogLogger logger, MetricSet metrics) {
 		try {
-			return Class.forName("com.jezhumble.javasysmon."+className);
-		} catch (Throwable e) {
-			//System.err.println(e.getMessage());
-			return null;
+			for (int i = 0; i < gcBeans.size(); i++) {
+				GarbageCollectorMXBean bean = gcBeans.get(i);
+				int[] ids = gcIds[i];
+				// Both are -1 when the collector does not report them
+				long count = bean.getCollectionCount();
+				if (count >= 0) metrics.putWithDelta(ids[0], ids[1], count);
+				long time = bean.getCollectionTime();
+				if (time >= 0) metrics.putWithDelta(ids[2], ids[3], time);
+			}
+		} catch (Throwable t) {
+			if (logger.getDebug()) System.err.println(t.getMessage());
 		}
+		return metrics;
 	}
 
-	private static Object getJavaSysMonInstance(String className) {
+	public static MetricSet getThreadStats(OohLaLogLogger logger, MetricSet metrics) {
 		try {
-			return Class.forName("com.jezhumble.javasysmon."+className).newInstance();
+			metrics.put(THREADS_LIVE, threadBean.getThreadCount());
+			metrics.put(THREADS_DAEMON, threadBean.getDaemonThreadCount());
+			metrics.put(THREADS_PEAK, threadBean.getPeakThreadCount());
+			metrics.putWithDelta(THREADS_STARTED, THREADS_STARTED_DELTA, threadBean.getTotalStartedThreadCount());
+		} catch (Throwable t) {
+			if (logger.getDebug()) System.err.println(t.getMessage());
+		}
+		return metrics;
+	}
+
+	/**
+	 * Counts the threads in each state.  This reads a ThreadInfo for every thread, so unlike the
+	 * other groups it is only collected when stats are uploaded, not on every sample.
+	 *
+	 * @param logger the logger whose settings are used
+	 * @param metrics the metric set to fill
+	 * @return the filled metric set
+	 */
+	public static MetricSet getThreadStateStats(OohLaLogLogger logger, MetricSet metrics) {
+		try {
+			// A depth of zero skips the stack traces, which are the expensive part
+			ThreadInfo[] infos = threadBean.getThreadInfo(threadBean.getAllThreadIds(), 0);
+			synchronized (threadStateCounts) {
+				Arrays.fill(threadStateCounts, 0);
+				for (ThreadInfo info : infos) {
+					// Threads that died since the ids were read come back as null
+					if (info != null) threadStateCounts[info.getThreadState().ordinal()]++;
+				}
+				for (int i = 0; i < threadStateCounts.length; i++) {
+					metrics.put(threadStateIds[i], threadStateCounts[i]);
+				}
+			}
+		} catch (Throwable t) {
+			if (logger.getDebug()) System.err.println(t.getMessage());
+		}
+		return metrics;
+	}
+
+	public static MetricSet getClassLoadingStats(OohLaLogLogger logger, MetricSet metrics) {
+		try {
+			metrics.put(CLASSES_LOADED, classLoadingBean.getLoadedClassCount());
+			metrics.putWithDelta(CLASSES_TOTAL_LOADED, CLASSES_TOTAL_LOADED_DELTA, classLoadingBean.getTotalLoadedClassCount());
+			metrics.putWithDelta(CLASSES_UNLOADED, CLASSES_UNLOADED_DELTA, classLoadingBean.getUnloadedClassCount());
+		} catch (Throwable t) {
+			if (logger.getDebug()) System.err.println(t.getMessage());
+		}
+		return metrics;
+	}
+
+	public static MetricSet getBufferPoolStats(OohLaLogLogger logger, MetricSet metrics) {
+		try {
+			for (int i = 0; i < bufferPoolBeans.size(); i++) {
+				BufferPoolMXBean bean = bufferPoolBeans.get(i);
+				int[] ids = bufferPoolIds[i];
+				metrics.put(ids[0], bean.getCount());
+				metrics.put(ids[1], bean.getMemoryUsed());
+				metrics.put(ids[2], bean.getTotalCapacity());
+			}
+		} catch (Throwable t) {
+			if (logger.getDebug()) System.err.println(t.getMessage());
+		}
+		return metrics;
+	}
+
+	public static MetricSet getMemoryPoolStats(OohLaLogLogger logger, MetricSet metrics) {
+		try {
+			for (int i = 0; i < memoryPoolBeans.size(); i++) {
+				MemoryPoolMXBean bean = memoryPoolBeans.get(i);
+				int[] ids = memoryPoolIds[i];
+				MemoryUsage usage = bean.getUsage();
+				// The usage is null once a pool is no longer valid
+				if (usage == null) continue;
+				metrics.put(ids[0], usage.getUsed());
+				metrics.put(ids[1], usage.getCommitted());
+				// -1 when the pool has no maximum, as is the default for Metaspace
+				if (usage.getMax() >= 0) metrics.put(ids[2], usage.getMax());
+			}
+		} catch (Throwable t) {
+			if (logger.getDebug()) System.err.println(t.getMessage());
+		}
+		return metrics;
+	}
+
+	public static MetricSet getCompilationStats(OohLaLogLogger logger, MetricSet metrics) {
+		try {
+			if (compilationBean != null && compilationBean.isCompilationTimeMonitoringSupported()) {
+				metrics.putWithDelta(JIT_TIME, JIT_TIME_DELTA, compilationBean.getTotalCompilationTime());
+			}
+			if (safepointCount != null) {
+				metrics.putWithDelta(SAFEPOINT_COUNT, SAFEPOINT_COUNT_DELTA, (double) safepointCount.invokeExact(hotspotRuntime));
+				metrics.putWithDelta(SAFEPOINT_TIME, SAFEPOINT_TIME_DELTA, (double) safepointTime.invokeExact(hotspotRuntime));
+				metrics.putWithDelta(SAFEPOINT_SYNC_TIME, SAFEPOINT_SYNC_TIME_DELTA, (double) safepointSyncTime.invokeExact(hotspotRuntime));
+			}
+		} catch (Throwable t) {
+			if (logger.getDebug()) System.err.println(t.getMessage());
+		}
+		return metrics;
+	}
+
+	public static MetricSet getPipelineStats(OohLaLogLogger logger, MetricSet metrics) {
+		PipelineStats stats = PipelineStats.getInstance();
+		metrics.putWithDelta(PIPELINE_ENQUEUED, PIPELINE_ENQUEUED_DELTA, stats.getEntriesEnqueued());
+		metrics.putWithDelta(PIPELINE_DROPPED, PIPELINE_DROPPED_DELTA, stats.getEntriesDropped());
+		for (int i = 0; i < PIPELINE_DROPPED_BY_LEVEL.length; i++) {
+			metrics.putWithDelta(PIPELINE_DROPPED_BY_LEVEL[i], PIPELINE_DROPPED_BY_LEVEL_DELTA[i], stats.getEntriesDropped(i + 1));
+		}
+		metrics.putWithDelta(PIPELINE_SENT, PIPELINE_SENT_DELTA, stats.getEntriesSent());
+		metrics.putWithDelta(PIPELINE_FAILED, PIPELINE_FAILED_DELTA, stats.getEntriesFailed());
+		metrics.putWithDelta(PIPELINE_BATCHES_SENT, PIPELINE_BATCHES_SENT_DELTA, stats.getBatchesSent());
+		metrics.putWithDelta(PIPELINE_BATCHES_FAILED, PIPELINE_BATCHES_FAILED_DELTA, stats.getBatchesFailed());
+		metrics.putWithDelta(PIPELINE_BYTES_BEFORE, PIPELINE_BYTES_BEFORE_DELTA, stats.getBytesBeforeCompression());
+		metrics.putWithDelta(PIPELINE_BYTES_AFTER, PIPELINE_BYTES_AFTER_DELTA, stats.getBytesAfterCompression());
+		metrics.put(PIPELINE_LATENCY_P50, stats.getSendLatencyP50Millis());
+		metrics.put(PIPELINE_LATENCY_P99, stats.getSendLatencyP99Millis());
+		metrics.put(PIPELINE_LATENCY_MAX, stats.takeMaxSendLatencyMillis());
+		metrics.put(PIPELINE_HIGH_WATER_MARK, stats.getBufferHighWaterMark());
+		metrics.put(PIPELINE_CONSECUTIVE_FAILURES, stats.getConsecutiveFailures());
+		metrics.put(PIPELINE_BACKING_OFF, stats.isBackingOff() ? 1 : 0);
+		metrics.putWithDelta(PIPELINE_LOG_CALLS, PIPELINE_LOG_CALLS_DELTA, stats.getLogCalls());
+		metrics.putWithDelta(PIPELINE_LOG_NANOS, PIPELINE_LOG_NANOS_DELTA, stats.getLogTimeNanos());
+		metrics.putWithDelta(PIPELINE_FILE_DROPPED, PIPELINE_FILE_DROPPED_DELTA, stats.getFileEntriesDropped());
+		metrics.put(PIPELINE_FILE_ROLLS_FAILED, stats.getFileRollsFailed());
+		return metrics;
+	}
+
+	public static MetricSet getPayloadPoolStats(OohLaLogLogger logger, MetricSet metrics) {
+		PipelineStats stats = PipelineStats.getInstance();
+		metrics.putWithDelta(PAYLOAD_POOL_HITS, PAYLOAD_POOL_HITS_DELTA, stats.getPayloadBufferHits());
+		metrics.putWithDelta(PAYLOAD_POOL_MISSES, PAYLOAD_POOL_MISSES_DELTA, stats.getPayloadBufferMisses());
+		metrics.put(PAYLOAD_POOL_POOLED, stats.getPayloadBuffersPooled());
+		return metrics;
+	}
+
+	private static int[] getFileSystemIds(File path) {
+		int[] ids = fileSystemIds.get(path);
+		if (ids == null) {
+			ids = new int[] {
+				MetricSet.register("fileSystem."+path.toString() + ".totalSpace"),
+				MetricSet.register("fileSystem."+path.toString() + ".usableSpace"),
+				MetricSet.register("fileSystem."+path.toString() + ".freeSpace")
+			};
+			fileSystemIds.putIfAbsent(path, ids);
+		}
+		return ids;
+	}
+
+	/**
+	 * Turns an MXBean name such as "G1 Young Generation" or "CodeHeap 'non-nmethods'" into a
+	 * metric name component.
+	 */
+	private static String metricName(String name) {
+		return name.replaceAll("[^A-Za-z0-9]+", "_").replaceAll("^_|_$", "");
+	}
+
+	private static int[] getThreadStateIds() {
+		Thread.State[] states = Thread.State.values();
+		int[] ids = new int[states.length];
+		for (int i = 0; i < states.length; i++) {
+			ids[i] = MetricSet.register("threads.state." + states[i].name().toLowerCase());
+		}
+		return ids;
+	}
+
+	private static int[][] getGcIds() {
+		int[][] ids = new int[gcBeans.size()][];
+		for (int i = 0; i < ids.length; i++) {
+			String prefix = "gc." + metricName(gcBeans.get(i).getName());
+			ids[i] = new int[] {
+				MetricSet.register(prefix + ".count"),
+				MetricSet.register(prefix + ".countDelta"),
+				MetricSet.register(prefix + ".timeMillis"),
+				MetricSet.register(prefix + ".timeMillisDelta")
+			};
+		}
+		return ids;
+	}
+
+	private static int[][] getBufferPoolIds() {
+		int[][] ids = new int[bufferPoolBeans.size()][];
+		for (int i = 0; i < ids.length; i++) {
+			String prefix = "bufferPool." + metricName(bufferPoolBeans.get(i).getName());
+			ids[i] = new int[] {
+				MetricSet.register(prefix + ".count"),
+				MetricSet.register(prefix + ".memoryUsed"),
+				MetricSet.register(prefix + ".totalCapacity")
+			};
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns the non-heap memory pools: the code cache (or code heaps) and metaspace.  Heap usage
+	 * is already covered by the memory stats.
+	 */
+	private static List<MemoryPoolMXBean> getNonHeapMemoryPools() {
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean bean : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (bean.getType() == MemoryType.NON_HEAP) pools.add(bean);
+		}
+		return pools;
+	}
+
+	private static int[][] getMemoryPoolIds() {
+		int[][] ids = new int[memoryPoolBeans.size()][];
+		for (int i = 0; i < ids.length; i++) {
+			String prefix = "memoryPool." + metricName(memoryPoolBeans.get(i).getName());
+			ids[i] = new int[] {
+				MetricSet.register(prefix + ".used"),
+				MetricSet.register(prefix + ".committed"),
+				MetricSet.register(prefix + ".max")
+			};
+		}
+		return ids;
+	}
+
+	private static Object getHotspotRuntime() {
+		try {
+			return Class.forName("sun.management.ManagementFactoryHelper").getMethod("getHotspotRuntimeMBean").invoke(null);
 		} catch (Throwable e) {
-			//System.err.println(e.getMessage());
+			// Not HotSpot, or sun.management is not exported to us
 			return null;
 		}
 	}
 
+	private static MethodHandle getHotspotRuntimeHandle(String methodName) {
+		try {
+			if (hotspotRuntime != null) {
+				Class<?> clazz = Class.forName("sun.management.HotspotRuntimeMBean");
+				// Not publicLookup, which ignores packages exported only to the unnamed module
+				return MethodHandles.lookup().unreflect(clazz.getMethod(methodName))
+						.asType(MethodType.methodType(double.class, Object.class));
+			}
+		} catch (Throwable e) {
+			// Not HotSpot, or sun.management is not exported to us
+		}
+		return null;
+	}
 
-	private static Object getJavaSysMonResult(String methodName) {
-		Object rtn = null;
+	private static com.sun.management.OperatingSystemMXBean getPlatformOsBean() {
 		try {
-			if (sysmonClass !=  null) {
-				Method method = sysmonClass.getMethod(methodName);
-				rtn = method.invoke(sysmonInstance);
+			OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+			if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+				return (com.sun.management.OperatingSystemMXBean) bean;
 			}
+		} catch (Throwable e) {
+			// Not a HotSpot compatible JVM
+		}
+		return null;
+	}
+
+	private static Class<?> getJavaSysMonClass(String className) {
+		try {
+			return Class.forName("com.jezhumble.javasysmon."+className);
 		} catch (Throwable e) {
 			//System.err.println(e.getMessage());
+			return null;
+		}
+	}
 
+	private static Object getJavaSysMonInstance(String className) {
+		try {
+			return Class.forName("com.jezhumble.javasysmon."+className).newInstance();
+		} catch (Throwable e) {
+			//System.err.println(e.getMessage());
+			return null;
 		}
-		return rtn;
 	}
 
-	private static Object getJavaSysMonResultProperty(Object result, Class clazz, String propertyName) {
-		Object rtn = null;
+
+	/**
+	 * Looks up a public JavaSysMon method and adapts it to the given type, so that callers
+	 * can invoke it with invokeExact and without boxing the result.
+	 */
+	private static MethodHandle getJavaSysMonHandle(String className, String methodName, MethodType type) {
 		try {
-			if (clazz !=  null) {
-				Method method = clazz.getMethod(propertyName);
-				rtn = method.invoke(result);
+			Class<?> clazz = getJavaSysMonClass(className);
+			if (clazz != null) {
+				for (Method method : clazz.getMethods()) {
+					if (method.getName().equals(methodName)) {
+						return MethodHandles.publicLookup().unreflect(method).asType(type);
+					}
+				}
 			}
 		} catch (Throwable e) {
 			//System.err.println(e.getMessage());
 		}
-		return rtn;
-
+		return null;
 	}
 }
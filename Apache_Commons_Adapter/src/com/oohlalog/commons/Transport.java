@@ -0,0 +1,46 @@
+package com.oohlalog.commons;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Posts request bodies to OohLaLog.  There are two:
+ * <ul>
+ * <li>urlConnection posts with HttpURLConnection, blocking the calling thread until the response.</li>
+ * <li>httpClient posts with the HttpClient of the JDK, asynchronously, and multiplexes the requests
+ * to an endpoint over one HTTP/2 connection when the endpoint speaks HTTP/2.</li>
+ * </ul>
+ * Transports are shared by every logger of the JVM.
+ */
+public interface Transport {
+
+	/**
+	 * Returns the transport with a name, or urlConnection if there is none with that name.  A
+	 * transport keeps the timeouts of the first logger that asked for it.
+	 *
+	 * @param name urlConnection or httpClient
+	 * @param connectTimeout the time in ms allowed to open a connection
+	 * @param requestTimeout the time in ms allowed for the response to a request
+	 * @return the transport
+	 */
+	static Transport get(String name, long connectTimeout, long requestTimeout) {
+		if ("httpClient".equalsIgnoreCase(name)) return HttpClientTransport.getInstance(connectTimeout, requestTimeout);
+		return UrlConnectionTransport.getInstance(connectTimeout, requestTimeout);
+	}
+
+
+	/**
+	 * Posts a request body.  The body must not change or be released until the returned future is
+	 * complete.
+	 *
+	 * @param uri the URI to post to
+	 * @param contentType the content type of the body
+	 * @param gzip whether the body is compressed with gzip
+	 * @param body the body
+	 * @param debug print the response
+	 * @return a future completed with the status code of the response, or exceptionally if there
+	 *         was no response in time
+	 */
+	CompletableFuture<Integer> post(URI uri, String contentType, boolean gzip, PayloadBody body, boolean debug);
+}
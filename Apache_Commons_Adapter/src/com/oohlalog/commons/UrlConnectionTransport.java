@@ -0,0 +1,139 @@
+package com.oohlalog.commons;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * A Transport that posts with HttpURLConnection, on a thread of the sender, so that a flush can
+ * have several batches in flight, each on a connection of its own.  The body is streamed with its length set up front, so the connection does not
+ * buffer a copy of it.  Unless debugging, the response body is read and thrown away as it arrives,
+ * and the streams are closed without disconnecting, so that the connection is kept alive.
+ */
+public class UrlConnectionTransport implements Transport {
+	private static UrlConnectionTransport instance = null;
+
+	// Time in ms allowed to connect, and to wait for each read of the response
+	private final int connectTimeout;
+	private final int requestTimeout;
+
+
+	/**
+	 * Returns the transport, creating it with the given timeouts if no logger has yet.
+	 *
+	 * @param connectTimeout the time in ms allowed to open a connection
+	 * @param requestTimeout the time in ms allowed to wait for the response
+	 */
+	protected static synchronized UrlConnectionTransport getInstance(long connectTimeout, long requestTimeout) {
+		if (instance == null) instance = new UrlConnectionTransport(connectTimeout, requestTimeout);
+		return instance;
+	}
+
+
+	/**
+	 * Returns the transport, creating it with the default timeouts if no logger has yet.
+	 */
+	protected static UrlConnectionTransport getInstance() {
+		return getInstance(10000, 30000);
+	}
+
+
+	private UrlConnectionTransport(long connectTimeout, long requestTimeout) {
+		this.connectTimeout = (int) Math.min(Math.max(connectTimeout, 1), Integer.MAX_VALUE);
+		this.requestTimeout = (int) Math.min(Math.max(requestTimeout, 1), Integer.MAX_VALUE);
+	}
+
+
+	public CompletableFuture<Integer> post(final URI uri, final String contentType, final boolean gzip, final PayloadBody body, final boolean debug) {
+		final CompletableFuture<Integer> status = new CompletableFuture<Integer>();
+		try {
+			LogControl.getSender().execute( new Runnable() {
+				public void run() {
+					try {
+						status.complete(postNow(uri, contentType, gzip, body, debug));
+					}
+					catch ( Throwable t ) {
+						status.completeExceptionally(t);
+					}
+				}
+			});
+		}
+		catch ( Throwable t ) {
+			// The sender was shut down
+			status.completeExceptionally(t);
+		}
+		return status;
+	}
+
+
+	/**
+	 * Posts the body and returns the status of the response, on the calling thread.
+	 */
+	private int postNow(URI uri, String contentType, boolean gzip, PayloadBody body, boolean debug) throws Exception {
+		OutputStream os = null;
+		InputStream in = null;
+		try {
+			HttpURLConnection con = (HttpURLConnection) uri.toURL().openConnection();
+			con.setDoOutput(true);
+			con.setDoInput(true);
+			con.setInstanceFollowRedirects(false);
+			con.setConnectTimeout(connectTimeout);
+			con.setReadTimeout(requestTimeout);
+			con.setRequestMethod("POST");
+			con.setRequestProperty("Content-Type", contentType);
+			con.setFixedLengthStreamingMode(body.getLength());
+			if (gzip) con.setRequestProperty("Content-Encoding", "gzip");
+			con.setUseCaches(false);
+
+			// Get output stream and write the body
+			os = con.getOutputStream();
+			body.writeTo( os );
+			os.close();
+			os = null;
+
+			// The body of an error is on the error stream, and the status is returned like any other
+			int status = con.getResponseCode();
+			in = status >= 400 ? con.getErrorStream() : con.getInputStream();
+			if (in == null) return status;
+			if (debug && status != HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+				BufferedReader rd = new BufferedReader(new InputStreamReader(in));
+				StringBuilder sb = new StringBuilder();
+				String line;
+				while ((line = rd.readLine()) != null){
+				  sb.append(line + '\n');
+				}
+				System.out.println( ">>>>>>>>>>>Received: " + sb.toString() );
+			}
+			else {
+				// Read to the end, so that the connection can be kept alive for the next post
+				byte[] discard = new byte[512];
+				while (in.read(discard) >= 0) {
+					// Thrown away
+				}
+			}
+			return status;
+		}
+		finally {
+			// Closing the streams rather than disconnecting returns the connection to the keep-alive cache
+			close(os);
+			close(in);
+		}
+	}
+
+
+	private static void close(Closeable stream) {
+		if (stream == null) return;
+		try {
+			stream.close();
+		}
+		catch ( Throwable t ) {
+			// swallow
+		}
+	}
+}